@@ -370,6 +370,8 @@ class AppPermGroupUiInfoLiveData private constructor(
      */
     companion object : DataRepositoryForPackage<Triple<String, String, UserHandle>,
             AppPermGroupUiInfoLiveData>() {
+        override val approximateEntryBytes = 512
+
         override fun newValue(key: Triple<String, String, UserHandle>):
                 AppPermGroupUiInfoLiveData {
             return AppPermGroupUiInfoLiveData(PermissionControllerApplication.get(),
@@ -22,11 +22,16 @@ import android.content.res.Configuration
 import androidx.annotation.GuardedBy
 import androidx.annotation.MainThread
 import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.PermissionControllerProto.DataRepositoryDumpProto
 import java.util.concurrent.TimeUnit
 
 /**
  * A generalize data repository, which carries a component callback which trims its data in response
  * to memory pressure
+ *
+ * Between trims, the repository is bounded to [maxEntries] and [maxApproximateBytes]: past either
+ * limit, the least recently used values which have been inactive for longer than
+ * [TIME_THRESHOLD_EVICTION_NANOS] are removed.
  */
 abstract class DataRepository<K, V : DataRepository.InactiveTimekeeper> : ComponentCallbacks2 {
 
@@ -38,9 +43,41 @@ abstract class DataRepository<K, V : DataRepository.InactiveTimekeeper> : Compon
     private val TIME_THRESHOLD_TIGHT_NANOS: Long = TimeUnit.NANOSECONDS.convert(1, TimeUnit.MINUTES)
     private val TIME_THRESHOLD_ALL_NANOS: Long = 0
 
+    /**
+     * Deadline for removal to bound the size of the repository. Values which went inactive more
+     * recently, for example around a configuration change, may still be observed again.
+     */
+    private val TIME_THRESHOLD_EVICTION_NANOS: Long =
+        TimeUnit.NANOSECONDS.convert(1, TimeUnit.MINUTES)
+
     protected val lock = Any()
+    /**
+     * The values of this repository, in access order
+     */
     @GuardedBy("lock")
-    protected val data = mutableMapOf<K, V>()
+    protected val data: MutableMap<K, V> = LinkedHashMap(16, 0.75f, true)
+
+    /**
+     * The maximum number of values kept in this repository
+     */
+    protected open val maxEntries: Int = DEFAULT_MAX_ENTRIES
+    /**
+     * The maximum approximate number of bytes retained by the values of this repository
+     */
+    protected open val maxApproximateBytes: Long = DEFAULT_MAX_APPROXIMATE_BYTES
+    /**
+     * The approximate number of bytes retained by a value of this repository, once loaded
+     */
+    protected open val approximateEntryBytes: Int = DEFAULT_APPROXIMATE_ENTRY_BYTES
+
+    @GuardedBy("lock")
+    private var hitCount = 0L
+    @GuardedBy("lock")
+    private var missCount = 0L
+    @GuardedBy("lock")
+    private var evictionCount = 0L
+    @GuardedBy("lock")
+    private var trimCount = 0L
 
     /**
      * Whether or not this data repository has been registered as a component callback yet
@@ -54,6 +91,9 @@ abstract class DataRepository<K, V : DataRepository.InactiveTimekeeper> : Compon
 
     init {
         PermissionControllerApplication.get().registerComponentCallbacks(this)
+        synchronized(repositories) {
+            repositories.add(this)
+        }
     }
 
     /**
@@ -65,7 +105,41 @@ abstract class DataRepository<K, V : DataRepository.InactiveTimekeeper> : Compon
      */
     operator fun get(key: K): V {
         synchronized(lock) {
-            return data.getOrPut(key) { newValue(key) }
+            data[key]?.let { value ->
+                hitCount++
+                return value
+            }
+
+            missCount++
+            val value = newValue(key)
+            data[key] = value
+            evictLeastRecentlyUsedLocked(key)
+            return value
+        }
+    }
+
+    /**
+     * Remove the least recently used values which have been inactive for longer than
+     * [TIME_THRESHOLD_EVICTION_NANOS] until this repository is within its limits. The repository
+     * may stay over its limits if not enough values can be removed.
+     *
+     * @param insertedKey The key of the value just inserted, which is never removed
+     */
+    @GuardedBy("lock")
+    private fun evictLeastRecentlyUsedLocked(insertedKey: K) {
+        val maxSize = minOf(maxEntries.toLong(), maxApproximateBytes / approximateEntryBytes)
+        if (data.size <= maxSize) {
+            return
+        }
+
+        val iterator = data.entries.iterator()
+        while (data.size > maxSize && iterator.hasNext()) {
+            val (key, value) = iterator.next()
+            if (key != insertedKey &&
+                value.timeInactive?.let { it >= TIME_THRESHOLD_EVICTION_NANOS } == true) {
+                iterator.remove()
+                evictionCount++
+            }
         }
     }
 
@@ -121,11 +195,55 @@ abstract class DataRepository<K, V : DataRepository.InactiveTimekeeper> : Compon
             data.keys.toList().forEach { key ->
                 if (data[key]?.timeInactive?.let { it >= threshold } == true) {
                     data.remove(key)
+                    trimCount++
                 }
             }
         }
     }
 
+    /**
+     * Dump the size and cache statistics of this repository
+     *
+     * @return the dump state as a proto
+     */
+    fun dump(): DataRepositoryDumpProto {
+        synchronized(lock) {
+            return DataRepositoryDumpProto.newBuilder()
+                .setName(javaClass.enclosingClass?.simpleName ?: javaClass.simpleName)
+                .setEntries(data.size)
+                .setMaxEntries(maxEntries)
+                .setApproximateBytes(data.size.toLong() * approximateEntryBytes)
+                .setMaxApproximateBytes(maxApproximateBytes)
+                .setHits(hitCount)
+                .setMisses(missCount)
+                .setEvictions(evictionCount)
+                .setTrims(trimCount)
+                .build()
+        }
+    }
+
+    companion object {
+        private const val DEFAULT_MAX_ENTRIES = 1000
+        private const val DEFAULT_MAX_APPROXIMATE_BYTES = 2L * 1024 * 1024
+        private const val DEFAULT_APPROXIMATE_ENTRY_BYTES = 1024
+
+        /**
+         * All of the repositories created in this process
+         */
+        @GuardedBy("repositories")
+        private val repositories = mutableListOf<DataRepository<*, *>>()
+
+        /**
+         * Dump all of the repositories created in this process
+         *
+         * @return the dump state of each repository as a proto
+         */
+        fun dumpAll(): List<DataRepositoryDumpProto> {
+            val repositoriesCopy = synchronized(repositories) { repositories.toList() }
+            return repositoriesCopy.map { it.dump() }
+        }
+    }
+
     /**
      * Interface which describes an object which can track how long it has been inactive, and if
      * it has any observers.
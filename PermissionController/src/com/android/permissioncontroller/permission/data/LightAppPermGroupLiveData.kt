@@ -204,6 +204,8 @@ class LightAppPermGroupLiveData private constructor(
      */
     companion object : DataRepositoryForPackage<Triple<String, String, UserHandle>,
         LightAppPermGroupLiveData>() {
+        override val approximateEntryBytes = 4096
+
         override fun newValue(key: Triple<String, String, UserHandle>):
             LightAppPermGroupLiveData {
             return LightAppPermGroupLiveData(PermissionControllerApplication.get(),
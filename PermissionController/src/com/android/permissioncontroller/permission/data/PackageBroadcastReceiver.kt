@@ -21,6 +21,8 @@ import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
 import android.content.IntentFilter
+import android.os.Handler
+import android.os.Looper
 import com.android.permissioncontroller.PermissionControllerApplication
 import kotlinx.coroutines.Dispatchers.Main
 import kotlinx.coroutines.GlobalScope
@@ -28,10 +30,17 @@ import kotlinx.coroutines.launch
 
 /**
  * Listens for package additions, replacements, and removals, and notifies listeners.
+ *
+ * Listeners which [batch package updates][PackageBroadcastListener.batchesPackageUpdates] are
+ * notified once for all of the packages updated within [BATCH_WINDOW_MILLIS], e.g. during bulk
+ * app updates.
  */
 object PackageBroadcastReceiver : BroadcastReceiver() {
 
+    private const val BATCH_WINDOW_MILLIS = 500L
+
     private val app: Application = PermissionControllerApplication.get()
+    private val mainHandler = Handler(Looper.getMainLooper())
     private val intentFilter = IntentFilter(Intent.ACTION_PACKAGE_ADDED).apply {
         addAction(Intent.ACTION_PACKAGE_REMOVED)
         addAction(Intent.ACTION_PACKAGE_REPLACED)
@@ -47,6 +56,11 @@ object PackageBroadcastReceiver : BroadcastReceiver() {
      * A list of listener IDs, which listen to all package additions, changes, and removals.
      */
     private val allCallbacks = mutableSetOf<PackageBroadcastListener>()
+    /**
+     * Map<listener, names of the packages updated since the last batch was delivered to it>
+     */
+    private val pendingBatches = mutableMapOf<PackageBroadcastListener, MutableSet<String>>()
+    private val deliverBatchesRunnable = Runnable { deliverBatches() }
 
     /**
      * Add a callback which will be notified when the specified packaged is changed or removed.
@@ -142,13 +156,13 @@ object PackageBroadcastReceiver : BroadcastReceiver() {
         val packageName = intent.data?.schemeSpecificPart ?: return
 
         for (callback in allCallbacks.toList()) {
-            callback.onPackageUpdate(packageName)
+            notifyOrBatch(callback, packageName)
         }
 
         if (intent.action != Intent.ACTION_PACKAGE_ADDED) {
             changeCallbacks[packageName]?.toList()?.let { callbacks ->
                 for (callback in callbacks) {
-                    callback.onPackageUpdate(packageName)
+                    notifyOrBatch(callback, packageName)
                 }
             }
         }
@@ -164,10 +178,50 @@ object PackageBroadcastReceiver : BroadcastReceiver() {
         }
     }
 
+    private fun notifyOrBatch(listener: PackageBroadcastListener, packageName: String) {
+        if (!listener.batchesPackageUpdates) {
+            listener.onPackageUpdate(packageName)
+            return
+        }
+
+        if (pendingBatches.isEmpty()) {
+            mainHandler.postDelayed(deliverBatchesRunnable, BATCH_WINDOW_MILLIS)
+        }
+        pendingBatches.getOrPut(listener, { mutableSetOf() }).add(packageName)
+    }
+
+    /**
+     * Deliver the pending batches to the listeners which are still registered for them.
+     */
+    private fun deliverBatches() {
+        val batches = pendingBatches.toMap()
+        pendingBatches.clear()
+
+        for ((listener, packageNames) in batches) {
+            val registeredPackageNames = if (listener in allCallbacks) {
+                packageNames
+            } else {
+                packageNames.filterTo(mutableSetOf()) { packageName ->
+                    changeCallbacks[packageName]?.contains(listener) == true
+                }
+            }
+            if (registeredPackageNames.isNotEmpty()) {
+                listener.onPackagesUpdated(registeredPackageNames)
+            }
+        }
+    }
+
     /**
      * A listener interface for objects desiring to be notified of package broadcasts.
      */
     interface PackageBroadcastListener {
+        /**
+         * Whether or not package broadcasts should be gathered and delivered to this listener
+         * through [onPackagesUpdated], rather than one by one through [onPackageUpdate].
+         */
+        val batchesPackageUpdates: Boolean
+            get() = false
+
         /**
          * To be called when a specific package has been changed, or when any package has been
          * installed.
@@ -175,5 +229,17 @@ object PackageBroadcastReceiver : BroadcastReceiver() {
          * @param packageName the name of the package which was updated
          */
         fun onPackageUpdate(packageName: String)
+
+        /**
+         * To be called instead of [onPackageUpdate] with the packages updated within a short
+         * window, if [batchesPackageUpdates] is true.
+         *
+         * @param packageNames the names of the packages which were updated
+         */
+        fun onPackagesUpdated(packageNames: Set<String>) {
+            for (packageName in packageNames) {
+                onPackageUpdate(packageName)
+            }
+        }
     }
 }
\ No newline at end of file
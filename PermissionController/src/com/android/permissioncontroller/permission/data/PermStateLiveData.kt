@@ -141,6 +141,8 @@ class PermStateLiveData private constructor(
      */
     companion object : DataRepositoryForPackage<Triple<String, String, UserHandle>,
         PermStateLiveData>() {
+        override val approximateEntryBytes = 2048
+
         override fun newValue(key: Triple<String, String, UserHandle>): PermStateLiveData {
             return PermStateLiveData(PermissionControllerApplication.get(),
                 key.first, key.second, key.third)
@@ -18,25 +18,87 @@ package com.android.permissioncontroller.permission.data
 
 import android.app.Application
 import android.content.pm.PackageManager
+import android.os.Handler
+import android.os.Looper
+import android.util.SparseArray
+import android.util.SparseBooleanArray
+import androidx.annotation.GuardedBy
+import androidx.annotation.MainThread
 import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.PermissionControllerProto.PermissionListenersDumpProto
 
 /**
  * Serves as a single shared Permission Change Listener for all AppPermissionGroupLiveDatas.
  *
+ * Permission changes for the same UID arriving before the main thread gets to them are delivered
+ * to the callbacks once.
  */
 object PermissionListenerMultiplexer : PackageManager.OnPermissionsChangedListener {
 
     private val app: Application = PermissionControllerApplication.get()
     /**
-     * Map<UID, list of PermissionChangeCallbacks that wish to be informed when
-     * permissions are updated for that UID>
+     * Map<UID, array of PermissionChangeCallbacks that wish to be informed when
+     * permissions are updated for that UID>. The arrays are replaced rather than modified, so that
+     * they can be iterated outside of the lock.
      */
-    private val callbacks = mutableMapOf<Int, MutableList<PermissionChangeCallback>>()
+    @GuardedBy("lock")
+    private val callbacks = SparseArray<Array<PermissionChangeCallback>>()
+    /** The UIDs whose permissions changed since the last dispatch */
+    @GuardedBy("lock")
+    private val pendingUids = SparseBooleanArray()
+    @GuardedBy("lock")
+    private var dispatchScheduled = false
+    @GuardedBy("lock")
+    private var eventCount = 0L
+    @GuardedBy("lock")
+    private var dispatchCount = 0L
+    @GuardedBy("lock")
+    private var callbackInvocationCount = 0L
     private val pm = app.applicationContext.packageManager
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    private val lock = Object()
+
+    /**
+     * Serializes the registration of this listener with the package manager, which is done
+     * outside of [lock] to not hold it across a binder call.
+     */
+    private val registrationLock = Object()
+    /** Whether this listener is registered with the package manager */
+    @GuardedBy("registrationLock")
+    private var registered = false
 
     override fun onPermissionsChanged(uid: Int) {
-        callbacks[uid]?.toList()?.forEach { callback ->
-            callback.onPermissionChange()
+        synchronized(lock) {
+            eventCount++
+            if (callbacks[uid] == null) {
+                return
+            }
+            pendingUids.put(uid, true)
+            if (dispatchScheduled) {
+                return
+            }
+            dispatchScheduled = true
+        }
+        mainHandler.post { dispatchPendingChanges() }
+    }
+
+    @MainThread
+    private fun dispatchPendingChanges() {
+        val uids: IntArray
+        synchronized(lock) {
+            dispatchScheduled = false
+            dispatchCount++
+            uids = IntArray(pendingUids.size()) { i -> pendingUids.keyAt(i) }
+            pendingUids.clear()
+        }
+        for (uid in uids) {
+            val uidCallbacks = synchronized(lock) {
+                callbacks[uid]?.also { callbackInvocationCount += it.size }
+            } ?: continue
+            for (callback in uidCallbacks) {
+                callback.onPermissionChange(uid)
+            }
         }
     }
 
@@ -48,34 +110,83 @@ object PermissionListenerMultiplexer : PackageManager.OnPermissionsChangedListen
     }
 
     fun addCallback(uid: Int, callback: PermissionChangeCallback) {
-        val wasEmpty = callbacks.isEmpty()
-
-        callbacks.getOrPut(uid, { mutableListOf() }).add(callback)
-
-        if (wasEmpty) {
-            pm.addOnPermissionsChangeListener(this)
+        synchronized(lock) {
+            val uidCallbacks = callbacks[uid]
+            callbacks.put(uid, uidCallbacks?.plus(callback) ?: arrayOf(callback))
         }
+        updateRegistration()
     }
 
     fun removeCallback(uid: Int, callback: PermissionChangeCallback) {
-        if (!callbacks.contains(uid)) {
-            return
-        }
+        synchronized(lock) {
+            val uidCallbacks = callbacks[uid] ?: return
+            val index = uidCallbacks.indexOf(callback)
+            if (index < 0) {
+                return
+            }
 
-        if (!callbacks[uid]!!.remove(callback)) {
-            return
+            if (uidCallbacks.size == 1) {
+                callbacks.remove(uid)
+            } else {
+                callbacks.put(uid, uidCallbacks.filterIndexed { i, _ -> i != index }
+                    .toTypedArray())
+            }
         }
+        updateRegistration()
+    }
 
-        if (callbacks[uid]!!.isEmpty()) {
-            callbacks.remove(uid)
+    /**
+     * Register or unregister this listener with the package manager, so that it is registered if
+     * and only if there are callbacks. Racing calls are serialized, and the last one to run sees
+     * the latest callbacks, so the registration always ends up matching them.
+     */
+    private fun updateRegistration() {
+        synchronized(registrationLock) {
+            val shouldBeRegistered = synchronized(lock) { callbacks.size() != 0 }
+            if (shouldBeRegistered == registered) {
+                return
+            }
+            if (shouldBeRegistered) {
+                pm.addOnPermissionsChangeListener(this)
+            } else {
+                pm.removeOnPermissionsChangeListener(this)
+            }
+            registered = shouldBeRegistered
         }
+    }
 
-        if (callbacks.isEmpty()) {
-            pm.removeOnPermissionsChangeListener(this)
+    /**
+     * Dump the registered callbacks and how many permission changes were delivered to them
+     *
+     * @return the dump state as a proto
+     */
+    fun dump(): PermissionListenersDumpProto {
+        synchronized(lock) {
+            var callbackCount = 0
+            for (i in 0 until callbacks.size()) {
+                callbackCount += callbacks.valueAt(i).size
+            }
+            return PermissionListenersDumpProto.newBuilder()
+                .setRegisteredUids(callbacks.size())
+                .setRegisteredCallbacks(callbackCount)
+                .setPermissionChangeEvents(eventCount)
+                .setDispatches(dispatchCount)
+                .setCallbackInvocations(callbackInvocationCount)
+                .build()
         }
     }
 
     interface PermissionChangeCallback {
         fun onPermissionChange()
+
+        /**
+         * Called when the permissions of the given uid changed. Callbacks registered for several
+         * uids can override this to only update the data of that uid.
+         *
+         * @param uid The uid whose permissions changed
+         */
+        fun onPermissionChange(uid: Int) {
+            onPermissionChange()
+        }
     }
 }
\ No newline at end of file
@@ -17,16 +17,24 @@
 package com.android.permissioncontroller.permission.data
 
 import android.app.Application
+import android.content.pm.PackageManager
 import android.content.pm.PackageManager.GET_PERMISSIONS
 import android.content.pm.PackageManager.MATCH_ALL
+import android.os.SystemClock
 import android.os.UserHandle
 import com.android.permissioncontroller.PermissionControllerApplication
 import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.android.permissioncontroller.permission.utils.Utils
 import kotlinx.coroutines.Job
+import java.util.concurrent.TimeUnit
 
 /**
  * A LiveData which tracks all of the packageinfos installed for a given user.
  *
+ * Package broadcasts only reload the package they name, and permission changes only reload the
+ * packages sharing the uid they are for. All of the packages of the user are reloaded when this
+ * LiveData becomes active, and at most every [FULL_RELOAD_INTERVAL_MILLIS] as a consistency check.
+ *
  * @param app The current application
  * @param user The user whose packages are desired
  */
@@ -42,59 +50,141 @@ class UserPackageInfosLiveData private constructor(
      */
     var permChangeStale = false
 
+    private val context = Utils.getUserContext(app, user)
+
+    /**
+     * The packages of the user keyed by package name, in the order of the last full reload. Only
+     * accessed by the load job, of which there is at most one running.
+     */
+    private val packageInfosByName = LinkedHashMap<String, LightPackageInfo>()
+    private var lastFullReloadMillis = 0L
+
+    /** The names of the packages updated since the last load started */
+    private val pendingPackageUpdates = mutableSetOf<String>()
+    /** The uids whose permissions changed since the last load started, guarded by the above */
+    private val pendingUidUpdates = mutableSetOf<Int>()
+    @Volatile
+    private var fullReloadRequested = true
+
+    override val batchesPackageUpdates = true
+
     override fun onPackageUpdate(packageName: String) {
+        onPackagesUpdated(setOf(packageName))
+    }
+
+    override fun onPackagesUpdated(packageNames: Set<String>) {
+        synchronized(pendingPackageUpdates) {
+            pendingPackageUpdates.addAll(packageNames)
+        }
         updateAsync()
     }
 
-    // TODO ntmyren: replace with correctly updating
     override fun onPermissionChange() {
         permChangeStale = true
-        for (packageInfo in value ?: emptyList()) {
-            PermissionListenerMultiplexer.removeCallback(packageInfo.uid, this)
+        fullReloadRequested = true
+        updateAsync()
+    }
+
+    override fun onPermissionChange(uid: Int) {
+        permChangeStale = true
+        synchronized(pendingPackageUpdates) {
+            pendingUidUpdates.add(uid)
         }
+        updateAsync()
     }
 
     override fun setValue(newValue: List<LightPackageInfo>?) {
         if (newValue != value) {
-            for (packageInfo in value ?: emptyList()) {
-                PermissionListenerMultiplexer.removeCallback(packageInfo.uid, this)
+            val oldUids = value.getUids()
+            val newUids = newValue.getUids()
+            for (uid in oldUids) {
+                if (uid !in newUids) {
+                    PermissionListenerMultiplexer.removeCallback(uid, this)
+                }
             }
-            for (packageInfo in newValue ?: emptyList()) {
-                PermissionListenerMultiplexer.addCallback(packageInfo.uid, this)
+            for (uid in newUids) {
+                if (uid !in oldUids) {
+                    PermissionListenerMultiplexer.addCallback(uid, this)
+                }
             }
         }
         super.setValue(newValue)
         permChangeStale = false
     }
 
+    private fun List<LightPackageInfo>?.getUids(): Set<Int> =
+        this?.mapTo(mutableSetOf()) { it.uid } ?: emptySet()
+
     /**
-     * Get all of the packages in the system, organized by user.
+     * Get all of the packages in the system, organized by user, or only the packages updated since
+     * the last load if a full reload isn't needed. Unchanged [LightPackageInfo]s are shared with
+     * the previous value.
      */
     override suspend fun loadDataAndPostValue(job: Job) {
         if (job.isCancelled) {
             return
         }
-        val packageInfos = app.applicationContext.packageManager
-            .getInstalledPackagesAsUser(GET_PERMISSIONS or MATCH_ALL, user.identifier)
+        val updatedPackageNames = mutableSetOf<String>()
+        val updatedUids = mutableListOf<Int>()
+        synchronized(pendingPackageUpdates) {
+            updatedPackageNames.addAll(pendingPackageUpdates)
+            pendingPackageUpdates.clear()
+            updatedUids.addAll(pendingUidUpdates)
+            pendingUidUpdates.clear()
+        }
+        val now = SystemClock.elapsedRealtime()
+        if (fullReloadRequested || now - lastFullReloadMillis >= FULL_RELOAD_INTERVAL_MILLIS) {
+            fullReloadRequested = false
+            val packageInfos = app.applicationContext.packageManager
+                .getInstalledPackagesAsUser(GET_PERMISSIONS or MATCH_ALL, user.identifier)
+            packageInfosByName.clear()
+            for (packageInfo in packageInfos) {
+                packageInfosByName[packageInfo.packageName] = LightPackageInfo(packageInfo)
+            }
+            lastFullReloadMillis = now
+        } else {
+            for (uid in updatedUids) {
+                context.packageManager.getPackagesForUid(uid)?.let { updatedPackageNames += it }
+                // Also reload the packages no longer sharing this uid, so that they get removed.
+                for (packageInfo in packageInfosByName.values) {
+                    if (packageInfo.uid == uid) {
+                        updatedPackageNames += packageInfo.packageName
+                    }
+                }
+            }
+            for (packageName in updatedPackageNames) {
+                try {
+                    packageInfosByName[packageName] = LightPackageInfo(context.packageManager
+                        .getPackageInfo(packageName, GET_PERMISSIONS or MATCH_ALL))
+                } catch (e: PackageManager.NameNotFoundException) {
+                    packageInfosByName.remove(packageName)
+                }
+            }
+        }
 
-        postValue(packageInfos.map { packageInfo -> LightPackageInfo(packageInfo) })
+        if (job.isCancelled) {
+            return
+        }
+        postValue(packageInfosByName.values.toList())
     }
 
     override fun onActive() {
+        // Package broadcasts aren't listened to while inactive, so the map may be out of date.
+        fullReloadRequested = true
         super.onActive()
 
         PackageBroadcastReceiver.addAllCallback(this)
 
-        for (packageInfo in value ?: emptyList()) {
-            PermissionListenerMultiplexer.addCallback(packageInfo.uid, this)
+        for (uid in value.getUids()) {
+            PermissionListenerMultiplexer.addCallback(uid, this)
         }
     }
 
     override fun onInactive() {
         super.onInactive()
 
-        for (packageInfo in value ?: emptyList()) {
-            PermissionListenerMultiplexer.removeCallback(packageInfo.uid, this)
+        for (uid in value.getUids()) {
+            PermissionListenerMultiplexer.removeCallback(uid, this)
         }
 
         PackageBroadcastReceiver.removeAllCallback(this)
@@ -105,6 +195,8 @@ class UserPackageInfosLiveData private constructor(
      * <p> Key value is a UserHandle, value is its corresponding LiveData.
      */
     companion object : DataRepository<UserHandle, UserPackageInfosLiveData>() {
+        private val FULL_RELOAD_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10)
+
         override fun newValue(key: UserHandle): UserPackageInfosLiveData {
             return UserPackageInfosLiveData(PermissionControllerApplication.get(), key)
         }
@@ -29,8 +29,10 @@ import androidx.lifecycle.Transformations
 import com.android.permissioncontroller.DumpableLog
 import com.android.permissioncontroller.PermissionControllerProto.PermissionControllerDumpProto
 import com.android.permissioncontroller.permission.data.AppPermGroupUiInfoLiveData
+import com.android.permissioncontroller.permission.data.DataRepository
 import com.android.permissioncontroller.permission.data.HibernationSettingStateLiveData
 import com.android.permissioncontroller.permission.data.PackagePermissionsLiveData
+import com.android.permissioncontroller.permission.data.PermissionListenerMultiplexer
 import com.android.permissioncontroller.permission.data.SmartUpdateMediatorLiveData
 import com.android.permissioncontroller.permission.data.UserPackageInfosLiveData
 import com.android.permissioncontroller.permission.data.get
@@ -326,6 +328,8 @@ class PermissionControllerServiceModel(private val service: PermissionController
 
             PermissionControllerDumpProto.newBuilder()
                     .addAllLogs(dumpedLogs.await())
+                    .setPermissionListeners(PermissionListenerMultiplexer.dump())
+                    .addAllDataRepositories(DataRepository.dumpAll())
                     .build()
         }
     }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.tests.mocking.permission.data
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession
+import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.data.DataRepository
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito.mock
+import org.mockito.MockitoSession
+import org.mockito.quality.Strictness
+import java.util.concurrent.TimeUnit
+import org.mockito.Mockito.`when` as whenever
+
+@RunWith(AndroidJUnit4::class)
+class DataRepositoryTest {
+    private val application = mock(PermissionControllerApplication::class.java)
+
+    private lateinit var mockitoSession: MockitoSession
+
+    @Before
+    fun mockApplication() {
+        mockitoSession = mockitoSession().mockStatic(PermissionControllerApplication::class.java)
+            .strictness(Strictness.LENIENT).startMocking()
+        whenever(PermissionControllerApplication.get()).thenReturn(application)
+    }
+
+    @After
+    fun finishMocking() {
+        mockitoSession.finishMocking()
+    }
+
+    @Test
+    fun testGet_overLimit_evictsLeastRecentlyUsedInactiveValue() {
+        val repository = TestDataRepository(maxEntries = 2)
+        val first = repository["first"]
+        val second = repository["second"]
+        first.timeWentInactive = LONG_AGO
+        second.timeWentInactive = LONG_AGO
+        repository["third"]
+
+        assertThat(repository.dump().evictions).isEqualTo(1)
+        assertThat(repository["second"]).isSameInstanceAs(second)
+        assertThat(repository["first"]).isNotSameInstanceAs(first)
+    }
+
+    @Test
+    fun testGet_overLimit_keepsRecentlyInactiveValue() {
+        val repository = TestDataRepository(maxEntries = 1)
+        val first = repository["first"]
+        first.timeWentInactive = System.nanoTime()
+        repository["second"]
+
+        assertThat(repository["first"]).isSameInstanceAs(first)
+        assertThat(repository.dump().evictions).isEqualTo(0)
+    }
+
+    @Test
+    fun testGet_overLimit_keepsActiveValue() {
+        val repository = TestDataRepository(maxEntries = 1)
+        val first = repository["first"]
+        first.timeWentInactive = null
+        repository["second"]
+
+        assertThat(repository["first"]).isSameInstanceAs(first)
+        assertThat(repository.dump().entries).isEqualTo(2)
+    }
+
+    @Test
+    fun testGet_overLimit_keepsInsertedValue() {
+        val repository = TestDataRepository(maxEntries = 1, newValueTimeWentInactive = LONG_AGO)
+        repository["first"].timeWentInactive = null
+        val second = repository["second"]
+
+        assertThat(repository["second"]).isSameInstanceAs(second)
+        assertThat(repository.dump().evictions).isEqualTo(0)
+    }
+
+    private class TestValue(
+        override var timeWentInactive: Long?
+    ) : DataRepository.InactiveTimekeeper
+
+    private class TestDataRepository(
+        override val maxEntries: Int,
+        private val newValueTimeWentInactive: Long = System.nanoTime()
+    ) : DataRepository<String, TestValue>() {
+        override fun newValue(key: String): TestValue = TestValue(newValueTimeWentInactive)
+    }
+
+    companion object {
+        private val LONG_AGO = System.nanoTime() - TimeUnit.NANOSECONDS.convert(1, TimeUnit.HOURS)
+    }
+}
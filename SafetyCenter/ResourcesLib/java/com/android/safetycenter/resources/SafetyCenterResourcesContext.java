@@ -29,8 +29,6 @@ import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.util.Log;
 
-import com.android.internal.annotations.VisibleForTesting;
-
 import java.io.File;
 import java.io.InputStream;
 import java.util.List;
@@ -102,9 +100,8 @@ public class SafetyCenterResourcesContext extends ContextWrapper {
     }
 
     /** Get the package name of the Safety Center resources APK. */
-    @VisibleForTesting
     @Nullable
-    String getResourcesApkPkgName() {
+    public String getResourcesApkPkgName() {
         if (mResourcesApkPkgName != null) {
             return mResourcesApkPkgName;
         }
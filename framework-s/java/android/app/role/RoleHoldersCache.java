@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.role;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.annotation.UserIdInt;
+import android.os.RemoteException;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+/**
+ * Per-process cache for the results of role holder queries, keyed by user and role.
+ * <p>
+ * The cache observes role holder changes for each user it caches queries for, and drops the
+ * cached results for a role when its holders change. Changes made by this process are invalidated
+ * by {@link RoleManager} as soon as they complete.
+ * <p>
+ * Listeners are registered outside the cache lock, and queries for a user aren't cached until its
+ * listener is registered. {@link #close()} unregisters all listeners.
+ *
+ * @hide
+ */
+final class RoleHoldersCache {
+
+    private static final String LOG_TAG = RoleHoldersCache.class.getSimpleName();
+
+    /**
+     * Placeholder for a cached {@code null} result.
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    /**
+     * The listener for the user is being registered, and its queries aren't cached yet.
+     */
+    private static final int USER_STATE_REGISTERING = 1;
+
+    /**
+     * The listener for the user is registered, and its queries are cached.
+     */
+    private static final int USER_STATE_OBSERVED = 2;
+
+    /**
+     * The listener for the user can't be registered, and its queries are never cached.
+     */
+    private static final int USER_STATE_NOT_OBSERVED = 3;
+
+    @NonNull
+    private final IRoleManager mService;
+
+    @NonNull
+    private final Object mLock = new Object();
+
+    /**
+     * Maps user id to role name to query key to the cached result.
+     */
+    @GuardedBy("mLock")
+    @NonNull
+    private final SparseArray<ArrayMap<String, ArrayMap<String, Object>>> mValues =
+            new SparseArray<>();
+
+    /**
+     * Maps user id to the state of the listener for that user, one of the
+     * {@code USER_STATE_*} constants. Users without a state have no listener yet.
+     */
+    @GuardedBy("mLock")
+    @NonNull
+    private final SparseIntArray mUserStates = new SparseIntArray();
+
+    /**
+     * Whether this cache has been closed, after which nothing is cached or observed.
+     */
+    @GuardedBy("mLock")
+    private boolean mClosed;
+
+    /**
+     * Incremented on every invalidation, so that a query racing with an invalidation doesn't
+     * cache a possibly stale result.
+     */
+    @GuardedBy("mLock")
+    private long mGeneration;
+
+    @NonNull
+    private final IOnRoleHoldersChangedListener mListener =
+            new IOnRoleHoldersChangedListener.Stub() {
+                @Override
+                public void onRoleHoldersChanged(@NonNull String roleName,
+                        @UserIdInt int userId) {
+                    invalidate(roleName, userId);
+                }
+            };
+
+    RoleHoldersCache(@NonNull IRoleManager service) {
+        mService = service;
+    }
+
+    /**
+     * Get the result of a role holder query, from the cache if possible.
+     *
+     * @param roleName the name of the role the query is about
+     * @param userId the user id the query is about
+     * @param key the key identifying the query within the role
+     * @param query the query to run on a cache miss
+     *
+     * @return the result of the query, which must not be modified
+     */
+    @Nullable
+    <T> T get(@NonNull String roleName, @UserIdInt int userId, @NonNull String key,
+            @NonNull Query<T> query) throws RemoteException {
+        boolean register = false;
+        synchronized (mLock) {
+            if (!mClosed && mUserStates.indexOfKey(userId) < 0) {
+                mUserStates.put(userId, USER_STATE_REGISTERING);
+                register = true;
+            }
+        }
+        if (register) {
+            registerListener(userId);
+        }
+
+        long generation;
+        synchronized (mLock) {
+            if (mClosed || mUserStates.get(userId) != USER_STATE_OBSERVED) {
+                return query.run();
+            }
+            ArrayMap<String, ArrayMap<String, Object>> userValues = mValues.get(userId);
+            ArrayMap<String, Object> roleValues = userValues != null ? userValues.get(roleName)
+                    : null;
+            Object value = roleValues != null ? roleValues.get(key) : null;
+            if (value != null) {
+                @SuppressWarnings("unchecked")
+                T result = value != NULL_VALUE ? (T) value : null;
+                return result;
+            }
+            generation = mGeneration;
+        }
+
+        T result = query.run();
+
+        synchronized (mLock) {
+            if (!mClosed && mGeneration == generation) {
+                ArrayMap<String, ArrayMap<String, Object>> userValues = mValues.get(userId);
+                if (userValues == null) {
+                    userValues = new ArrayMap<>();
+                    mValues.put(userId, userValues);
+                }
+                ArrayMap<String, Object> roleValues = userValues.get(roleName);
+                if (roleValues == null) {
+                    roleValues = new ArrayMap<>();
+                    userValues.put(roleName, roleValues);
+                }
+                roleValues.put(key, result != null ? result : NULL_VALUE);
+            }
+        }
+        return result;
+    }
+
+    private void registerListener(@UserIdInt int userId) throws RemoteException {
+        int state;
+        try {
+            mService.addOnRoleHoldersChangedListenerAsUser(mListener, userId);
+            state = USER_STATE_OBSERVED;
+        } catch (SecurityException e) {
+            Log.w(LOG_TAG, "Cannot observe role holders for user " + userId
+                    + ", not caching queries for it", e);
+            state = USER_STATE_NOT_OBSERVED;
+        } catch (RemoteException | RuntimeException e) {
+            synchronized (mLock) {
+                // Let a later query retry the registration.
+                mUserStates.delete(userId);
+            }
+            throw e;
+        }
+
+        boolean closed;
+        synchronized (mLock) {
+            closed = mClosed;
+            if (!closed) {
+                mUserStates.put(userId, state);
+            }
+        }
+        if (closed && state == USER_STATE_OBSERVED) {
+            // The cache was closed while registering, so nobody else will unregister it.
+            mService.removeOnRoleHoldersChangedListenerAsUser(mListener, userId);
+        }
+    }
+
+    /**
+     * Drop the cached results for a role.
+     *
+     * @param roleName the name of the role
+     * @param userId the user id
+     */
+    void invalidate(@NonNull String roleName, @UserIdInt int userId) {
+        synchronized (mLock) {
+            mGeneration++;
+            ArrayMap<String, ArrayMap<String, Object>> userValues = mValues.get(userId);
+            if (userValues != null) {
+                userValues.remove(roleName);
+            }
+        }
+    }
+
+    /**
+     * Drop the cached results for all roles of a user.
+     *
+     * @param userId the user id
+     */
+    void invalidateUser(@UserIdInt int userId) {
+        synchronized (mLock) {
+            mGeneration++;
+            mValues.remove(userId);
+        }
+    }
+
+    /**
+     * Drop all cached results and stop observing role holder changes.
+     * <p>
+     * Queries made after this call aren't cached.
+     */
+    void close() throws RemoteException {
+        SparseIntArray userStates;
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mGeneration++;
+            mValues.clear();
+            userStates = mUserStates.clone();
+            mUserStates.clear();
+        }
+        RemoteException exception = null;
+        int userStatesSize = userStates.size();
+        for (int i = 0; i < userStatesSize; i++) {
+            if (userStates.valueAt(i) != USER_STATE_OBSERVED) {
+                continue;
+            }
+            try {
+                mService.removeOnRoleHoldersChangedListenerAsUser(mListener,
+                        userStates.keyAt(i));
+            } catch (RemoteException e) {
+                exception = e;
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * A role holder query.
+     *
+     * @param <T> the type of the result
+     */
+    interface Query<T> {
+
+        /**
+         * Run this query against the role service.
+         *
+         * @return the result of the query
+         */
+        @Nullable
+        T run() throws RemoteException;
+    }
+}
@@ -42,6 +42,7 @@ import androidx.annotation.RequiresApi;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.Preconditions;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.Executor;
@@ -193,6 +194,23 @@ public final class RoleManager {
     public static final String PERMISSION_MANAGE_ROLES_FROM_CONTROLLER =
             "com.android.permissioncontroller.permission.MANAGE_ROLES_FROM_CONTROLLER";
 
+    private static final String CACHE_KEY_ROLE_HOLDERS = "getRoleHolders";
+
+    private static final String CACHE_KEY_IS_ROLE_HELD_PREFIX = "isRoleHeld:";
+
+    private static final String CACHE_KEY_BROWSER_ROLE_HOLDER = "getBrowserRoleHolder";
+
+    private static final String CACHE_KEY_SMS_ROLE_HOLDER = "getSmsRoleHolder";
+
+    @NonNull
+    private static final Object sRoleHoldersCacheLock = new Object();
+
+    /**
+     * The per-process role holders cache, or {@code null} if it isn't enabled.
+     */
+    @Nullable
+    private static volatile RoleHoldersCache sRoleHoldersCache;
+
     @NonNull
     private final Context mContext;
 
@@ -272,7 +290,11 @@ public final class RoleManager {
     public boolean isRoleHeld(@NonNull String roleName) {
         Preconditions.checkStringNotEmpty(roleName, "roleName cannot be null or empty");
         try {
-            return mService.isRoleHeld(roleName, mContext.getPackageName());
+            String packageName = mContext.getPackageName();
+            Boolean roleHeld = queryRoleHolders(roleName, Process.myUserHandle().getIdentifier(),
+                    CACHE_KEY_IS_ROLE_HELD_PREFIX + packageName,
+                    () -> mService.isRoleHeld(roleName, packageName));
+            return roleHeld != null && roleHeld;
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -324,7 +346,11 @@ public final class RoleManager {
         Preconditions.checkStringNotEmpty(roleName, "roleName cannot be null or empty");
         Objects.requireNonNull(user, "user cannot be null");
         try {
-            return mService.getRoleHoldersAsUser(roleName, user.getIdentifier());
+            int userId = user.getIdentifier();
+            List<String> roleHolders = queryRoleHolders(roleName, userId, CACHE_KEY_ROLE_HOLDERS,
+                    () -> mService.getRoleHoldersAsUser(roleName, userId));
+            // The cached list is shared, so never return it to callers who may modify it.
+            return sRoleHoldersCache != null ? new ArrayList<>(roleHolders) : roleHolders;
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -363,7 +389,7 @@ public final class RoleManager {
         Objects.requireNonNull(callback, "callback cannot be null");
         try {
             mService.addRoleHolderAsUser(roleName, packageName, flags, user.getIdentifier(),
-                    createRemoteCallback(executor, callback));
+                    createRemoteCallback(roleName, user.getIdentifier(), executor, callback));
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -401,7 +427,7 @@ public final class RoleManager {
         Objects.requireNonNull(callback, "callback cannot be null");
         try {
             mService.removeRoleHolderAsUser(roleName, packageName, flags, user.getIdentifier(),
-                    createRemoteCallback(executor, callback));
+                    createRemoteCallback(roleName, user.getIdentifier(), executor, callback));
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -437,24 +463,30 @@ public final class RoleManager {
         Objects.requireNonNull(callback, "callback cannot be null");
         try {
             mService.clearRoleHoldersAsUser(roleName, flags, user.getIdentifier(),
-                    createRemoteCallback(executor, callback));
+                    createRemoteCallback(roleName, user.getIdentifier(), executor, callback));
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
     }
 
     @NonNull
-    private static RemoteCallback createRemoteCallback(@NonNull Executor executor,
+    private static RemoteCallback createRemoteCallback(@NonNull String roleName,
+            @UserIdInt int userId, @NonNull Executor executor,
             @NonNull Consumer<Boolean> callback) {
-        return new RemoteCallback(result -> executor.execute(() -> {
-            boolean successful = result != null;
-            final long token = Binder.clearCallingIdentity();
-            try {
-                callback.accept(successful);
-            } finally {
-                Binder.restoreCallingIdentity(token);
-            }
-        }));
+        return new RemoteCallback(result -> {
+            // Invalidate before the callback runs, so that the caller can't read stale holders
+            // once it's notified of completion.
+            invalidateRoleHoldersCache(roleName, userId);
+            executor.execute(() -> {
+                boolean successful = result != null;
+                final long token = Binder.clearCallingIdentity();
+                try {
+                    callback.accept(successful);
+                } finally {
+                    Binder.restoreCallingIdentity(token);
+                }
+            });
+        });
     }
 
     /**
@@ -614,6 +646,10 @@ public final class RoleManager {
         Objects.requireNonNull(roleNames, "roleNames cannot be null");
         try {
             mService.setRoleNamesFromController(roleNames);
+            RoleHoldersCache roleHoldersCache = sRoleHoldersCache;
+            if (roleHoldersCache != null) {
+                roleHoldersCache.invalidateUser(Process.myUserHandle().getIdentifier());
+            }
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -649,7 +685,9 @@ public final class RoleManager {
         Preconditions.checkStringNotEmpty(roleName, "roleName cannot be null or empty");
         Preconditions.checkStringNotEmpty(packageName, "packageName cannot be null or empty");
         try {
-            return mService.addRoleHolderFromController(roleName, packageName);
+            boolean successful = mService.addRoleHolderFromController(roleName, packageName);
+            invalidateRoleHoldersCache(roleName, Process.myUserHandle().getIdentifier());
+            return successful;
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -685,7 +723,9 @@ public final class RoleManager {
         Preconditions.checkStringNotEmpty(roleName, "roleName cannot be null or empty");
         Preconditions.checkStringNotEmpty(packageName, "packageName cannot be null or empty");
         try {
-            return mService.removeRoleHolderFromController(roleName, packageName);
+            boolean successful = mService.removeRoleHolderFromController(roleName, packageName);
+            invalidateRoleHoldersCache(roleName, Process.myUserHandle().getIdentifier());
+            return successful;
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -730,7 +770,8 @@ public final class RoleManager {
     @SystemApi(client = SystemApi.Client.MODULE_LIBRARIES)
     public String getBrowserRoleHolder(@UserIdInt int userId) {
         try {
-            return mService.getBrowserRoleHolder(userId);
+            return queryRoleHolders(ROLE_BROWSER, userId, CACHE_KEY_BROWSER_ROLE_HOLDER,
+                    () -> mService.getBrowserRoleHolder(userId));
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -754,7 +795,9 @@ public final class RoleManager {
     @SystemApi(client = SystemApi.Client.MODULE_LIBRARIES)
     public boolean setBrowserRoleHolder(@Nullable String packageName, @UserIdInt int userId) {
         try {
-            return mService.setBrowserRoleHolder(packageName, userId);
+            boolean successful = mService.setBrowserRoleHolder(packageName, userId);
+            invalidateRoleHoldersCache(ROLE_BROWSER, userId);
+            return successful;
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -775,12 +818,86 @@ public final class RoleManager {
     @SystemApi(client = SystemApi.Client.MODULE_LIBRARIES)
     public String getSmsRoleHolder(@UserIdInt int userId) {
         try {
-            return mService.getSmsRoleHolder(userId);
+            return queryRoleHolders(ROLE_SMS, userId, CACHE_KEY_SMS_ROLE_HOLDER,
+                    () -> mService.getSmsRoleHolder(userId));
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
     }
 
+    /**
+     * Enable a per-process cache for the results of {@link #isRoleHeld(String)},
+     * {@link #getRoleHoldersAsUser(String, UserHandle)}, {@link #getBrowserRoleHolder(int)} and
+     * {@link #getSmsRoleHolder(int)}, to avoid an IPC for every call.
+     * <p>
+     * The cached results for a role are dropped when its holders change. Changes made through
+     * this process are visible as soon as the call making them returns or its callback is invoked,
+     * while changes made by other processes are visible once they are delivered to this process,
+     * as for {@link OnRoleHoldersChangedListener}.
+     * <p>
+     * <strong>Note:</strong> Using this API requires holding
+     * {@code android.permission.OBSERVE_ROLE_HOLDERS}, and queries for a user other than the
+     * current user are only cached when holding
+     * {@code android.permission.INTERACT_ACROSS_USERS_FULL}.
+     *
+     * @hide
+     */
+    @RequiresApi(Build.VERSION_CODES.TIRAMISU)
+    @RequiresPermission(Manifest.permission.OBSERVE_ROLE_HOLDERS)
+    @SystemApi(client = SystemApi.Client.MODULE_LIBRARIES)
+    public void enableRoleHoldersCache() {
+        mContext.enforceCallingOrSelfPermission(Manifest.permission.OBSERVE_ROLE_HOLDERS,
+                "enableRoleHoldersCache");
+        synchronized (sRoleHoldersCacheLock) {
+            if (sRoleHoldersCache == null) {
+                sRoleHoldersCache = new RoleHoldersCache(mService);
+            }
+        }
+    }
+
+    /**
+     * Disable the per-process role holders cache enabled by {@link #enableRoleHoldersCache()},
+     * dropping its results and unregistering the listeners it registered.
+     *
+     * @hide
+     */
+    @RequiresApi(Build.VERSION_CODES.TIRAMISU)
+    @SystemApi(client = SystemApi.Client.MODULE_LIBRARIES)
+    public void disableRoleHoldersCache() {
+        RoleHoldersCache roleHoldersCache;
+        synchronized (sRoleHoldersCacheLock) {
+            roleHoldersCache = sRoleHoldersCache;
+            sRoleHoldersCache = null;
+        }
+        if (roleHoldersCache == null) {
+            return;
+        }
+        try {
+            roleHoldersCache.close();
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
+    @Nullable
+    private static <T> T queryRoleHolders(@NonNull String roleName, @UserIdInt int userId,
+            @NonNull String key, @NonNull RoleHoldersCache.Query<T> query)
+            throws RemoteException {
+        RoleHoldersCache roleHoldersCache = sRoleHoldersCache;
+        if (roleHoldersCache == null) {
+            return query.run();
+        }
+        return roleHoldersCache.get(roleName, userId, key, query);
+    }
+
+    private static void invalidateRoleHoldersCache(@NonNull String roleName,
+            @UserIdInt int userId) {
+        RoleHoldersCache roleHoldersCache = sRoleHoldersCache;
+        if (roleHoldersCache != null) {
+            roleHoldersCache.invalidate(roleName, userId);
+        }
+    }
+
     /**
      * Check whether a role should be visible to user.
      *
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.safetycenter;
+
+import static android.os.Build.VERSION_CODES.TIRAMISU;
+
+import static java.util.Collections.unmodifiableList;
+import static java.util.Objects.requireNonNull;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.util.ArrayMap;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The changes between two versions of the {@link SafetyCenterData} of a user, so that listeners
+ * don't need to receive the whole {@link SafetyCenterData} on every update.
+ *
+ * <p>A delta only carries the {@link SafetyCenterStatus}, entries and static entries if they
+ * changed, and the issues that were added or changed along with the ids of all the current issues.
+ * A delta with a base version of {@link #NO_VERSION} is a snapshot of the whole {@link
+ * SafetyCenterData}.
+ *
+ * @hide
+ */
+@RequiresApi(TIRAMISU)
+public final class SafetyCenterDataDelta implements Parcelable {
+
+    /** The base version of a delta which is a snapshot of the whole {@link SafetyCenterData}. */
+    public static final long NO_VERSION = -1;
+
+    @NonNull
+    public static final Creator<SafetyCenterDataDelta> CREATOR =
+            new Creator<SafetyCenterDataDelta>() {
+                @Override
+                public SafetyCenterDataDelta createFromParcel(Parcel in) {
+                    long baseVersion = in.readLong();
+                    long version = in.readLong();
+                    SafetyCenterStatus status = in.readTypedObject(SafetyCenterStatus.CREATOR);
+                    List<String> issueIds = in.createStringArrayList();
+                    List<SafetyCenterIssue> changedIssues =
+                            in.createTypedArrayList(SafetyCenterIssue.CREATOR);
+                    List<SafetyCenterEntryOrGroup> entriesOrGroups =
+                            in.createTypedArrayList(SafetyCenterEntryOrGroup.CREATOR);
+                    List<SafetyCenterStaticEntryGroup> staticEntryGroups =
+                            in.createTypedArrayList(SafetyCenterStaticEntryGroup.CREATOR);
+                    return new SafetyCenterDataDelta(
+                            baseVersion,
+                            version,
+                            status,
+                            issueIds,
+                            changedIssues,
+                            entriesOrGroups,
+                            staticEntryGroups);
+                }
+
+                @Override
+                public SafetyCenterDataDelta[] newArray(int size) {
+                    return new SafetyCenterDataDelta[size];
+                }
+            };
+
+    private final long mBaseVersion;
+    private final long mVersion;
+
+    /** The new {@link SafetyCenterStatus}, or {@code null} if it didn't change. */
+    @Nullable private final SafetyCenterStatus mStatus;
+
+    /** The ids of all the current issues in order, or {@code null} if the issues didn't change. */
+    @Nullable private final List<String> mIssueIds;
+
+    /** The issues that were added or changed since the base version. */
+    @NonNull private final List<SafetyCenterIssue> mChangedIssues;
+
+    /** The new entries or groups, or {@code null} if they didn't change. */
+    @Nullable private final List<SafetyCenterEntryOrGroup> mEntriesOrGroups;
+
+    /** The new static entry groups, or {@code null} if they didn't change. */
+    @Nullable private final List<SafetyCenterStaticEntryGroup> mStaticEntryGroups;
+
+    private SafetyCenterDataDelta(
+            long baseVersion,
+            long version,
+            @Nullable SafetyCenterStatus status,
+            @Nullable List<String> issueIds,
+            @NonNull List<SafetyCenterIssue> changedIssues,
+            @Nullable List<SafetyCenterEntryOrGroup> entriesOrGroups,
+            @Nullable List<SafetyCenterStaticEntryGroup> staticEntryGroups) {
+        mBaseVersion = baseVersion;
+        mVersion = version;
+        mStatus = status;
+        mIssueIds = issueIds != null ? unmodifiableList(new ArrayList<>(issueIds)) : null;
+        mChangedIssues = unmodifiableList(new ArrayList<>(requireNonNull(changedIssues)));
+        mEntriesOrGroups =
+                entriesOrGroups != null ? unmodifiableList(new ArrayList<>(entriesOrGroups)) : null;
+        mStaticEntryGroups =
+                staticEntryGroups != null
+                        ? unmodifiableList(new ArrayList<>(staticEntryGroups))
+                        : null;
+    }
+
+    /**
+     * Creates a {@link SafetyCenterDataDelta} which is a snapshot of the given {@link
+     * SafetyCenterData} at the given {@code version}.
+     */
+    @NonNull
+    public static SafetyCenterDataDelta snapshot(
+            @NonNull SafetyCenterData safetyCenterData, long version) {
+        List<SafetyCenterIssue> issues = safetyCenterData.getIssues();
+        List<String> issueIds = new ArrayList<>(issues.size());
+        for (int i = 0; i < issues.size(); i++) {
+            issueIds.add(issues.get(i).getId());
+        }
+        return new SafetyCenterDataDelta(
+                NO_VERSION,
+                version,
+                safetyCenterData.getStatus(),
+                issueIds,
+                issues,
+                safetyCenterData.getEntriesOrGroups(),
+                safetyCenterData.getStaticEntryGroups());
+    }
+
+    /**
+     * Creates a {@link SafetyCenterDataDelta} from the given {@code baseSafetyCenterData} at the
+     * given {@code baseVersion} to the given {@code safetyCenterData} at the given {@code version}.
+     *
+     * <p>Returns a snapshot if there is no base {@link SafetyCenterData}, or if the issue ids of
+     * either {@link SafetyCenterData} aren't unique.
+     */
+    @NonNull
+    public static SafetyCenterDataDelta between(
+            @Nullable SafetyCenterData baseSafetyCenterData,
+            long baseVersion,
+            @NonNull SafetyCenterData safetyCenterData,
+            long version) {
+        if (baseSafetyCenterData == null) {
+            return snapshot(safetyCenterData, version);
+        }
+        ArrayMap<String, SafetyCenterIssue> baseIssuesById =
+                toIssuesById(baseSafetyCenterData.getIssues());
+        if (baseIssuesById == null || toIssuesById(safetyCenterData.getIssues()) == null) {
+            return snapshot(safetyCenterData, version);
+        }
+
+        List<String> issueIds = null;
+        List<SafetyCenterIssue> changedIssues = new ArrayList<>();
+        if (!baseSafetyCenterData.getIssues().equals(safetyCenterData.getIssues())) {
+            List<SafetyCenterIssue> issues = safetyCenterData.getIssues();
+            issueIds = new ArrayList<>(issues.size());
+            for (int i = 0; i < issues.size(); i++) {
+                SafetyCenterIssue issue = issues.get(i);
+                issueIds.add(issue.getId());
+                if (!issue.equals(baseIssuesById.get(issue.getId()))) {
+                    changedIssues.add(issue);
+                }
+            }
+        }
+        return new SafetyCenterDataDelta(
+                baseVersion,
+                version,
+                ifChanged(baseSafetyCenterData.getStatus(), safetyCenterData.getStatus()),
+                issueIds,
+                changedIssues,
+                ifChanged(
+                        baseSafetyCenterData.getEntriesOrGroups(),
+                        safetyCenterData.getEntriesOrGroups()),
+                ifChanged(
+                        baseSafetyCenterData.getStaticEntryGroups(),
+                        safetyCenterData.getStaticEntryGroups()));
+    }
+
+    /** Returns the version this delta applies to, or {@link #NO_VERSION} for a snapshot. */
+    public long getBaseVersion() {
+        return mBaseVersion;
+    }
+
+    /** Returns the version of the {@link SafetyCenterData} resulting from this delta. */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Applies this delta to the given {@code baseSafetyCenterData} at the given {@code
+     * baseVersion}, and returns the resulting {@link SafetyCenterData}.
+     *
+     * <p>Returns {@code null} if this delta doesn't apply to the given version, in which case the
+     * whole {@link SafetyCenterData} must be fetched again.
+     */
+    @Nullable
+    public SafetyCenterData applyTo(
+            @Nullable SafetyCenterData baseSafetyCenterData, long baseVersion) {
+        if (mBaseVersion == NO_VERSION) {
+            return new SafetyCenterData(
+                    requireNonNull(mStatus),
+                    mChangedIssues,
+                    requireNonNull(mEntriesOrGroups),
+                    requireNonNull(mStaticEntryGroups));
+        }
+        if (baseSafetyCenterData == null || baseVersion != mBaseVersion) {
+            return null;
+        }
+
+        List<SafetyCenterIssue> issues = baseSafetyCenterData.getIssues();
+        if (mIssueIds != null) {
+            ArrayMap<String, SafetyCenterIssue> issuesById = toIssuesById(issues);
+            if (issuesById == null) {
+                return null;
+            }
+            for (int i = 0; i < mChangedIssues.size(); i++) {
+                SafetyCenterIssue changedIssue = mChangedIssues.get(i);
+                issuesById.put(changedIssue.getId(), changedIssue);
+            }
+            issues = new ArrayList<>(mIssueIds.size());
+            for (int i = 0; i < mIssueIds.size(); i++) {
+                SafetyCenterIssue issue = issuesById.get(mIssueIds.get(i));
+                if (issue == null) {
+                    return null;
+                }
+                issues.add(issue);
+            }
+        }
+        return new SafetyCenterData(
+                mStatus != null ? mStatus : baseSafetyCenterData.getStatus(),
+                issues,
+                mEntriesOrGroups != null
+                        ? mEntriesOrGroups
+                        : baseSafetyCenterData.getEntriesOrGroups(),
+                mStaticEntryGroups != null
+                        ? mStaticEntryGroups
+                        : baseSafetyCenterData.getStaticEntryGroups());
+    }
+
+    @Nullable
+    private static <T> T ifChanged(@NonNull T base, @NonNull T value) {
+        return base.equals(value) ? null : value;
+    }
+
+    /** Returns the given issues by id, or {@code null} if their ids aren't unique. */
+    @Nullable
+    private static ArrayMap<String, SafetyCenterIssue> toIssuesById(
+            @NonNull List<SafetyCenterIssue> issues) {
+        ArrayMap<String, SafetyCenterIssue> issuesById = new ArrayMap<>(issues.size());
+        for (int i = 0; i < issues.size(); i++) {
+            SafetyCenterIssue issue = issues.get(i);
+            if (issuesById.put(issue.getId(), issue) != null) {
+                return null;
+            }
+        }
+        return issuesById;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SafetyCenterDataDelta)) return false;
+        SafetyCenterDataDelta that = (SafetyCenterDataDelta) o;
+        return mBaseVersion == that.mBaseVersion
+                && mVersion == that.mVersion
+                && Objects.equals(mStatus, that.mStatus)
+                && Objects.equals(mIssueIds, that.mIssueIds)
+                && Objects.equals(mChangedIssues, that.mChangedIssues)
+                && Objects.equals(mEntriesOrGroups, that.mEntriesOrGroups)
+                && Objects.equals(mStaticEntryGroups, that.mStaticEntryGroups);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(
+                mBaseVersion,
+                mVersion,
+                mStatus,
+                mIssueIds,
+                mChangedIssues,
+                mEntriesOrGroups,
+                mStaticEntryGroups);
+    }
+
+    @Override
+    public String toString() {
+        return "SafetyCenterDataDelta{"
+                + "mBaseVersion="
+                + mBaseVersion
+                + ", mVersion="
+                + mVersion
+                + ", mStatus="
+                + mStatus
+                + ", mIssueIds="
+                + mIssueIds
+                + ", mChangedIssues="
+                + mChangedIssues
+                + ", mEntriesOrGroups="
+                + mEntriesOrGroups
+                + ", mStaticEntryGroups="
+                + mStaticEntryGroups
+                + '}';
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(@NonNull Parcel dest, int flags) {
+        dest.writeLong(mBaseVersion);
+        dest.writeLong(mVersion);
+        dest.writeTypedObject(mStatus, flags);
+        dest.writeStringList(mIssueIds);
+        dest.writeTypedList(mChangedIssues);
+        dest.writeTypedList(mEntriesOrGroups);
+        dest.writeTypedList(mStaticEntryGroups);
+    }
+}
@@ -343,6 +343,9 @@ public final class SafetyCenterManager {
      *     {@code null}, in which case Safety Center will fall back to any placeholder data
      *     specified in the safety source xml configuration.
      * @param safetyEvent the event that triggered the safety source to set safety data
+     * @throws IllegalArgumentException if {@code safetySourceData} has more issues or is larger
+     *     than Safety Center allows for a single safety source, in which case the data previously
+     *     set is kept
      */
     @RequiresPermission(SEND_SAFETY_CENTER_UPDATE)
     public void setSafetySourceData(
@@ -469,10 +472,12 @@ public final class SafetyCenterManager {
         synchronized (mListenersLock) {
             if (mListenersToDelegates.containsKey(listener)) return;
 
-            ListenerDelegate delegate = new ListenerDelegate(executor, listener);
+            int userId = mContext.getUser().getIdentifier();
+            ListenerDelegate delegate = new ListenerDelegate(executor, listener, mService, userId);
             try {
-                mService.addOnSafetyCenterDataChangedListener(
-                        delegate, mContext.getUser().getIdentifier());
+                // Only the changes to the SafetyCenterData are sent to the delegate, which
+                // reassembles the whole SafetyCenterData for the listener.
+                mService.addOnSafetyCenterDataDeltaListener(delegate, userId);
             } catch (RemoteException e) {
                 throw e.rethrowFromSystemServer();
             }
@@ -605,14 +610,34 @@ public final class SafetyCenterManager {
     private static final class ListenerDelegate extends IOnSafetyCenterDataChangedListener.Stub {
         @NonNull private final Executor mExecutor;
         @NonNull private final OnSafetyCenterDataChangedListener mOriginalListener;
+        @NonNull private final ISafetyCenterManager mService;
+        private final int mUserId;
 
         private volatile boolean mRemoved = false;
 
+        private final Object mDeltaLock = new Object();
+
+        /** The last {@link SafetyCenterData} received, to apply deltas to. */
+        @GuardedBy("mDeltaLock")
+        @Nullable
+        private SafetyCenterData mSafetyCenterData;
+
+        @GuardedBy("mDeltaLock")
+        private long mVersion = SafetyCenterDataDelta.NO_VERSION;
+
+        /** Whether a snapshot was requested and not received yet. */
+        @GuardedBy("mDeltaLock")
+        private boolean mSnapshotRequested = false;
+
         private ListenerDelegate(
                 @NonNull Executor executor,
-                @NonNull OnSafetyCenterDataChangedListener originalListener) {
+                @NonNull OnSafetyCenterDataChangedListener originalListener,
+                @NonNull ISafetyCenterManager service,
+                int userId) {
             mExecutor = executor;
             mOriginalListener = originalListener;
+            mService = service;
+            mUserId = userId;
         }
 
         @Override
@@ -637,6 +662,42 @@ public final class SafetyCenterManager {
             }
         }
 
+        @Override
+        public void onSafetyCenterDataDelta(@NonNull SafetyCenterDataDelta delta) {
+            requireNonNull(delta, "delta cannot be null");
+
+            SafetyCenterData safetyCenterData;
+            boolean requestSnapshot = false;
+            synchronized (mDeltaLock) {
+                safetyCenterData = delta.applyTo(mSafetyCenterData, mVersion);
+                if (safetyCenterData != null) {
+                    mSafetyCenterData = safetyCenterData;
+                    mVersion = delta.getVersion();
+                    if (delta.getBaseVersion() == SafetyCenterDataDelta.NO_VERSION) {
+                        mSnapshotRequested = false;
+                    }
+                } else {
+                    // The delta doesn't apply to the last version received, so drop it along with
+                    // the deltas that follow until a snapshot arrives, as it carries its version.
+                    mSafetyCenterData = null;
+                    mVersion = SafetyCenterDataDelta.NO_VERSION;
+                    requestSnapshot = !mSnapshotRequested;
+                    mSnapshotRequested = true;
+                }
+            }
+            if (safetyCenterData != null) {
+                onSafetyCenterDataChanged(safetyCenterData);
+                return;
+            }
+            if (requestSnapshot && !mRemoved) {
+                try {
+                    mService.requestSafetyCenterDataSnapshot(this, mUserId);
+                } catch (RemoteException e) {
+                    throw e.rethrowFromSystemServer();
+                }
+            }
+        }
+
         @Override
         public void onError(@NonNull SafetyCenterErrorDetails safetyCenterErrorDetails) {
             requireNonNull(safetyCenterErrorDetails, "safetyCenterErrorDetails cannot be null");
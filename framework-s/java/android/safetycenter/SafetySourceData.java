@@ -172,6 +172,12 @@ public final class SafetySourceData implements Parcelable {
     @Nullable private final SafetySourceStatus mStatus;
     @NonNull private final List<SafetySourceIssue> mIssues;
 
+    /**
+     * The cached hash code of this immutable object, or {@code 0} if not computed yet. Racing
+     * threads may both compute it, which is benign as they compute the same value.
+     */
+    private int mHashCode;
+
     private SafetySourceData(
             @Nullable SafetySourceStatus status, @NonNull List<SafetySourceIssue> issues) {
         this.mStatus = status;
@@ -211,7 +217,12 @@ public final class SafetySourceData implements Parcelable {
 
     @Override
     public int hashCode() {
-        return Objects.hash(mStatus, mIssues);
+        int hashCode = mHashCode;
+        if (hashCode == 0) {
+            hashCode = Objects.hash(mStatus, mIssues);
+            mHashCode = hashCode;
+        }
+        return hashCode;
     }
 
     @Override
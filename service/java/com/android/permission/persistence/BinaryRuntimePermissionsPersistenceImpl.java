@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permission.persistence;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.ApexEnvironment;
+import android.os.UserHandle;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.modules.utils.BackgroundThread;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+
+/**
+ * Binary persistence implementation for runtime permissions.
+ * <p>
+ * Runtime permissions are stored in {@code runtime-permissions.bin} using
+ * {@link RuntimePermissionsBinaryFormat}. If only the legacy {@code runtime-permissions.xml} exists
+ * for a user, it is read through {@link RuntimePermissionsPersistenceImpl} and rewritten in the
+ * binary format.
+ * <p>
+ * The XML file is kept after the migration, so that a module rolled back to a version without the
+ * binary format still finds the runtime permissions as of the migration. Every snapshot records the
+ * last modified time and size of the XML file when it was written, so if a rolled back version
+ * writes the XML file, it no longer matches and is migrated again after rolling forward. Only
+ * comparing against what was recorded, rather than comparing the times of the two files, keeps a
+ * clock moving backward from making the XML file look newer. The XML file is only deleted along
+ * with the binary file.
+ * <p>
+ * Small changes since the last read or write are appended to {@code runtime-permissions.journal}
+ * using {@link RuntimePermissionsJournal} instead of rewriting the whole file, and the journal is
+ * compacted into a new snapshot in the background once it grows past a threshold. Every snapshot is
+ * written with a generation one above the previous one, and journal records carry the generation
+ * of the snapshot they apply to, so that a journal left behind by a crash after writing a new
+ * snapshot is not replayed on top of it.
+ *
+ * @hide
+ */
+public class BinaryRuntimePermissionsPersistenceImpl implements RuntimePermissionsPersistence {
+
+    private static final String LOG_TAG =
+            BinaryRuntimePermissionsPersistenceImpl.class.getSimpleName();
+
+    private static final String APEX_MODULE_NAME = "com.android.permission";
+
+    private static final String RUNTIME_PERMISSIONS_FILE_NAME = "runtime-permissions.bin";
+
+    private static final String JOURNAL_FILE_NAME = "runtime-permissions.journal";
+
+    /**
+     * The maximum number of operations in a single journal record, above which a full snapshot is
+     * written instead.
+     */
+    private static final int MAX_JOURNAL_RECORD_OPERATIONS = 32;
+
+    /**
+     * The number of journal records above which the journal is compacted.
+     */
+    private static final int MAX_JOURNAL_RECORDS = 256;
+
+    /**
+     * The journal size in bytes above which the journal is compacted.
+     */
+    private static final int MAX_JOURNAL_BYTES = 64 * 1024;
+
+    @NonNull
+    private final RuntimePermissionsPersistenceImpl mXmlPersistence =
+            new RuntimePermissionsPersistenceImpl();
+
+    @NonNull
+    private final Object mLock = new Object();
+
+    /**
+     * The journal state for each user whose persisted runtime permissions state is known.
+     */
+    @GuardedBy("mLock")
+    @NonNull
+    private final SparseArray<JournalState> mJournalStates = new SparseArray<>();
+
+    @Nullable
+    @Override
+    public RuntimePermissionsState readForUser(@NonNull UserHandle user) {
+        synchronized (mLock) {
+            return readForUserLocked(user, false);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If there are pending journal records, they are replayed on top of the snapshot which decodes
+     * it entirely.
+     */
+    @Nullable
+    @Override
+    public RuntimePermissionsState readLazilyForUser(@NonNull UserHandle user) {
+        synchronized (mLock) {
+            return readForUserLocked(user, true);
+        }
+    }
+
+    @GuardedBy("mLock")
+    @Nullable
+    private RuntimePermissionsState readForUserLocked(@NonNull UserHandle user, boolean lazy) {
+        int userId = user.getIdentifier();
+        mJournalStates.remove(userId);
+        Snapshot snapshot = readSnapshot(user, lazy);
+        File journalFile = getJournalFile(user);
+        if (snapshot == null) {
+            journalFile.delete();
+            return null;
+        }
+
+        byte[] journal;
+        try {
+            journal = Files.readAllBytes(journalFile.toPath());
+        } catch (NoSuchFileException e) {
+            mJournalStates.put(userId, new JournalState(snapshot.mRuntimePermissions,
+                    snapshot.mGeneration));
+            return snapshot.mRuntimePermissions;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read runtime-permissions.journal, ignoring: " + journalFile,
+                    e);
+            JournalState journalState = new JournalState(snapshot.mRuntimePermissions,
+                    snapshot.mGeneration);
+            mJournalStates.put(userId, journalState);
+            compactLocked(user, journalState);
+            return snapshot.mRuntimePermissions;
+        }
+
+        RuntimePermissionsJournal.Replay replay = RuntimePermissionsJournal.replay(
+                snapshot.mRuntimePermissions, snapshot.mGeneration, journal);
+        RuntimePermissionsState runtimePermissions = replay.getState();
+        JournalState journalState = new JournalState(runtimePermissions, snapshot.mGeneration);
+        journalState.mRecordCount = replay.getRecordCount();
+        journalState.mByteCount = replay.getValidLength();
+        mJournalStates.put(userId, journalState);
+        if (replay.getValidLength() < journal.length) {
+            // Appending after a torn record would make later records unreachable, so compact
+            // right away.
+            Log.w(LOG_TAG, "Discarded " + (journal.length - replay.getValidLength())
+                    + " bytes at the end of runtime-permissions.journal: " + journalFile);
+            compactLocked(user, journalState);
+        } else if (replay.getStaleRecordCount() > 0) {
+            // A crash happened after writing the snapshot but before deleting the journal.
+            Log.w(LOG_TAG, "Skipped " + replay.getStaleRecordCount()
+                    + " stale records in runtime-permissions.journal: " + journalFile);
+            compactLocked(user, journalState);
+        } else if (journalState.needsCompaction()) {
+            scheduleCompactionLocked(user, journalState);
+        }
+        return runtimePermissions;
+    }
+
+    @Nullable
+    private Snapshot readSnapshot(@NonNull UserHandle user, boolean lazy) {
+        File file = getFile(user);
+        long xmlLastModifiedTime = mXmlPersistence.getLastModifiedTime(user);
+        byte[] data;
+        try {
+            data = new AtomicFile(file).readFully();
+        } catch (FileNotFoundException e) {
+            if (xmlLastModifiedTime != 0) {
+                return migrateFromXml(user);
+            }
+            Log.i(LOG_TAG, "runtime-permissions.bin not found");
+            return null;
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read runtime-permissions.bin: " + file, e);
+        }
+        try {
+            if (xmlLastModifiedTime != 0 && !RuntimePermissionsBinaryFormat.isXmlFileUnchanged(
+                    data, xmlLastModifiedTime, mXmlPersistence.getFileSize(user))) {
+                // The module was rolled back and the XML file was written since.
+                return migrateFromXml(user);
+            }
+            return new Snapshot(RuntimePermissionsBinaryFormat.decode(data, lazy),
+                    RuntimePermissionsBinaryFormat.decodeGeneration(data));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to parse runtime-permissions.bin: " + file,
+                    e);
+        }
+    }
+
+    @Nullable
+    private Snapshot migrateFromXml(@NonNull UserHandle user) {
+        RuntimePermissionsState runtimePermissions = mXmlPersistence.readForUser(user);
+        if (runtimePermissions == null) {
+            return null;
+        }
+        // A journal left from before a rollback applies to the previous binary file, and is
+        // skipped because of the new generation.
+        long generation = readSnapshotGeneration(user) + 1;
+        if (writeSnapshot(runtimePermissions, generation, user)) {
+            Log.i(LOG_TAG, "Migrated runtime-permissions.xml to runtime-permissions.bin");
+            getJournalFile(user).delete();
+        }
+        return new Snapshot(runtimePermissions, generation);
+    }
+
+    /**
+     * Read the generation of the current snapshot, without decoding it.
+     *
+     * @return the generation of the snapshot, or {@code 0} if there is no valid snapshot
+     */
+    private static long readSnapshotGeneration(@NonNull UserHandle user) {
+        try {
+            return RuntimePermissionsBinaryFormat.decodeGeneration(
+                    new AtomicFile(getFile(user)).readFully());
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void writeForUser(@NonNull RuntimePermissionsState runtimePermissions,
+            @NonNull UserHandle user) {
+        synchronized (mLock) {
+            int userId = user.getIdentifier();
+            JournalState journalState = mJournalStates.get(userId);
+            if (journalState != null) {
+                byte[] record = RuntimePermissionsJournal.encodeRecord(
+                        journalState.mRuntimePermissions, runtimePermissions,
+                        MAX_JOURNAL_RECORD_OPERATIONS, journalState.mGeneration);
+                if (record != null && (record.length == 0 || appendToJournal(record, user))) {
+                    journalState.mRuntimePermissions = runtimePermissions;
+                    if (record.length > 0) {
+                        journalState.mRecordCount++;
+                        journalState.mByteCount += record.length;
+                        if (journalState.needsCompaction()) {
+                            scheduleCompactionLocked(user, journalState);
+                        }
+                    }
+                    return;
+                }
+            }
+
+            long generation = (journalState != null ? journalState.mGeneration
+                    : readSnapshotGeneration(user)) + 1;
+            if (writeSnapshot(runtimePermissions, generation, user)) {
+                getJournalFile(user).delete();
+                mJournalStates.put(userId, new JournalState(runtimePermissions, generation));
+            } else {
+                mJournalStates.remove(userId);
+            }
+        }
+    }
+
+    private static boolean appendToJournal(@NonNull byte[] record, @NonNull UserHandle user) {
+        File journalFile = getJournalFile(user);
+        try (FileOutputStream outputStream = new FileOutputStream(journalFile, true)) {
+            outputStream.write(record);
+            outputStream.getFD().sync();
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to append to runtime-permissions.journal, writing snapshot: "
+                    + journalFile, e);
+            return false;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void scheduleCompactionLocked(@NonNull UserHandle user,
+            @NonNull JournalState journalState) {
+        if (journalState.mCompactionScheduled) {
+            return;
+        }
+        journalState.mCompactionScheduled = true;
+        BackgroundThread.getHandler().post(() -> {
+            synchronized (mLock) {
+                if (mJournalStates.get(user.getIdentifier()) != journalState
+                        || !journalState.mCompactionScheduled) {
+                    return;
+                }
+                compactLocked(user, journalState);
+            }
+        });
+    }
+
+    @GuardedBy("mLock")
+    private void compactLocked(@NonNull UserHandle user, @NonNull JournalState journalState) {
+        journalState.mCompactionScheduled = false;
+        // The snapshot must be fully written before the journal is deleted, and the journal is
+        // skipped on top of the new snapshot because of its generation if we crash in between.
+        long generation = journalState.mGeneration + 1;
+        if (writeSnapshot(journalState.mRuntimePermissions, generation, user)) {
+            getJournalFile(user).delete();
+            journalState.mGeneration = generation;
+            journalState.mRecordCount = 0;
+            journalState.mByteCount = 0;
+        }
+    }
+
+    private boolean writeSnapshot(@NonNull RuntimePermissionsState runtimePermissions,
+            long generation, @NonNull UserHandle user) {
+        File file = getFile(user);
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream outputStream = null;
+        try {
+            byte[] data = RuntimePermissionsBinaryFormat.encode(runtimePermissions, generation,
+                    mXmlPersistence.getLastModifiedTime(user), mXmlPersistence.getFileSize(user));
+            outputStream = atomicFile.startWrite();
+            outputStream.write(data);
+            atomicFile.finishWrite(outputStream);
+            return true;
+        } catch (Exception e) {
+            Log.wtf(LOG_TAG, "Failed to write runtime-permissions.bin, restoring backup: " + file,
+                    e);
+            atomicFile.failWrite(outputStream);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(outputStream);
+        }
+    }
+
+    @Override
+    public void deleteForUser(@NonNull UserHandle user) {
+        synchronized (mLock) {
+            mJournalStates.remove(user.getIdentifier());
+            getJournalFile(user).delete();
+            getFile(user).delete();
+            mXmlPersistence.deleteForUser(user);
+        }
+    }
+
+    @NonNull
+    private static File getFile(@NonNull UserHandle user) {
+        return new File(getDataDirectory(user), RUNTIME_PERMISSIONS_FILE_NAME);
+    }
+
+    @NonNull
+    private static File getJournalFile(@NonNull UserHandle user) {
+        return new File(getDataDirectory(user), JOURNAL_FILE_NAME);
+    }
+
+    @NonNull
+    private static File getDataDirectory(@NonNull UserHandle user) {
+        ApexEnvironment apexEnvironment = ApexEnvironment.getApexEnvironment(APEX_MODULE_NAME);
+        return apexEnvironment.getDeviceProtectedDataDirForUser(user);
+    }
+
+    /**
+     * A runtime permissions state read from a snapshot, and the generation of the snapshot.
+     */
+    private static final class Snapshot {
+
+        @NonNull
+        final RuntimePermissionsState mRuntimePermissions;
+
+        final long mGeneration;
+
+        Snapshot(@NonNull RuntimePermissionsState runtimePermissions, long generation) {
+            mRuntimePermissions = runtimePermissions;
+            mGeneration = generation;
+        }
+    }
+
+    /**
+     * The persisted runtime permissions state of a user, and the state of its journal.
+     */
+    private static final class JournalState {
+
+        /**
+         * The runtime permissions state as persisted by the snapshot and the journal.
+         */
+        @NonNull
+        RuntimePermissionsState mRuntimePermissions;
+
+        /**
+         * The generation of the snapshot the journal applies to.
+         */
+        long mGeneration;
+
+        /**
+         * The number of records in the journal.
+         */
+        int mRecordCount;
+
+        /**
+         * The size of the journal in bytes.
+         */
+        int mByteCount;
+
+        /**
+         * Whether a compaction has been scheduled.
+         */
+        boolean mCompactionScheduled;
+
+        JournalState(@NonNull RuntimePermissionsState runtimePermissions, long generation) {
+            mRuntimePermissions = runtimePermissions;
+            mGeneration = generation;
+        }
+
+        boolean needsCompaction() {
+            return mRecordCount >= MAX_JOURNAL_RECORDS || mByteCount >= MAX_JOURNAL_BYTES;
+        }
+    }
+}
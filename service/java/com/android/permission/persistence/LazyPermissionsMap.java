@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permission.persistence;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.ArrayMap;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map of permissions by package or shared user name, whose values are decoded from
+ * their {@link RuntimePermissionsBinaryFormat} records when they are first accessed.
+ * <p>
+ * Looking up a name or iterating over the names doesn't decode anything, and decoded values are
+ * immutable so that concurrent first accesses may safely decode the same record twice.
+ */
+final class LazyPermissionsMap
+        extends AbstractMap<String, List<RuntimePermissionsState.PermissionState>> {
+
+    @NonNull
+    private final byte[] mData;
+
+    @NonNull
+    private final String[] mNames;
+
+    @NonNull
+    private final int[] mRecordOffsets;
+
+    @NonNull
+    private final int[] mRecordLengths;
+
+    @NonNull
+    private final String[] mStrings;
+
+    @NonNull
+    private final PermissionNamePool mNamePool;
+
+    @NonNull
+    private final ArrayMap<String, Integer> mIndices;
+
+    @NonNull
+    private final PackedPermissionStateList[] mValues;
+
+    LazyPermissionsMap(@NonNull byte[] data, @NonNull String[] names,
+            @NonNull int[] recordOffsets, @NonNull int[] recordLengths, @NonNull String[] strings,
+            @NonNull PermissionNamePool namePool) {
+        mData = data;
+        mNames = names;
+        mRecordOffsets = recordOffsets;
+        mRecordLengths = recordLengths;
+        mStrings = strings;
+        mNamePool = namePool;
+        mIndices = new ArrayMap<>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            mIndices.put(names[i], i);
+        }
+        mValues = new PackedPermissionStateList[names.length];
+    }
+
+    @Nullable
+    @Override
+    public List<RuntimePermissionsState.PermissionState> get(@Nullable Object key) {
+        Integer index = mIndices.get(key);
+        return index != null ? getValueAt(index) : null;
+    }
+
+    @Override
+    public boolean containsKey(@Nullable Object key) {
+        return mIndices.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return mNames.length;
+    }
+
+    @NonNull
+    @Override
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(mIndices.keySet());
+    }
+
+    @NonNull
+    @Override
+    public Set<Entry<String, List<RuntimePermissionsState.PermissionState>>> entrySet() {
+        return new AbstractSet<Entry<String, List<RuntimePermissionsState.PermissionState>>>() {
+            @NonNull
+            @Override
+            public Iterator<Entry<String, List<RuntimePermissionsState.PermissionState>>>
+                    iterator() {
+                return new Iterator<
+                        Entry<String, List<RuntimePermissionsState.PermissionState>>>() {
+                    private int mIndex;
+
+                    @Override
+                    public boolean hasNext() {
+                        return mIndex < mNames.length;
+                    }
+
+                    @NonNull
+                    @Override
+                    public Entry<String, List<RuntimePermissionsState.PermissionState>> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        int index = mIndex++;
+                        return new SimpleImmutableEntry<>(mNames[index], getValueAt(index));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return mNames.length;
+            }
+        };
+    }
+
+    @NonNull
+    private PackedPermissionStateList getValueAt(int index) {
+        PackedPermissionStateList value = mValues[index];
+        if (value == null) {
+            try {
+                value = RuntimePermissionsBinaryFormat.readPermissionsRecord(mData,
+                        mRecordOffsets[index], mRecordLengths[index], mStrings, mNamePool);
+            } catch (IOException e) {
+                // The whole file has already passed its checksum, so this shouldn't happen.
+                throw new IllegalStateException("Failed to decode permissions for "
+                        + mNames[index], e);
+            }
+            mValues[index] = value;
+        }
+        return value;
+    }
+}
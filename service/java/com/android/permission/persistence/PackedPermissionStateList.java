@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permission.persistence;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list of {@link RuntimePermissionsState.PermissionState} stored as flat parallel
+ * arrays.
+ * <p>
+ * Names are stored as indices into a {@link PermissionNamePool} shared by all the lists read from
+ * the same file, granted states as a bitset and flags as an {@code int} array.
+ * {@link RuntimePermissionsState.PermissionState} objects are only created when the list is
+ * accessed, at most once per index, and are immutable so that concurrent first accesses may safely
+ * create the same one twice.
+ */
+final class PackedPermissionStateList extends AbstractList<RuntimePermissionsState.PermissionState>
+        implements RandomAccess {
+
+    @NonNull
+    private final PermissionNamePool mNamePool;
+
+    @NonNull
+    private final int[] mNameIndices;
+
+    @NonNull
+    private final long[] mGranted;
+
+    @NonNull
+    private final int[] mFlags;
+
+    private final int mSize;
+
+    /**
+     * The {@link RuntimePermissionsState.PermissionState} created for each index so far, allocated
+     * on first access.
+     */
+    @Nullable
+    private RuntimePermissionsState.PermissionState[] mPermissionStates;
+
+    private PackedPermissionStateList(@NonNull PermissionNamePool namePool,
+            @NonNull int[] nameIndices, @NonNull long[] granted, @NonNull int[] flags, int size) {
+        mNamePool = namePool;
+        mNameIndices = nameIndices;
+        mGranted = granted;
+        mFlags = flags;
+        mSize = size;
+    }
+
+    @NonNull
+    @Override
+    public RuntimePermissionsState.PermissionState get(int index) {
+        checkIndex(index);
+        RuntimePermissionsState.PermissionState[] permissionStates = mPermissionStates;
+        if (permissionStates == null) {
+            permissionStates = new RuntimePermissionsState.PermissionState[mSize];
+            mPermissionStates = permissionStates;
+        }
+        RuntimePermissionsState.PermissionState permissionState = permissionStates[index];
+        if (permissionState == null) {
+            permissionState = new RuntimePermissionsState.PermissionState(
+                    mNamePool.get(mNameIndices[index]), isGranted(index), mFlags[index]);
+            permissionStates[index] = permissionState;
+        }
+        return permissionState;
+    }
+
+    /**
+     * Get the name of the permission at an index without creating a
+     * {@link RuntimePermissionsState.PermissionState}.
+     */
+    @NonNull
+    String getName(int index) {
+        checkIndex(index);
+        return mNamePool.get(mNameIndices[index]);
+    }
+
+    /**
+     * Get whether the permission at an index is granted without creating a
+     * {@link RuntimePermissionsState.PermissionState}.
+     */
+    boolean isGranted(int index) {
+        checkIndex(index);
+        return (mGranted[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Get the flags of the permission at an index without creating a
+     * {@link RuntimePermissionsState.PermissionState}.
+     */
+    int getFlags(int index) {
+        checkIndex(index);
+        return mFlags[index];
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + mSize);
+        }
+    }
+
+    /**
+     * Builder for {@link PackedPermissionStateList}, which may be reused to build several lists.
+     */
+    static final class Builder {
+
+        private static final int[] EMPTY_INT_ARRAY = new int[0];
+
+        private static final long[] EMPTY_LONG_ARRAY = new long[0];
+
+        @NonNull
+        private final PermissionNamePool mNamePool;
+
+        @NonNull
+        private int[] mNameIndices;
+
+        @NonNull
+        private long[] mGranted;
+
+        @NonNull
+        private int[] mFlags;
+
+        private int mSize;
+
+        /**
+         * Create a new builder.
+         *
+         * @param namePool the name pool for the permission names
+         * @param capacity the expected number of permissions
+         */
+        Builder(@NonNull PermissionNamePool namePool, int capacity) {
+            mNamePool = namePool;
+            mNameIndices = new int[capacity];
+            mGranted = new long[(capacity + 63) >>> 6];
+            mFlags = new int[capacity];
+        }
+
+        /**
+         * Add a permission whose name is already in the name pool.
+         *
+         * @param nameIndex the index of the permission name in the name pool
+         * @param granted whether the permission is granted
+         * @param flags the flags of the permission
+         */
+        void add(int nameIndex, boolean granted, int flags) {
+            if (mSize == mNameIndices.length) {
+                int capacity = mSize * 2 + 4;
+                mNameIndices = Arrays.copyOf(mNameIndices, capacity);
+                mGranted = Arrays.copyOf(mGranted, (capacity + 63) >>> 6);
+                mFlags = Arrays.copyOf(mFlags, capacity);
+            }
+            mNameIndices[mSize] = nameIndex;
+            if (granted) {
+                mGranted[mSize >>> 6] |= 1L << mSize;
+            }
+            mFlags[mSize] = flags;
+            mSize++;
+        }
+
+        /**
+         * Add a permission, interning its name in the name pool.
+         *
+         * @param name the name of the permission
+         * @param granted whether the permission is granted
+         * @param flags the flags of the permission
+         */
+        void add(@NonNull String name, boolean granted, int flags) {
+            add(mNamePool.intern(name), granted, flags);
+        }
+
+        /**
+         * Build the list, and reset this builder so that it can build another one.
+         * <p>
+         * The arrays of this builder are handed over to the list if they have exactly the expected
+         * capacity, and copied at the exact size otherwise.
+         *
+         * @return the list
+         */
+        @NonNull
+        PackedPermissionStateList build() {
+            PackedPermissionStateList list;
+            if (mSize == mNameIndices.length) {
+                list = new PackedPermissionStateList(mNamePool, mNameIndices, mGranted, mFlags,
+                        mSize);
+                mNameIndices = EMPTY_INT_ARRAY;
+                mGranted = EMPTY_LONG_ARRAY;
+                mFlags = EMPTY_INT_ARRAY;
+            } else {
+                list = new PackedPermissionStateList(mNamePool,
+                        Arrays.copyOf(mNameIndices, mSize),
+                        Arrays.copyOf(mGranted, (mSize + 63) >>> 6),
+                        Arrays.copyOf(mFlags, mSize), mSize);
+                Arrays.fill(mGranted, 0);
+            }
+            mSize = 0;
+            return list;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permission.persistence;
+
+import android.annotation.NonNull;
+import android.util.ArrayMap;
+
+import java.util.Arrays;
+
+/**
+ * A pool of distinct names, each identified by its index.
+ * <p>
+ * The set of distinct permission names is small compared to the number of permission entries, so
+ * entries refer to their name by index in this pool instead of holding their own copy.
+ */
+final class PermissionNamePool {
+
+    @NonNull
+    private final ArrayMap<String, Integer> mIndices = new ArrayMap<>();
+
+    @NonNull
+    private String[] mNames;
+
+    private int mSize;
+
+    PermissionNamePool() {
+        mNames = new String[16];
+    }
+
+    /**
+     * Create a pool of names that are already known to be distinct.
+     *
+     * @param names the distinct names, which the pool takes ownership of
+     */
+    PermissionNamePool(@NonNull String[] names) {
+        mNames = names;
+        mSize = names.length;
+    }
+
+    /**
+     * Get the index of a name, adding it to the pool if necessary.
+     *
+     * @param name the name
+     * @return the index of the name
+     */
+    int intern(@NonNull String name) {
+        if (mIndices.size() != mSize) {
+            for (int i = mIndices.size(); i < mSize; i++) {
+                mIndices.put(mNames[i], i);
+            }
+        }
+        Integer index = mIndices.get(name);
+        if (index != null) {
+            return index;
+        }
+        if (mSize == mNames.length) {
+            mNames = Arrays.copyOf(mNames, mSize * 2 + 1);
+        }
+        mNames[mSize] = name;
+        mIndices.put(name, mSize);
+        return mSize++;
+    }
+
+    /**
+     * Get the name at an index.
+     *
+     * @param index the index of the name
+     * @return the name
+     */
+    @NonNull
+    String get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + mSize);
+        }
+        return mNames[index];
+    }
+
+    /**
+     * Get the number of names in this pool.
+     *
+     * @return the number of names in this pool
+     */
+    int size() {
+        return mSize;
+    }
+}
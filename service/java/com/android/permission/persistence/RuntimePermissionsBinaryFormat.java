@@ -0,0 +1,548 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permission.persistence;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.pm.PackageManager;
+import android.util.ArrayMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary encoding for {@link RuntimePermissionsState}.
+ * <p>
+ * The file starts with a fixed size header containing a magic number, the format version, the
+ * payload length, a CRC32 checksum of the rest of the file, the generation of the snapshot, which
+ * ties journal records to the snapshot they apply to, and the last modified time and size of the
+ * legacy XML file when the snapshot was written, which tells whether it was written since. The
+ * payload then contains a string
+ * table holding every package, shared user and permission name exactly once, followed by the
+ * package and shared user records which only refer to names by their index in the string table.
+ * The records of packages and of shared users are each preceded by an index of their names and
+ * record lengths, so that a single record can be decoded on its own. All integers in the payload
+ * are encoded as varints, and the granted state of a permission is packed into the lowest bit of
+ * its flags.
+ * <p>
+ * Decoding reads the string table into a {@link PermissionNamePool} and stores permissions in
+ * {@link PackedPermissionStateList}s, so that no per-permission objects are created until they are
+ * accessed.
+ */
+final class RuntimePermissionsBinaryFormat {
+
+    private static final int MAGIC = 0x52504d42; // "RPMB"
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 * Integer.BYTES + 3 * Long.BYTES;
+
+    /**
+     * The offset of the generation in the header, which is where the checksummed data starts.
+     */
+    private static final int GENERATION_OFFSET = 4 * Integer.BYTES;
+
+    private RuntimePermissionsBinaryFormat() {}
+
+    /**
+     * Encode runtime permissions into their binary form, including the header.
+     *
+     * @param runtimePermissions the runtime permissions to encode
+     * @param generation the generation of the snapshot
+     * @param xmlLastModifiedTime the last modified time of the legacy XML file, or {@code 0} if
+     *                            there is none
+     * @param xmlSize the size of the legacy XML file, or {@code 0} if there is none
+     * @return the encoded runtime permissions
+     */
+    @NonNull
+    static byte[] encode(@NonNull RuntimePermissionsState runtimePermissions, long generation,
+            long xmlLastModifiedTime, long xmlSize) {
+        Map<String, Integer> stringIndices = new ArrayMap<>();
+        List<String> strings = new ArrayList<>();
+        collectStrings(runtimePermissions.getPackagePermissions(), stringIndices, strings);
+        collectStrings(runtimePermissions.getSharedUserPermissions(), stringIndices, strings);
+
+        Writer payload = new Writer();
+        payload.writeVarLong(zigZagEncode(runtimePermissions.getVersion()));
+        payload.writeNullableString(runtimePermissions.getFingerprint());
+
+        int stringsSize = strings.size();
+        payload.writeVarLong(stringsSize);
+        for (int i = 0; i < stringsSize; i++) {
+            payload.writeString(strings.get(i));
+        }
+
+        writeIndexedPermissionsMap(payload, runtimePermissions.getPackagePermissions(),
+                stringIndices);
+        writeIndexedPermissionsMap(payload, runtimePermissions.getSharedUserPermissions(),
+                stringIndices);
+
+        Writer checksummedHeader = new Writer(HEADER_SIZE - GENERATION_OFFSET);
+        checksummedHeader.writeFixedLong(generation);
+        checksummedHeader.writeFixedLong(xmlLastModifiedTime);
+        checksummedHeader.writeFixedLong(xmlSize);
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(checksummedHeader.getBuffer(), 0, checksummedHeader.size());
+        crc32.update(payload.getBuffer(), 0, payload.size());
+
+        Writer file = new Writer(HEADER_SIZE + payload.size());
+        file.writeFixedInt(MAGIC);
+        file.writeFixedInt(FORMAT_VERSION);
+        file.writeFixedInt(payload.size());
+        file.writeFixedInt((int) crc32.getValue());
+        file.write(checksummedHeader.getBuffer(), 0, checksummedHeader.size());
+        file.write(payload.getBuffer(), 0, payload.size());
+        return file.toByteArrayNoCopy();
+    }
+
+    private static void collectStrings(
+            @NonNull Map<String, List<RuntimePermissionsState.PermissionState>> permissionsMap,
+            @NonNull Map<String, Integer> stringIndices, @NonNull List<String> strings) {
+        for (Map.Entry<String, List<RuntimePermissionsState.PermissionState>> entry
+                : permissionsMap.entrySet()) {
+            addString(entry.getKey(), stringIndices, strings);
+            List<RuntimePermissionsState.PermissionState> permissions = entry.getValue();
+            int permissionsSize = permissions.size();
+            for (int i = 0; i < permissionsSize; i++) {
+                addString(permissions.get(i).getName(), stringIndices, strings);
+            }
+        }
+    }
+
+    private static void addString(@NonNull String string,
+            @NonNull Map<String, Integer> stringIndices, @NonNull List<String> strings) {
+        if (!stringIndices.containsKey(string)) {
+            stringIndices.put(string, strings.size());
+            strings.add(string);
+        }
+    }
+
+    private static void writeIndexedPermissionsMap(@NonNull Writer writer,
+            @NonNull Map<String, List<RuntimePermissionsState.PermissionState>> permissionsMap,
+            @NonNull Map<String, Integer> stringIndices) {
+        int permissionsMapSize = permissionsMap.size();
+        int[] nameIndices = new int[permissionsMapSize];
+        int[] recordLengths = new int[permissionsMapSize];
+        Writer records = new Writer();
+        int index = 0;
+        for (Map.Entry<String, List<RuntimePermissionsState.PermissionState>> entry
+                : permissionsMap.entrySet()) {
+            nameIndices[index] = stringIndices.get(entry.getKey());
+            int recordStart = records.size();
+            writePermissions(records, entry.getValue(), stringIndices);
+            recordLengths[index] = records.size() - recordStart;
+            index++;
+        }
+
+        writer.writeVarLong(permissionsMapSize);
+        for (int i = 0; i < permissionsMapSize; i++) {
+            writer.writeVarLong(nameIndices[i]);
+            writer.writeVarLong(recordLengths[i]);
+        }
+        writer.write(records.getBuffer(), 0, records.size());
+    }
+
+    private static void writePermissions(@NonNull Writer writer,
+            @NonNull List<RuntimePermissionsState.PermissionState> permissions,
+            @NonNull Map<String, Integer> stringIndices) {
+        int permissionsSize = permissions.size();
+        writer.writeVarLong(permissionsSize);
+        for (int i = 0; i < permissionsSize; i++) {
+            RuntimePermissionsState.PermissionState permissionState = permissions.get(i);
+            writer.writeVarLong(stringIndices.get(permissionState.getName()));
+            writer.writeVarLong(encodeFlagsAndGranted(permissionState));
+        }
+    }
+
+    /**
+     * Decode runtime permissions from their binary form, including the header.
+     *
+     * @param data the encoded runtime permissions
+     * @param lazy whether to defer decoding the permissions of each package and shared user until
+     *             they are first accessed, which retains {@code data}
+     * @return the decoded runtime permissions
+     *
+     * @throws IOException if the data is malformed or fails the checksum
+     */
+    @NonNull
+    static RuntimePermissionsState decode(@NonNull byte[] data, boolean lazy) throws IOException {
+        checkHeader(data);
+
+        Reader payload = new Reader(data, HEADER_SIZE, data.length);
+        int version = (int) zigZagDecode(payload.readVarLong());
+        String fingerprint = payload.readNullableString();
+
+        int stringsSize = payload.readVarInt();
+        String[] strings = new String[stringsSize];
+        for (int i = 0; i < stringsSize; i++) {
+            strings[i] = payload.readString();
+        }
+
+        PermissionNamePool namePool = new PermissionNamePool(strings);
+
+        Map<String, List<RuntimePermissionsState.PermissionState>> packagePermissions =
+                readIndexedPermissionsMap(payload, data, strings, namePool, lazy);
+        Map<String, List<RuntimePermissionsState.PermissionState>> sharedUserPermissions =
+                readIndexedPermissionsMap(payload, data, strings, namePool, lazy);
+        if (payload.hasRemaining()) {
+            throw new IOException("Trailing data in payload");
+        }
+
+        return new RuntimePermissionsState(version, fingerprint, packagePermissions,
+                sharedUserPermissions);
+    }
+
+    /**
+     * Read the generation of a snapshot from its binary form.
+     *
+     * @param data the encoded runtime permissions
+     * @return the generation of the snapshot
+     *
+     * @throws IOException if the header is malformed or the data fails the checksum
+     */
+    static long decodeGeneration(@NonNull byte[] data) throws IOException {
+        checkHeader(data);
+        return new Reader(data, GENERATION_OFFSET, HEADER_SIZE).readFixedLong();
+    }
+
+    /**
+     * Check whether a snapshot was written when the legacy XML file had the given last modified
+     * time and size, i.e. whether the XML file is unchanged since.
+     *
+     * @param data the encoded runtime permissions
+     * @param xmlLastModifiedTime the current last modified time of the XML file
+     * @param xmlSize the current size of the XML file
+     * @return whether the snapshot recorded the same last modified time and size
+     *
+     * @throws IOException if the header is malformed or the data fails the checksum
+     */
+    static boolean isXmlFileUnchanged(@NonNull byte[] data, long xmlLastModifiedTime,
+            long xmlSize) throws IOException {
+        checkHeader(data);
+        Reader header = new Reader(data, GENERATION_OFFSET + Long.BYTES, HEADER_SIZE);
+        return header.readFixedLong() == xmlLastModifiedTime && header.readFixedLong() == xmlSize;
+    }
+
+    private static void checkHeader(@NonNull byte[] data) throws IOException {
+        if (data.length < HEADER_SIZE) {
+            throw new IOException("Truncated header: " + data.length + " bytes");
+        }
+        Reader header = new Reader(data, 0, HEADER_SIZE);
+        int magic = header.readFixedInt();
+        if (magic != MAGIC) {
+            throw new IOException("Bad magic: 0x" + Integer.toHexString(magic));
+        }
+        int formatVersion = header.readFixedInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported format version: " + formatVersion);
+        }
+        int payloadSize = header.readFixedInt();
+        if (payloadSize < 0 || payloadSize != data.length - HEADER_SIZE) {
+            throw new IOException("Bad payload size: " + payloadSize + ", file size: "
+                    + data.length);
+        }
+        int checksum = header.readFixedInt();
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, GENERATION_OFFSET, data.length - GENERATION_OFFSET);
+        if ((int) crc32.getValue() != checksum) {
+            throw new IOException("Checksum mismatch");
+        }
+    }
+
+    @NonNull
+    private static Map<String, List<RuntimePermissionsState.PermissionState>>
+            readIndexedPermissionsMap(@NonNull Reader reader, @NonNull byte[] data,
+            @NonNull String[] strings, @NonNull PermissionNamePool namePool, boolean lazy)
+            throws IOException {
+        int permissionsMapSize = reader.readVarInt();
+        if (permissionsMapSize > reader.getRemaining()) {
+            throw new IOException("Index size out of range: " + permissionsMapSize);
+        }
+        String[] names = new String[permissionsMapSize];
+        int[] recordOffsets = new int[permissionsMapSize];
+        int[] recordLengths = new int[permissionsMapSize];
+        for (int i = 0; i < permissionsMapSize; i++) {
+            names[i] = reader.readStringReference(strings);
+            recordLengths[i] = reader.readVarInt();
+        }
+        int recordOffset = reader.getPosition();
+        for (int i = 0; i < permissionsMapSize; i++) {
+            recordOffsets[i] = recordOffset;
+            reader.skip(recordLengths[i]);
+            recordOffset += recordLengths[i];
+        }
+
+        if (lazy) {
+            return new LazyPermissionsMap(data, names, recordOffsets, recordLengths, strings,
+                    namePool);
+        }
+        Map<String, List<RuntimePermissionsState.PermissionState>> permissionsMap =
+                new ArrayMap<>(permissionsMapSize);
+        for (int i = 0; i < permissionsMapSize; i++) {
+            permissionsMap.put(names[i], readPermissionsRecord(data, recordOffsets[i],
+                    recordLengths[i], strings, namePool));
+        }
+        return permissionsMap;
+    }
+
+    /**
+     * Decode the permissions of a package or shared user from a record found through the index.
+     *
+     * @param data the encoded runtime permissions
+     * @param offset the offset of the record in {@code data}
+     * @param length the length of the record
+     * @param strings the string table
+     * @param namePool the name pool backed by the string table
+     * @return the decoded permissions
+     *
+     * @throws IOException if the record is malformed
+     */
+    @NonNull
+    static PackedPermissionStateList readPermissionsRecord(@NonNull byte[] data, int offset,
+            int length, @NonNull String[] strings, @NonNull PermissionNamePool namePool)
+            throws IOException {
+        Reader reader = new Reader(data, offset, offset + length);
+        PackedPermissionStateList permissions = readPermissions(reader, strings, namePool);
+        if (reader.hasRemaining()) {
+            throw new IOException("Trailing data in permissions record at " + offset);
+        }
+        return permissions;
+    }
+
+    @NonNull
+    private static PackedPermissionStateList readPermissions(@NonNull Reader reader,
+            @NonNull String[] strings, @NonNull PermissionNamePool namePool) throws IOException {
+        int permissionsSize = reader.readVarInt();
+        PackedPermissionStateList.Builder permissions = new PackedPermissionStateList.Builder(
+                namePool, Math.min(permissionsSize, reader.getRemaining()));
+        for (int i = 0; i < permissionsSize; i++) {
+            int nameIndex = reader.readStringIndex(strings);
+            long flagsAndGranted = reader.readVarLong();
+            permissions.add(nameIndex, (flagsAndGranted & 1) != 0, (int) (flagsAndGranted >>> 1));
+        }
+        return permissions.build();
+    }
+
+    /**
+     * Pack the flags and the persisted granted state of a permission into a single value.
+     * <p>
+     * One-time permissions are never persisted as granted.
+     */
+    static long encodeFlagsAndGranted(
+            @NonNull RuntimePermissionsState.PermissionState permissionState) {
+        int flags = permissionState.getFlags();
+        boolean granted = permissionState.isGranted()
+                && (flags & PackageManager.FLAG_PERMISSION_ONE_TIME) == 0;
+        return ((flags & 0xFFFFFFFFL) << 1) | (granted ? 1 : 0);
+    }
+
+    @NonNull
+    static RuntimePermissionsState.PermissionState decodePermissionState(@NonNull String name,
+            long flagsAndGranted) {
+        boolean granted = (flagsAndGranted & 1) != 0;
+        int flags = (int) (flagsAndGranted >>> 1);
+        return new RuntimePermissionsState.PermissionState(name, granted, flags);
+    }
+
+    static long zigZagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * A growable byte buffer with helpers for the primitives used by this format.
+     */
+    static final class Writer extends ByteArrayOutputStream {
+
+        Writer() {}
+
+        Writer(int size) {
+            super(size);
+        }
+
+        /**
+         * Get the internal buffer, which is only valid up to {@link #size()}.
+         */
+        @NonNull
+        byte[] getBuffer() {
+            return buf;
+        }
+
+        /**
+         * Get the written bytes, avoiding a copy if the buffer is exactly full.
+         */
+        @NonNull
+        byte[] toByteArrayNoCopy() {
+            return count == buf.length ? buf : toByteArray();
+        }
+
+        void writeFixedInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeFixedLong(long value) {
+            writeFixedInt((int) (value >>> 32));
+            writeFixedInt((int) value);
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeString(@NonNull String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeNullableString(@Nullable String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length + 1L);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * A cursor over a byte array with helpers for the primitives used by this format.
+     */
+    static final class Reader {
+
+        @NonNull
+        private final byte[] mData;
+
+        private int mPosition;
+
+        private final int mEnd;
+
+        Reader(@NonNull byte[] data, int start, int end) {
+            mData = data;
+            mPosition = start;
+            mEnd = end;
+        }
+
+        boolean hasRemaining() {
+            return mPosition < mEnd;
+        }
+
+        int getPosition() {
+            return mPosition;
+        }
+
+        int getRemaining() {
+            return mEnd - mPosition;
+        }
+
+        void skip(int size) throws IOException {
+            ensureRemaining(size);
+            mPosition += size;
+        }
+
+        int readFixedInt() throws IOException {
+            ensureRemaining(Integer.BYTES);
+            int value = ((mData[mPosition] & 0xFF) << 24)
+                    | ((mData[mPosition + 1] & 0xFF) << 16)
+                    | ((mData[mPosition + 2] & 0xFF) << 8)
+                    | (mData[mPosition + 3] & 0xFF);
+            mPosition += Integer.BYTES;
+            return value;
+        }
+
+        long readFixedLong() throws IOException {
+            long high = readFixedInt() & 0xFFFFFFFFL;
+            return (high << 32) | (readFixedInt() & 0xFFFFFFFFL);
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < Long.SIZE; shift += 7) {
+                ensureRemaining(1);
+                byte b = mData[mPosition++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint at " + mPosition);
+        }
+
+        int readVarInt() throws IOException {
+            long value = readVarLong();
+            if (value < 0 || value > Integer.MAX_VALUE) {
+                throw new IOException("Varint out of range: " + value);
+            }
+            return (int) value;
+        }
+
+        @NonNull
+        String readString() throws IOException {
+            return readString(readVarInt());
+        }
+
+        @Nullable
+        String readNullableString() throws IOException {
+            int lengthPlusOne = readVarInt();
+            return lengthPlusOne == 0 ? null : readString(lengthPlusOne - 1);
+        }
+
+        @NonNull
+        private String readString(int length) throws IOException {
+            ensureRemaining(length);
+            String value = new String(mData, mPosition, length, StandardCharsets.UTF_8);
+            mPosition += length;
+            return value;
+        }
+
+        @NonNull
+        String readStringReference(@NonNull String[] strings) throws IOException {
+            return strings[readStringIndex(strings)];
+        }
+
+        int readStringIndex(@NonNull String[] strings) throws IOException {
+            int index = readVarInt();
+            if (index >= strings.length) {
+                throw new IOException("String index out of range: " + index);
+            }
+            return index;
+        }
+
+        private void ensureRemaining(int size) throws IOException {
+            if (size > mEnd - mPosition) {
+                throw new IOException("Unexpected end of data at " + mPosition);
+            }
+        }
+    }
+}
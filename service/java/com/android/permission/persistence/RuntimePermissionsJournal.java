@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permission.persistence;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.ArrayMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of changes to a {@link RuntimePermissionsState} snapshot.
+ * <p>
+ * Each record consists of a fixed size header containing the payload length and a CRC32 checksum
+ * of the payload, followed by the payload which is the generation of the snapshot the record
+ * applies to and a list of operations. Every operation sets a value rather than modifying it.
+ * <p>
+ * A new snapshot is written with a new generation before the journal is deleted, so if a crash
+ * happens in between, the records left in the journal have the generation of an older snapshot and
+ * are skipped on replay instead of overwriting newer state. Replay stops at the first record that
+ * is truncated or fails its checksum, which is how a write interrupted by a crash shows up.
+ */
+final class RuntimePermissionsJournal {
+
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+    private static final int OPERATION_SET_VERSION = 1;
+    private static final int OPERATION_SET_PERMISSIONS = 2;
+    private static final int OPERATION_SET_PERMISSION = 3;
+    private static final int OPERATION_REMOVE_PERMISSIONS = 4;
+
+    private static final int KIND_PACKAGE = 0;
+    private static final int KIND_SHARED_USER = 1;
+
+    private RuntimePermissionsJournal() {}
+
+    /**
+     * Encode the changes between two runtime permissions states as a journal record.
+     *
+     * @param oldState the runtime permissions state already persisted
+     * @param newState the runtime permissions state to persist
+     * @param maxOperations the maximum number of operations in the record
+     * @param generation the generation of the snapshot the journal applies to
+     * @return the encoded record, an empty array if there are no changes, or {@code null} if the
+     *         changes need more than {@code maxOperations} operations
+     */
+    @Nullable
+    static byte[] encodeRecord(@NonNull RuntimePermissionsState oldState,
+            @NonNull RuntimePermissionsState newState, int maxOperations, long generation) {
+        RuntimePermissionsBinaryFormat.Writer operations =
+                new RuntimePermissionsBinaryFormat.Writer();
+        int operationCount = 0;
+        if (oldState.getVersion() != newState.getVersion()
+                || !Objects.equals(oldState.getFingerprint(), newState.getFingerprint())) {
+            operations.write(OPERATION_SET_VERSION);
+            operations.writeVarLong(RuntimePermissionsBinaryFormat.zigZagEncode(
+                    newState.getVersion()));
+            operations.writeNullableString(newState.getFingerprint());
+            operationCount++;
+        }
+        operationCount = writePermissionsMapChanges(operations, operationCount, maxOperations,
+                KIND_PACKAGE, oldState.getPackagePermissions(),
+                newState.getPackagePermissions());
+        if (operationCount > maxOperations) {
+            return null;
+        }
+        operationCount = writePermissionsMapChanges(operations, operationCount, maxOperations,
+                KIND_SHARED_USER, oldState.getSharedUserPermissions(),
+                newState.getSharedUserPermissions());
+        if (operationCount > maxOperations) {
+            return null;
+        }
+        if (operationCount == 0) {
+            return new byte[0];
+        }
+
+        RuntimePermissionsBinaryFormat.Writer payload = new RuntimePermissionsBinaryFormat.Writer(
+                operations.size() + 15);
+        payload.writeVarLong(generation);
+        payload.writeVarLong(operationCount);
+        payload.write(operations.getBuffer(), 0, operations.size());
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload.getBuffer(), 0, payload.size());
+
+        RuntimePermissionsBinaryFormat.Writer record = new RuntimePermissionsBinaryFormat.Writer(
+                RECORD_HEADER_SIZE + payload.size());
+        record.writeFixedInt(payload.size());
+        record.writeFixedInt((int) crc32.getValue());
+        record.write(payload.getBuffer(), 0, payload.size());
+        return record.toByteArrayNoCopy();
+    }
+
+    private static int writePermissionsMapChanges(
+            @NonNull RuntimePermissionsBinaryFormat.Writer writer, int operationCount,
+            int maxOperations, int kind,
+            @NonNull Map<String, List<RuntimePermissionsState.PermissionState>> oldPermissionsMap,
+            @NonNull Map<String, List<RuntimePermissionsState.PermissionState>> newPermissionsMap) {
+        for (Map.Entry<String, List<RuntimePermissionsState.PermissionState>> entry
+                : newPermissionsMap.entrySet()) {
+            if (operationCount > maxOperations) {
+                return operationCount;
+            }
+            String name = entry.getKey();
+            List<RuntimePermissionsState.PermissionState> newPermissions = entry.getValue();
+            List<RuntimePermissionsState.PermissionState> oldPermissions =
+                    oldPermissionsMap.get(name);
+            if (!haveSameNames(oldPermissions, newPermissions)) {
+                writer.write(OPERATION_SET_PERMISSIONS);
+                writer.writeVarLong(kind);
+                writer.writeString(name);
+                int newPermissionsSize = newPermissions.size();
+                writer.writeVarLong(newPermissionsSize);
+                for (int i = 0; i < newPermissionsSize; i++) {
+                    RuntimePermissionsState.PermissionState permissionState =
+                            newPermissions.get(i);
+                    writer.writeString(permissionState.getName());
+                    writer.writeVarLong(RuntimePermissionsBinaryFormat.encodeFlagsAndGranted(
+                            permissionState));
+                }
+                operationCount++;
+                continue;
+            }
+            int newPermissionsSize = newPermissions.size();
+            for (int i = 0; i < newPermissionsSize; i++) {
+                RuntimePermissionsState.PermissionState permissionState = newPermissions.get(i);
+                long flagsAndGranted = RuntimePermissionsBinaryFormat.encodeFlagsAndGranted(
+                        permissionState);
+                if (flagsAndGranted == RuntimePermissionsBinaryFormat.encodeFlagsAndGranted(
+                        oldPermissions.get(i))) {
+                    continue;
+                }
+                writer.write(OPERATION_SET_PERMISSION);
+                writer.writeVarLong(kind);
+                writer.writeString(name);
+                writer.writeVarLong(i);
+                writer.writeString(permissionState.getName());
+                writer.writeVarLong(flagsAndGranted);
+                operationCount++;
+            }
+        }
+        for (String name : oldPermissionsMap.keySet()) {
+            if (operationCount > maxOperations) {
+                return operationCount;
+            }
+            if (newPermissionsMap.containsKey(name)) {
+                continue;
+            }
+            writer.write(OPERATION_REMOVE_PERMISSIONS);
+            writer.writeVarLong(kind);
+            writer.writeString(name);
+            operationCount++;
+        }
+        return operationCount;
+    }
+
+    private static boolean haveSameNames(
+            @Nullable List<RuntimePermissionsState.PermissionState> oldPermissions,
+            @NonNull List<RuntimePermissionsState.PermissionState> newPermissions) {
+        if (oldPermissions == null) {
+            return false;
+        }
+        int permissionsSize = newPermissions.size();
+        if (oldPermissions.size() != permissionsSize) {
+            return false;
+        }
+        for (int i = 0; i < permissionsSize; i++) {
+            if (!Objects.equals(oldPermissions.get(i).getName(),
+                    newPermissions.get(i).getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replay a journal on top of a snapshot.
+     *
+     * @param snapshot the runtime permissions state read from the snapshot
+     * @param snapshotGeneration the generation of the snapshot
+     * @param journal the content of the journal
+     * @return the result of the replay
+     */
+    @NonNull
+    static Replay replay(@NonNull RuntimePermissionsState snapshot, long snapshotGeneration,
+            @NonNull byte[] journal) {
+        ReplayState state = new ReplayState(snapshot);
+        int recordCount = 0;
+        int staleRecordCount = 0;
+        int validLength = 0;
+        RuntimePermissionsBinaryFormat.Reader header = new RuntimePermissionsBinaryFormat.Reader(
+                journal, 0, journal.length);
+        try {
+            while (header.hasRemaining()) {
+                int payloadSize = header.readFixedInt();
+                int checksum = header.readFixedInt();
+                int payloadStart = header.getPosition();
+                if (payloadSize < 0 || payloadSize > journal.length - payloadStart) {
+                    break;
+                }
+                CRC32 crc32 = new CRC32();
+                crc32.update(journal, payloadStart, payloadSize);
+                if ((int) crc32.getValue() != checksum) {
+                    break;
+                }
+                int payloadEnd = payloadStart + payloadSize;
+                RuntimePermissionsBinaryFormat.Reader payload =
+                        new RuntimePermissionsBinaryFormat.Reader(journal, payloadStart,
+                                payloadEnd);
+                long generation = payload.readVarLong();
+                if (generation == snapshotGeneration) {
+                    // The whole record is decoded before any of it is applied, so that a record
+                    // failing to decode is skipped as a whole.
+                    List<Operation> operations = readOperations(payload);
+                    int operationsSize = operations.size();
+                    for (int i = 0; i < operationsSize; i++) {
+                        operations.get(i).apply(state);
+                    }
+                } else {
+                    // Records of an older snapshot were already applied to the newer one.
+                    staleRecordCount++;
+                }
+                header = new RuntimePermissionsBinaryFormat.Reader(journal, payloadEnd,
+                        journal.length);
+                recordCount++;
+                validLength = payloadEnd;
+            }
+        } catch (IOException ignored) {
+            // A truncated record ends the valid part of the journal.
+        }
+
+        return new Replay(state.toRuntimePermissionsState(), recordCount, staleRecordCount,
+                validLength);
+    }
+
+    @NonNull
+    private static List<Operation> readOperations(
+            @NonNull RuntimePermissionsBinaryFormat.Reader payload) throws IOException {
+        int operationCount = payload.readVarInt();
+        List<Operation> operations = new ArrayList<>(operationCount);
+        for (int i = 0; i < operationCount; i++) {
+            int type = payload.readVarInt();
+            switch (type) {
+                case OPERATION_SET_VERSION: {
+                    int version = (int) RuntimePermissionsBinaryFormat.zigZagDecode(
+                            payload.readVarLong());
+                    String fingerprint = payload.readNullableString();
+                    operations.add(Operation.setVersion(version, fingerprint));
+                    break;
+                }
+                case OPERATION_SET_PERMISSIONS: {
+                    int kind = readKind(payload);
+                    String name = payload.readString();
+                    int permissionsSize = payload.readVarInt();
+                    List<RuntimePermissionsState.PermissionState> permissions =
+                            new ArrayList<>(permissionsSize);
+                    for (int j = 0; j < permissionsSize; j++) {
+                        String permissionName = payload.readString();
+                        permissions.add(RuntimePermissionsBinaryFormat.decodePermissionState(
+                                permissionName, payload.readVarLong()));
+                    }
+                    operations.add(Operation.setPermissions(kind, name, permissions));
+                    break;
+                }
+                case OPERATION_SET_PERMISSION: {
+                    int kind = readKind(payload);
+                    String name = payload.readString();
+                    int index = payload.readVarInt();
+                    String permissionName = payload.readString();
+                    RuntimePermissionsState.PermissionState permissionState =
+                            RuntimePermissionsBinaryFormat.decodePermissionState(permissionName,
+                                    payload.readVarLong());
+                    operations.add(Operation.setPermission(kind, name, index, permissionState));
+                    break;
+                }
+                case OPERATION_REMOVE_PERMISSIONS: {
+                    int kind = readKind(payload);
+                    operations.add(Operation.removePermissions(kind, payload.readString()));
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown journal operation: " + type);
+            }
+        }
+        return operations;
+    }
+
+    private static int readKind(@NonNull RuntimePermissionsBinaryFormat.Reader payload)
+            throws IOException {
+        int kind = payload.readVarInt();
+        if (kind != KIND_PACKAGE && kind != KIND_SHARED_USER) {
+            throw new IOException("Unknown journal permissions kind: " + kind);
+        }
+        return kind;
+    }
+
+    /**
+     * Mutable runtime permissions state that journal records are applied to.
+     */
+    private static final class ReplayState {
+
+        private int mVersion;
+
+        @Nullable
+        private String mFingerprint;
+
+        @NonNull
+        private final Map<String, List<RuntimePermissionsState.PermissionState>>
+                mPackagePermissions;
+
+        @NonNull
+        private final Map<String, List<RuntimePermissionsState.PermissionState>>
+                mSharedUserPermissions;
+
+        ReplayState(@NonNull RuntimePermissionsState snapshot) {
+            mVersion = snapshot.getVersion();
+            mFingerprint = snapshot.getFingerprint();
+            mPackagePermissions = copyPermissionsMap(snapshot.getPackagePermissions());
+            mSharedUserPermissions = copyPermissionsMap(snapshot.getSharedUserPermissions());
+        }
+
+        @NonNull
+        private static Map<String, List<RuntimePermissionsState.PermissionState>>
+                copyPermissionsMap(
+                        @NonNull Map<String, List<RuntimePermissionsState.PermissionState>>
+                                permissionsMap) {
+            Map<String, List<RuntimePermissionsState.PermissionState>> copy =
+                    new ArrayMap<>(permissionsMap.size());
+            copy.putAll(permissionsMap);
+            return copy;
+        }
+
+        @NonNull
+        Map<String, List<RuntimePermissionsState.PermissionState>> getPermissionsMap(int kind) {
+            return kind == KIND_PACKAGE ? mPackagePermissions : mSharedUserPermissions;
+        }
+
+        @NonNull
+        RuntimePermissionsState toRuntimePermissionsState() {
+            return new RuntimePermissionsState(mVersion, mFingerprint, mPackagePermissions,
+                    mSharedUserPermissions);
+        }
+    }
+
+    /**
+     * A decoded journal operation.
+     */
+    private static final class Operation {
+
+        private final int mType;
+
+        private final int mVersion;
+
+        @Nullable
+        private final String mFingerprint;
+
+        private final int mKind;
+
+        @Nullable
+        private final String mName;
+
+        private final int mIndex;
+
+        @Nullable
+        private final List<RuntimePermissionsState.PermissionState> mPermissions;
+
+        @Nullable
+        private final RuntimePermissionsState.PermissionState mPermissionState;
+
+        private Operation(int type, int version, @Nullable String fingerprint, int kind,
+                @Nullable String name, int index,
+                @Nullable List<RuntimePermissionsState.PermissionState> permissions,
+                @Nullable RuntimePermissionsState.PermissionState permissionState) {
+            mType = type;
+            mVersion = version;
+            mFingerprint = fingerprint;
+            mKind = kind;
+            mName = name;
+            mIndex = index;
+            mPermissions = permissions;
+            mPermissionState = permissionState;
+        }
+
+        @NonNull
+        static Operation setVersion(int version, @Nullable String fingerprint) {
+            return new Operation(OPERATION_SET_VERSION, version, fingerprint, 0, null, 0, null,
+                    null);
+        }
+
+        @NonNull
+        static Operation setPermissions(int kind, @NonNull String name,
+                @NonNull List<RuntimePermissionsState.PermissionState> permissions) {
+            return new Operation(OPERATION_SET_PERMISSIONS, 0, null, kind, name, 0, permissions,
+                    null);
+        }
+
+        @NonNull
+        static Operation setPermission(int kind, @NonNull String name, int index,
+                @NonNull RuntimePermissionsState.PermissionState permissionState) {
+            return new Operation(OPERATION_SET_PERMISSION, 0, null, kind, name, index, null,
+                    permissionState);
+        }
+
+        @NonNull
+        static Operation removePermissions(int kind, @NonNull String name) {
+            return new Operation(OPERATION_REMOVE_PERMISSIONS, 0, null, kind, name, 0, null,
+                    null);
+        }
+
+        void apply(@NonNull ReplayState state) {
+            switch (mType) {
+                case OPERATION_SET_VERSION:
+                    state.mVersion = mVersion;
+                    state.mFingerprint = mFingerprint;
+                    break;
+                case OPERATION_SET_PERMISSIONS:
+                    state.getPermissionsMap(mKind).put(mName, mPermissions);
+                    break;
+                case OPERATION_SET_PERMISSION: {
+                    Map<String, List<RuntimePermissionsState.PermissionState>> permissionsMap =
+                            state.getPermissionsMap(mKind);
+                    List<RuntimePermissionsState.PermissionState> permissions =
+                            permissionsMap.get(mName);
+                    if (permissions == null || mIndex >= permissions.size()
+                            || !permissions.get(mIndex).getName().equals(
+                                    mPermissionState.getName())) {
+                        // Not expected within a single generation, but setting an unrelated
+                        // permission would be worse than skipping.
+                        break;
+                    }
+                    permissions = new ArrayList<>(permissions);
+                    permissions.set(mIndex, mPermissionState);
+                    permissionsMap.put(mName, permissions);
+                    break;
+                }
+                case OPERATION_REMOVE_PERMISSIONS:
+                    state.getPermissionsMap(mKind).remove(mName);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Result of replaying a journal.
+     */
+    static final class Replay {
+
+        /**
+         * The runtime permissions state after replaying all the valid records.
+         */
+        @NonNull
+        private final RuntimePermissionsState mState;
+
+        /**
+         * The number of valid records.
+         */
+        private final int mRecordCount;
+
+        /**
+         * The number of valid records which were skipped because they apply to an older snapshot.
+         */
+        private final int mStaleRecordCount;
+
+        /**
+         * The length of the valid part of the journal, in bytes.
+         */
+        private final int mValidLength;
+
+        Replay(@NonNull RuntimePermissionsState state, int recordCount, int staleRecordCount,
+                int validLength) {
+            mState = state;
+            mRecordCount = recordCount;
+            mStaleRecordCount = staleRecordCount;
+            mValidLength = validLength;
+        }
+
+        @NonNull
+        RuntimePermissionsState getState() {
+            return mState;
+        }
+
+        int getRecordCount() {
+            return mRecordCount;
+        }
+
+        int getStaleRecordCount() {
+            return mStaleRecordCount;
+        }
+
+        int getValidLength() {
+            return mValidLength;
+        }
+    }
+}
@@ -42,6 +42,20 @@ public interface RuntimePermissionsPersistence {
     @Nullable
     RuntimePermissionsState readForUser(@NonNull UserHandle user);
 
+    /**
+     * Read the runtime permissions from persistence, deferring decoding the permissions of each
+     * package or shared user until they are first accessed.
+     *
+     * This will perform I/O operations synchronously.
+     *
+     * @param user the user to read for
+     * @return the runtime permissions read
+     */
+    @Nullable
+    default RuntimePermissionsState readLazilyForUser(@NonNull UserHandle user) {
+        return readForUser(user);
+    }
+
     /**
      * Write the runtime permissions to persistence.
      *
@@ -69,6 +83,6 @@ public interface RuntimePermissionsPersistence {
      */
     @NonNull
     static RuntimePermissionsPersistence createInstance() {
-        return new RuntimePermissionsPersistenceImpl();
+        return new BinaryRuntimePermissionsPersistenceImpl();
     }
 }
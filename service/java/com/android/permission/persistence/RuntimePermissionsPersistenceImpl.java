@@ -36,7 +36,6 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -65,6 +64,12 @@ public class RuntimePermissionsPersistenceImpl implements RuntimePermissionsPers
     private static final String ATTRIBUTE_NAME = "name";
     private static final String ATTRIBUTE_VERSION = "version";
 
+    /**
+     * The initial capacity for the permissions of a package or shared user, which is enough for
+     * most packages without growing.
+     */
+    private static final int DEFAULT_PERMISSIONS_CAPACITY = 32;
+
     @Nullable
     @Override
     public RuntimePermissionsState readForUser(@NonNull UserHandle user) {
@@ -113,6 +118,11 @@ public class RuntimePermissionsPersistenceImpl implements RuntimePermissionsPers
                 new ArrayMap<>();
         Map<String, List<RuntimePermissionsState.PermissionState>> sharedUserPermissions =
                 new ArrayMap<>();
+        PermissionNamePool namePool = new PermissionNamePool();
+        // Reused for every package and shared user, so that each list is allocated once at its
+        // exact size.
+        PackedPermissionStateList.Builder permissionsBuilder =
+                new PackedPermissionStateList.Builder(namePool, DEFAULT_PERMISSIONS_CAPACITY);
         int type;
         int depth;
         int innerDepth = parser.getDepth() + 1;
@@ -126,14 +136,14 @@ public class RuntimePermissionsPersistenceImpl implements RuntimePermissionsPers
                 case TAG_PACKAGE: {
                     String packageName = parser.getAttributeValue(null, ATTRIBUTE_NAME);
                     List<RuntimePermissionsState.PermissionState> permissions = parsePermissions(
-                            parser);
+                            parser, permissionsBuilder);
                     packagePermissions.put(packageName, permissions);
                     break;
                 }
                 case TAG_SHARED_USER: {
                     String sharedUserName = parser.getAttributeValue(null, ATTRIBUTE_NAME);
                     List<RuntimePermissionsState.PermissionState> permissions = parsePermissions(
-                            parser);
+                            parser, permissionsBuilder);
                     sharedUserPermissions.put(sharedUserName, permissions);
                     break;
                 }
@@ -146,8 +156,8 @@ public class RuntimePermissionsPersistenceImpl implements RuntimePermissionsPers
 
     @NonNull
     private static List<RuntimePermissionsState.PermissionState> parsePermissions(
-            @NonNull XmlPullParser parser) throws IOException, XmlPullParserException {
-        List<RuntimePermissionsState.PermissionState> permissions = new ArrayList<>();
+            @NonNull XmlPullParser parser, @NonNull PackedPermissionStateList.Builder permissions)
+            throws IOException, XmlPullParserException {
         int type;
         int depth;
         int innerDepth = parser.getDepth() + 1;
@@ -158,17 +168,51 @@ public class RuntimePermissionsPersistenceImpl implements RuntimePermissionsPers
             }
 
             if (parser.getName().equals(TAG_PERMISSION)) {
-                String name = parser.getAttributeValue(null, ATTRIBUTE_NAME);
-                boolean granted = Boolean.parseBoolean(parser.getAttributeValue(null,
-                        ATTRIBUTE_GRANTED));
-                int flags = Integer.parseInt(parser.getAttributeValue(null,
-                        ATTRIBUTE_FLAGS), 16);
-                RuntimePermissionsState.PermissionState permission =
-                        new RuntimePermissionsState.PermissionState(name, granted, flags);
-                permissions.add(permission);
+                // Read every attribute in a single pass instead of looking each one up by name.
+                String name = null;
+                boolean granted = false;
+                int flags = 0;
+                int attributeCount = parser.getAttributeCount();
+                for (int i = 0; i < attributeCount; i++) {
+                    switch (parser.getAttributeName(i)) {
+                        case ATTRIBUTE_NAME:
+                            name = parser.getAttributeValue(i);
+                            break;
+                        case ATTRIBUTE_GRANTED:
+                            granted = Boolean.parseBoolean(parser.getAttributeValue(i));
+                            break;
+                        case ATTRIBUTE_FLAGS:
+                            flags = parseHexInt(parser.getAttributeValue(i));
+                            break;
+                    }
+                }
+                if (name == null) {
+                    throw new XmlPullParserException("Missing permission name", parser, null);
+                }
+                permissions.add(name, granted, flags);
             }
         }
-        return permissions;
+        return permissions.build();
+    }
+
+    /**
+     * Parse the flags written by {@link Integer#toHexString(int)}, without
+     * {@link Integer#parseInt(String, int)} rejecting those with the highest bit set.
+     */
+    private static int parseHexInt(@NonNull String value) throws XmlPullParserException {
+        int length = value.length();
+        if (length == 0 || length > 8) {
+            throw new XmlPullParserException("Invalid permission flags: " + value);
+        }
+        int result = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = Character.digit(value.charAt(i), 16);
+            if (digit < 0) {
+                throw new XmlPullParserException("Invalid permission flags: " + value);
+            }
+            result = (result << 4) | digit;
+        }
+        return result;
     }
 
     @Override
@@ -255,6 +299,26 @@ public class RuntimePermissionsPersistenceImpl implements RuntimePermissionsPers
         getFile(user).delete();
     }
 
+    /**
+     * Get the time at which the runtime permissions of a user were last written.
+     *
+     * @param user the user whose runtime permissions were written
+     * @return the last modified time in milliseconds, or {@code 0} if they were never written
+     */
+    long getLastModifiedTime(@NonNull UserHandle user) {
+        return new AtomicFile(getFile(user)).getLastModifiedTime();
+    }
+
+    /**
+     * Get the size of the file the runtime permissions of a user were last written to.
+     *
+     * @param user the user whose runtime permissions were written
+     * @return the size in bytes, or {@code 0} if they were never written
+     */
+    long getFileSize(@NonNull UserHandle user) {
+        return getFile(user).length();
+    }
+
     @NonNull
     private static File getFile(@NonNull UserHandle user) {
         ApexEnvironment apexEnvironment = ApexEnvironment.getApexEnvironment(APEX_MODULE_NAME);
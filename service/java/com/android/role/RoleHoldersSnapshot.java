@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.role;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the roles of a user and their holders, along with the reverse index
+ * from package names to the roles they hold.
+ * <p>
+ * Mutations return a new snapshot which shares every holder set and held role set that didn't
+ * change, so that a snapshot can be published through a volatile reference and read without
+ * locking or copying. A mutation copies the outer maps, which only hold one reference per role or
+ * package, and copies only the holder set and held role set that changed.
+ */
+final class RoleHoldersSnapshot {
+
+    /**
+     * The snapshot with no roles.
+     */
+    @NonNull
+    static final RoleHoldersSnapshot EMPTY = new RoleHoldersSnapshot(new ArrayMap<>(),
+            new ArrayMap<>());
+
+    /**
+     * Maps role names to its holders' package names. The values should never be null.
+     */
+    @NonNull
+    private final ArrayMap<String, ArraySet<String>> mRoles;
+
+    /**
+     * Maps package names to the names of the roles they hold. Packages holding no role are absent.
+     */
+    @NonNull
+    private final ArrayMap<String, ArraySet<String>> mHeldRoles;
+
+    private RoleHoldersSnapshot(@NonNull ArrayMap<String, ArraySet<String>> roles,
+            @NonNull ArrayMap<String, ArraySet<String>> heldRoles) {
+        mRoles = roles;
+        mHeldRoles = heldRoles;
+    }
+
+    /**
+     * Create a snapshot from roles and their holders.
+     *
+     * @param roles the roles and their holders, which are copied
+     *
+     * @return the snapshot
+     */
+    @NonNull
+    static RoleHoldersSnapshot create(@NonNull Map<String, Set<String>> roles) {
+        ArrayMap<String, ArraySet<String>> rolesCopy = new ArrayMap<>(roles.size());
+        ArrayMap<String, ArraySet<String>> heldRoles = new ArrayMap<>();
+        for (Map.Entry<String, Set<String>> entry : roles.entrySet()) {
+            String roleName = entry.getKey();
+            ArraySet<String> roleHolders = new ArraySet<>(entry.getValue());
+            rolesCopy.put(roleName, roleHolders);
+
+            int roleHoldersSize = roleHolders.size();
+            for (int i = 0; i < roleHoldersSize; i++) {
+                String packageName = roleHolders.valueAt(i);
+                ArraySet<String> roleNames = heldRoles.get(packageName);
+                if (roleNames == null) {
+                    roleNames = new ArraySet<>();
+                    heldRoles.put(packageName, roleNames);
+                }
+                roleNames.add(roleName);
+            }
+        }
+        return new RoleHoldersSnapshot(rolesCopy, heldRoles);
+    }
+
+    /**
+     * Get the roles and their holders.
+     *
+     * @return the roles and their holders, which must not be modified
+     */
+    @NonNull
+    ArrayMap<String, ArraySet<String>> getRoles() {
+        return mRoles;
+    }
+
+    /**
+     * Get whether the role is available.
+     *
+     * @param roleName the name of the role
+     *
+     * @return whether the role is available
+     */
+    boolean isRoleAvailable(@NonNull String roleName) {
+        return mRoles.containsKey(roleName);
+    }
+
+    /**
+     * Get the holders of a role.
+     *
+     * @param roleName the name of the role
+     *
+     * @return the holders of the role, which must not be modified, or {@code null} if and only if
+     *         the role is not found
+     */
+    @Nullable
+    ArraySet<String> getRoleHolders(@NonNull String roleName) {
+        return mRoles.get(roleName);
+    }
+
+    /**
+     * Check whether a package holds a role.
+     *
+     * @param roleName the name of the role
+     * @param packageName the package name
+     *
+     * @return whether the package holds the role
+     */
+    boolean isRoleHeld(@NonNull String roleName, @NonNull String packageName) {
+        ArraySet<String> roleHolders = mRoles.get(roleName);
+        return roleHolders != null && roleHolders.contains(packageName);
+    }
+
+    /**
+     * Get the roles held by a package.
+     *
+     * @param packageName the package name
+     *
+     * @return the names of the roles held by the package, which must not be modified, or
+     *         {@code null} if the package holds no role
+     */
+    @Nullable
+    ArraySet<String> getHeldRoles(@NonNull String packageName) {
+        return mHeldRoles.get(packageName);
+    }
+
+    /**
+     * Get a snapshot where the available roles are exactly the given ones.
+     * <p>
+     * Holders of removed roles are removed as well.
+     *
+     * @param roleNames the names of all the available roles
+     *
+     * @return the new snapshot, or this snapshot if nothing changed
+     */
+    @NonNull
+    RoleHoldersSnapshot withRoleNames(@NonNull List<String> roleNames) {
+        ArrayMap<String, ArraySet<String>> roles = null;
+        ArrayMap<String, ArraySet<String>> heldRoles = null;
+
+        for (int i = mRoles.size() - 1; i >= 0; i--) {
+            String roleName = mRoles.keyAt(i);
+            if (roleNames.contains(roleName)) {
+                continue;
+            }
+            if (roles == null) {
+                roles = new ArrayMap<>(mRoles);
+            }
+            ArraySet<String> roleHolders = roles.remove(roleName);
+            int roleHoldersSize = roleHolders.size();
+            for (int j = 0; j < roleHoldersSize; j++) {
+                if (heldRoles == null) {
+                    heldRoles = new ArrayMap<>(mHeldRoles);
+                }
+                updateHeldRoles(heldRoles, roleHolders.valueAt(j), roleName, false);
+            }
+        }
+
+        int roleNamesSize = roleNames.size();
+        for (int i = 0; i < roleNamesSize; i++) {
+            String roleName = roleNames.get(i);
+            if (mRoles.containsKey(roleName) || (roles != null && roles.containsKey(roleName))) {
+                continue;
+            }
+            if (roles == null) {
+                roles = new ArrayMap<>(mRoles);
+            }
+            roles.put(roleName, new ArraySet<>());
+        }
+
+        if (roles == null) {
+            return this;
+        }
+        return new RoleHoldersSnapshot(roles, heldRoles != null ? heldRoles : mHeldRoles);
+    }
+
+    /**
+     * Get a snapshot where a role is available.
+     *
+     * @param roleName the name of the role
+     *
+     * @return the new snapshot, or this snapshot if the role is already available
+     */
+    @NonNull
+    RoleHoldersSnapshot withRoleName(@NonNull String roleName) {
+        if (mRoles.containsKey(roleName)) {
+            return this;
+        }
+        ArrayMap<String, ArraySet<String>> roles = new ArrayMap<>(mRoles);
+        roles.put(roleName, new ArraySet<>());
+        return new RoleHoldersSnapshot(roles, mHeldRoles);
+    }
+
+    /**
+     * Get a snapshot where a package holds or doesn't hold a role.
+     *
+     * @param roleName the name of the role, which must be available
+     * @param packageName the package name
+     * @param held whether the package should hold the role
+     *
+     * @return the new snapshot, or this snapshot if nothing changed
+     */
+    @NonNull
+    RoleHoldersSnapshot withRoleHolder(@NonNull String roleName, @NonNull String packageName,
+            boolean held) {
+        ArraySet<String> roleHolders = mRoles.get(roleName);
+        if (roleHolders == null) {
+            throw new IllegalArgumentException("Unknown role: " + roleName);
+        }
+        if (roleHolders.contains(packageName) == held) {
+            return this;
+        }
+
+        roleHolders = new ArraySet<>(roleHolders);
+        if (held) {
+            roleHolders.add(packageName);
+        } else {
+            roleHolders.remove(packageName);
+        }
+        ArrayMap<String, ArraySet<String>> roles = new ArrayMap<>(mRoles);
+        roles.put(roleName, roleHolders);
+
+        ArrayMap<String, ArraySet<String>> heldRoles = new ArrayMap<>(mHeldRoles);
+        updateHeldRoles(heldRoles, packageName, roleName, held);
+        return new RoleHoldersSnapshot(roles, heldRoles);
+    }
+
+    private static void updateHeldRoles(@NonNull ArrayMap<String, ArraySet<String>> heldRoles,
+            @NonNull String packageName, @NonNull String roleName, boolean held) {
+        ArraySet<String> roleNames = heldRoles.get(packageName);
+        roleNames = roleNames != null ? new ArraySet<>(roleNames) : new ArraySet<>();
+        if (held) {
+            roleNames.add(roleName);
+        } else {
+            roleNames.remove(roleName);
+        }
+        if (roleNames.isEmpty()) {
+            heldRoles.remove(packageName);
+        } else {
+            heldRoles.put(packageName, roleNames);
+        }
+    }
+}
@@ -43,7 +43,6 @@ import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.TextUtils;
-import android.util.ArraySet;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.SparseArray;
@@ -56,6 +55,7 @@ import com.android.internal.annotations.GuardedBy;
 import com.android.internal.infra.AndroidFuture;
 import com.android.internal.util.Preconditions;
 import com.android.internal.util.dump.DualDumpOutputStream;
+import com.android.modules.utils.BackgroundThread;
 import com.android.permission.compat.UserHandleCompat;
 import com.android.permission.util.ArrayUtils;
 import com.android.permission.util.CollectionUtils;
@@ -94,6 +94,12 @@ public class RoleService extends SystemService implements RoleUserState.Callback
 
     private static final long GRANT_DEFAULT_ROLES_INTERVAL_MILLIS = 1000;
 
+    private static final long WRITE_DELAY_MILLIS = 200;
+
+    private static final long WRITE_MAX_LATENCY_MILLIS = 2000;
+
+    private static final int WRITE_MAX_BATCH_SIZE = 100;
+
     @NonNull
     private final AppOpsManager mAppOpsManager;
     @NonNull
@@ -112,6 +118,13 @@ public class RoleService extends SystemService implements RoleUserState.Callback
     @NonNull
     private final SparseArray<RoleUserState> mUserStates = new SparseArray<>();
 
+    /**
+     * A copy of {@link #mUserStates} that is never modified once published, for looking up existing
+     * user states without taking {@link #mLock}.
+     */
+    @NonNull
+    private volatile SparseArray<RoleUserState> mPublishedUserStates = new SparseArray<>();
+
     /**
      * Maps user id to its controller.
      */
@@ -130,6 +143,11 @@ public class RoleService extends SystemService implements RoleUserState.Callback
     @NonNull
     private final Handler mListenerHandler = ForegroundThread.getHandler();
 
+    @NonNull
+    private final RoleWriteScheduler mWriteScheduler = new RoleWriteScheduler(
+            new Handler(BackgroundThread.get().getLooper()), WRITE_DELAY_MILLIS,
+            WRITE_MAX_LATENCY_MILLIS, WRITE_MAX_BATCH_SIZE);
+
     @GuardedBy("mLock")
     private boolean mBypassingRoleQualification;
 
@@ -154,6 +172,7 @@ public class RoleService extends SystemService implements RoleUserState.Callback
         LocalManagerRegistry.addManager(RoleManagerLocal.class, new Local());
 
         registerUserRemovedReceiver();
+        registerShutdownReceiver();
     }
 
     private void registerUserRemovedReceiver() {
@@ -171,6 +190,16 @@ public class RoleService extends SystemService implements RoleUserState.Callback
         }, intentFilter, null, null);
     }
 
+    private void registerShutdownReceiver() {
+        IntentFilter intentFilter = new IntentFilter(Intent.ACTION_SHUTDOWN);
+        getContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(@NonNull Context context, @NonNull Intent intent) {
+                mWriteScheduler.flushAll();
+            }
+        }, intentFilter);
+    }
+
     @Override
     public void onStart() {
         publishBinderService(Context.ROLE_SERVICE, new Stub());
@@ -259,12 +288,17 @@ public class RoleService extends SystemService implements RoleUserState.Callback
 
     @NonNull
     private RoleUserState getOrCreateUserState(@UserIdInt int userId) {
+        RoleUserState userState = mPublishedUserStates.get(userId);
+        if (userState != null) {
+            return userState;
+        }
         synchronized (mLock) {
-            RoleUserState userState = mUserStates.get(userId);
+            userState = mUserStates.get(userId);
             if (userState == null) {
-                userState = new RoleUserState(userId, mPlatformHelper, this,
+                userState = new RoleUserState(userId, mPlatformHelper, mWriteScheduler, this,
                         mBypassingRoleQualification);
                 mUserStates.put(userId, userState);
+                mPublishedUserStates = mUserStates.clone();
             }
             return userState;
         }
@@ -321,6 +355,7 @@ public class RoleService extends SystemService implements RoleUserState.Callback
             mControllers.remove(userId);
             userState = mUserStates.get(userId);
             mUserStates.remove(userId);
+            mPublishedUserStates = mUserStates.clone();
         }
         if (listeners != null) {
             listeners.kill();
@@ -387,11 +422,7 @@ public class RoleService extends SystemService implements RoleUserState.Callback
             Preconditions.checkStringNotEmpty(packageName, "packageName cannot be null or empty");
 
             int userId = UserHandleCompat.getUserId(callingUid);
-            ArraySet<String> roleHolders = getOrCreateUserState(userId).getRoleHolders(roleName);
-            if (roleHolders == null) {
-                return false;
-            }
-            return roleHolders.contains(packageName);
+            return getOrCreateUserState(userId).isRoleHeld(roleName, packageName);
         }
 
         @NonNull
@@ -409,7 +440,7 @@ public class RoleService extends SystemService implements RoleUserState.Callback
 
             Preconditions.checkStringNotEmpty(roleName, "roleName cannot be null or empty");
 
-            ArraySet<String> roleHolders = getOrCreateUserState(userId).getRoleHolders(roleName);
+            Set<String> roleHolders = getOrCreateUserState(userId).getRoleHolders(roleName);
             if (roleHolders == null) {
                 return Collections.emptyList();
             }
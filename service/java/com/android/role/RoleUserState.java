@@ -22,7 +22,6 @@ import android.annotation.Nullable;
 import android.annotation.UserIdInt;
 import android.annotation.WorkerThread;
 import android.os.Build;
-import android.os.Handler;
 import android.os.UserHandle;
 import android.util.ArrayMap;
 import android.util.ArraySet;
@@ -32,13 +31,13 @@ import androidx.annotation.RequiresApi;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.dump.DualDumpOutputStream;
-import com.android.modules.utils.BackgroundThread;
 import com.android.permission.util.CollectionUtils;
 import com.android.role.persistence.RolesPersistence;
 import com.android.role.persistence.RolesState;
 import com.android.server.role.RoleServicePlatformHelper;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -53,8 +52,6 @@ class RoleUserState {
 
     public static final int VERSION_UNDEFINED = -1;
 
-    private static final long WRITE_DELAY_MILLIS = 200;
-
     private final RolesPersistence mPersistence = RolesPersistence.createInstance();
 
     @UserIdInt
@@ -63,6 +60,9 @@ class RoleUserState {
     @NonNull
     private final RoleServicePlatformHelper mPlatformHelper;
 
+    @NonNull
+    private final RoleWriteScheduler mWriteScheduler;
+
     @NonNull
     private final Callback mCallback;
 
@@ -80,33 +80,42 @@ class RoleUserState {
     private boolean mBypassingRoleQualification;
 
     /**
-     * Maps role names to its holders' package names. The values should never be null.
+     * The roles and their holders, along with the roles held by each package.
+     * <p>
+     * Snapshots are immutable, and writers holding {@link #mLock} publish a new one instead, so
+     * that readers don't need to take the lock or copy anything, and always see the holders and
+     * the held roles consistent with each other.
      */
-    @GuardedBy("mLock")
     @NonNull
-    private ArrayMap<String, ArraySet<String>> mRoles = new ArrayMap<>();
+    private volatile RoleHoldersSnapshot mSnapshot = RoleHoldersSnapshot.EMPTY;
+
+    @GuardedBy("mLock")
+    private boolean mDestroyed;
 
     @GuardedBy("mLock")
-    private boolean mWriteScheduled;
+    private long mWritesRequested;
 
     @GuardedBy("mLock")
-    private boolean mDestroyed;
+    private long mWritesPerformed;
 
-    @NonNull
-    private final Handler mWriteHandler = new Handler(BackgroundThread.get().getLooper());
+    @GuardedBy("mLock")
+    private long mBytesWritten;
 
     /**
      * Create a new user state, and read its state from disk if previously persisted.
      *
      * @param userId the user id for this user state
      * @param platformHelper the platform helper
+     * @param writeScheduler the write scheduler shared by all user states
      * @param callback the callback for this user state
      * @param bypassingRoleQualification whether role qualification is being bypassed
      */
     public RoleUserState(@UserIdInt int userId, @NonNull RoleServicePlatformHelper platformHelper,
-            @NonNull Callback callback, boolean bypassingRoleQualification) {
+            @NonNull RoleWriteScheduler writeScheduler, @NonNull Callback callback,
+            boolean bypassingRoleQualification) {
         mUserId = userId;
         mPlatformHelper = platformHelper;
+        mWriteScheduler = writeScheduler;
         mCallback = callback;
 
         synchronized (mLock) {
@@ -201,9 +210,7 @@ class RoleUserState {
      * @return whether the role is available
      */
     public boolean isRoleAvailable(@NonNull String roleName) {
-        synchronized (mLock) {
-            return mRoles.containsKey(roleName);
-        }
+        return mSnapshot.isRoleAvailable(roleName);
     }
 
     /**
@@ -211,17 +218,28 @@ class RoleUserState {
      *
      * @param roleName the name of the role to query for
      *
-     * @return the set of role holders, or {@code null} if and only if the role is not found
+     * @return the unmodifiable set of role holders, or {@code null} if and only if the role is not
+     *         found
      */
     @Nullable
-    public ArraySet<String> getRoleHolders(@NonNull String roleName) {
-        synchronized (mLock) {
-            ArraySet<String> packageNames = mRoles.get(roleName);
-            if (packageNames == null) {
-                return null;
-            }
-            return new ArraySet<>(packageNames);
+    public Set<String> getRoleHolders(@NonNull String roleName) {
+        ArraySet<String> packageNames = mSnapshot.getRoleHolders(roleName);
+        if (packageNames == null) {
+            return null;
         }
+        return Collections.unmodifiableSet(packageNames);
+    }
+
+    /**
+     * Check whether a package holds a role.
+     *
+     * @param roleName the name of the role to check for
+     * @param packageName the package name to check for
+     *
+     * @return whether the package holds the role
+     */
+    public boolean isRoleHeld(@NonNull String roleName, @NonNull String packageName) {
+        return mSnapshot.isRoleHeld(roleName, packageName);
     }
 
     /**
@@ -233,8 +251,9 @@ class RoleUserState {
      */
     public boolean addRoleName(@NonNull String roleName) {
         synchronized (mLock) {
-            if (!mRoles.containsKey(roleName)) {
-                mRoles.put(roleName, new ArraySet<>());
+            RoleHoldersSnapshot snapshot = mSnapshot.withRoleName(roleName);
+            if (snapshot != mSnapshot) {
+                mSnapshot = snapshot;
                 Log.i(LOG_TAG, "Added new role: " + roleName);
                 scheduleWriteFileLocked();
                 return true;
@@ -251,28 +270,33 @@ class RoleUserState {
      */
     public void setRoleNames(@NonNull List<String> roleNames) {
         synchronized (mLock) {
-            boolean changed = false;
+            ArrayMap<String, ArraySet<String>> roles = mSnapshot.getRoles();
 
-            for (int i = mRoles.size() - 1; i >= 0; i--) {
-                String roleName = mRoles.keyAt(i);
+            int rolesSize = roles.size();
+            for (int i = 0; i < rolesSize; i++) {
+                String roleName = roles.keyAt(i);
 
                 if (!roleNames.contains(roleName)) {
-                    ArraySet<String> packageNames = mRoles.valueAt(i);
+                    ArraySet<String> packageNames = roles.valueAt(i);
                     if (!packageNames.isEmpty()) {
                         Log.e(LOG_TAG, "Holders of a removed role should have been cleaned up,"
                                 + " role: " + roleName + ", holders: " + packageNames);
                     }
-                    mRoles.removeAt(i);
-                    changed = true;
                 }
             }
 
             int roleNamesSize = roleNames.size();
             for (int i = 0; i < roleNamesSize; i++) {
-                changed |= addRoleName(roleNames.get(i));
+                String roleName = roleNames.get(i);
+
+                if (!roles.containsKey(roleName)) {
+                    Log.i(LOG_TAG, "Added new role: " + roleName);
+                }
             }
 
-            if (changed) {
+            RoleHoldersSnapshot snapshot = mSnapshot.withRoleNames(roleNames);
+            if (snapshot != mSnapshot) {
+                mSnapshot = snapshot;
                 scheduleWriteFileLocked();
             }
         }
@@ -291,14 +315,15 @@ class RoleUserState {
         boolean changed;
 
         synchronized (mLock) {
-            ArraySet<String> roleHolders = mRoles.get(roleName);
-            if (roleHolders == null) {
+            if (!mSnapshot.isRoleAvailable(roleName)) {
                 Log.e(LOG_TAG, "Cannot add role holder for unknown role, role: " + roleName
                         + ", package: " + packageName);
                 return false;
             }
-            changed = roleHolders.add(packageName);
+            RoleHoldersSnapshot snapshot = mSnapshot.withRoleHolder(roleName, packageName, true);
+            changed = snapshot != mSnapshot;
             if (changed) {
+                mSnapshot = snapshot;
                 scheduleWriteFileLocked();
             }
         }
@@ -322,15 +347,16 @@ class RoleUserState {
         boolean changed;
 
         synchronized (mLock) {
-            ArraySet<String> roleHolders = mRoles.get(roleName);
-            if (roleHolders == null) {
+            if (!mSnapshot.isRoleAvailable(roleName)) {
                 Log.e(LOG_TAG, "Cannot remove role holder for unknown role, role: " + roleName
                         + ", package: " + packageName);
                 return false;
             }
 
-            changed = roleHolders.remove(packageName);
+            RoleHoldersSnapshot snapshot = mSnapshot.withRoleHolder(roleName, packageName, false);
+            changed = snapshot != mSnapshot;
             if (changed) {
+                mSnapshot = snapshot;
                 scheduleWriteFileLocked();
             }
         }
@@ -346,16 +372,11 @@ class RoleUserState {
      */
     @NonNull
     public List<String> getHeldRoles(@NonNull String packageName) {
-        synchronized (mLock) {
-            List<String> roleNames = new ArrayList<>();
-            int size = mRoles.size();
-            for (int i = 0; i < size; i++) {
-                if (mRoles.valueAt(i).contains(packageName)) {
-                    roleNames.add(mRoles.keyAt(i));
-                }
-            }
-            return roleNames;
+        ArraySet<String> roleNames = mSnapshot.getHeldRoles(packageName);
+        if (roleNames == null) {
+            return new ArrayList<>();
         }
+        return new ArrayList<>(roleNames);
     }
 
     /**
@@ -367,10 +388,8 @@ class RoleUserState {
             return;
         }
 
-        if (!mWriteScheduled) {
-            mWriteHandler.postDelayed(this::writeFile, WRITE_DELAY_MILLIS);
-            mWriteScheduled = true;
-        }
+        mWritesRequested++;
+        mWriteScheduler.scheduleWrite(mUserId, this::writeFile);
     }
 
     @WorkerThread
@@ -381,15 +400,18 @@ class RoleUserState {
                 return;
             }
 
-            mWriteScheduled = false;
-
             // Force a reconciliation on next boot if we are bypassing role qualification now.
             String packagesHash = mBypassingRoleQualification ? null : mPackagesHash;
+            // The published roles are never modified, so they can be written without copying.
             roles = new RolesState(mVersion, packagesHash,
-                    (Map<String, Set<String>>) (Map<String, ?>) snapshotRolesLocked());
+                    (Map<String, Set<String>>) (Map<String, ?>) mSnapshot.getRoles());
         }
 
-        mPersistence.writeForUser(roles, UserHandle.of(mUserId));
+        long bytesWritten = mPersistence.writeForUser(roles, UserHandle.of(mUserId));
+        synchronized (mLock) {
+            mWritesPerformed++;
+            mBytesWritten += bytesWritten;
+        }
     }
 
     private void readFile() {
@@ -404,12 +426,7 @@ class RoleUserState {
             } else {
                 roles = mPlatformHelper.getLegacyRoleState(mUserId);
             }
-            mRoles.clear();
-            for (Map.Entry<String, Set<String>> entry : roles.entrySet()) {
-                String roleName = entry.getKey();
-                ArraySet<String> roleHolders = new ArraySet<>(entry.getValue());
-                mRoles.put(roleName, roleHolders);
-            }
+            mSnapshot = RoleHoldersSnapshot.create(roles);
 
             if (roleState == null) {
                 scheduleWriteFileLocked();
@@ -427,16 +444,28 @@ class RoleUserState {
         int version;
         String packagesHash;
         ArrayMap<String, ArraySet<String>> roles;
+        long writesRequested;
+        long writesPerformed;
+        long bytesWritten;
         synchronized (mLock) {
             version = mVersion;
             packagesHash = mPackagesHash;
-            roles = snapshotRolesLocked();
+            roles = mSnapshot.getRoles();
+            writesRequested = mWritesRequested;
+            writesPerformed = mWritesPerformed;
+            bytesWritten = mBytesWritten;
         }
 
         long fieldToken = dumpOutputStream.start(fieldName, fieldId);
         dumpOutputStream.write("user_id", RoleUserStateProto.USER_ID, mUserId);
         dumpOutputStream.write("version", RoleUserStateProto.VERSION, version);
         dumpOutputStream.write("packages_hash", RoleUserStateProto.PACKAGES_HASH, packagesHash);
+        dumpOutputStream.write("writes_requested", RoleUserStateProto.WRITES_REQUESTED,
+                writesRequested);
+        dumpOutputStream.write("writes_performed", RoleUserStateProto.WRITES_PERFORMED,
+                writesPerformed);
+        dumpOutputStream.write("approximate_bytes_written",
+                RoleUserStateProto.APPROXIMATE_BYTES_WRITTEN, bytesWritten);
 
         int rolesSize = roles.size();
         for (int rolesIndex = 0; rolesIndex < rolesSize; rolesIndex++) {
@@ -466,23 +495,16 @@ class RoleUserState {
      */
     @NonNull
     public ArrayMap<String, ArraySet<String>> getRolesAndHolders() {
-        synchronized (mLock) {
-            return snapshotRolesLocked();
-        }
-    }
-
-    @GuardedBy("mLock")
-    @NonNull
-    private ArrayMap<String, ArraySet<String>> snapshotRolesLocked() {
-        ArrayMap<String, ArraySet<String>> roles = new ArrayMap<>();
-        for (int i = 0, size = CollectionUtils.size(mRoles); i < size; ++i) {
-            String roleName = mRoles.keyAt(i);
-            ArraySet<String> roleHolders = mRoles.valueAt(i);
+        ArrayMap<String, ArraySet<String>> roles = mSnapshot.getRoles();
+        ArrayMap<String, ArraySet<String>> rolesCopy = new ArrayMap<>();
+        for (int i = 0, size = CollectionUtils.size(roles); i < size; ++i) {
+            String roleName = roles.keyAt(i);
+            ArraySet<String> roleHolders = roles.valueAt(i);
 
             roleHolders = new ArraySet<>(roleHolders);
-            roles.put(roleName, roleHolders);
+            rolesCopy.put(roleName, roleHolders);
         }
-        return roles;
+        return rolesCopy;
     }
 
     /**
@@ -494,7 +516,7 @@ class RoleUserState {
             if (mDestroyed) {
                 throw new IllegalStateException("This RoleUserState has already been destroyed");
             }
-            mWriteHandler.removeCallbacksAndMessages(null);
+            mWriteScheduler.cancel(mUserId);
             mPersistence.deleteForUser(UserHandle.of(mUserId));
             mDestroyed = true;
         }
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.role;
+
+import android.annotation.NonNull;
+import android.annotation.UserIdInt;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import androidx.annotation.RequiresApi;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write-behind scheduler for role user states, shared by all users.
+ * <p>
+ * Write requests are coalesced per user: the write happens once no new request has arrived for
+ * the write delay, but no later than the maximum latency after the first coalesced request, and
+ * right away once the maximum batch size of coalesced requests has been reached.
+ */
+@RequiresApi(Build.VERSION_CODES.S)
+class RoleWriteScheduler {
+
+    @NonNull
+    private final Handler mHandler;
+
+    private final long mWriteDelayMillis;
+
+    private final long mMaxLatencyMillis;
+
+    private final int mMaxBatchSize;
+
+    @NonNull
+    private final Object mLock = new Object();
+
+    /**
+     * Maps user id to its pending write.
+     */
+    @GuardedBy("mLock")
+    @NonNull
+    private final SparseArray<PendingWrite> mPendingWrites = new SparseArray<>();
+
+    /**
+     * Create a new write scheduler.
+     *
+     * @param handler the handler to perform writes on
+     * @param writeDelayMillis the delay after the last request before writing
+     * @param maxLatencyMillis the maximum delay after the first request before writing
+     * @param maxBatchSize the number of coalesced requests after which to write right away
+     */
+    RoleWriteScheduler(@NonNull Handler handler, long writeDelayMillis, long maxLatencyMillis,
+            int maxBatchSize) {
+        mHandler = handler;
+        mWriteDelayMillis = writeDelayMillis;
+        mMaxLatencyMillis = maxLatencyMillis;
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Schedule a write for a user, coalescing it with any pending write for that user.
+     *
+     * @param userId the user id to write for
+     * @param write the write to perform, which replaces the one of any pending write
+     */
+    public void scheduleWrite(@UserIdInt int userId, @NonNull Runnable write) {
+        synchronized (mLock) {
+            long currentUptimeMillis = SystemClock.uptimeMillis();
+            PendingWrite pendingWrite = mPendingWrites.get(userId);
+            if (pendingWrite == null) {
+                pendingWrite = new PendingWrite(userId, currentUptimeMillis);
+                mPendingWrites.put(userId, pendingWrite);
+            } else {
+                mHandler.removeCallbacks(pendingWrite);
+            }
+            pendingWrite.mWrite = write;
+            pendingWrite.mRequestCount++;
+
+            long writeUptimeMillis;
+            if (pendingWrite.mRequestCount >= mMaxBatchSize) {
+                writeUptimeMillis = currentUptimeMillis;
+            } else {
+                writeUptimeMillis = Math.min(currentUptimeMillis + mWriteDelayMillis,
+                        pendingWrite.mFirstRequestUptimeMillis + mMaxLatencyMillis);
+            }
+            mHandler.postAtTime(pendingWrite, writeUptimeMillis);
+        }
+    }
+
+    /**
+     * Cancel any pending write for a user.
+     *
+     * @param userId the user id to cancel the pending write for
+     */
+    public void cancel(@UserIdInt int userId) {
+        synchronized (mLock) {
+            PendingWrite pendingWrite = mPendingWrites.get(userId);
+            if (pendingWrite == null) {
+                return;
+            }
+            mPendingWrites.remove(userId);
+            mHandler.removeCallbacks(pendingWrite);
+        }
+    }
+
+    /**
+     * Perform all pending writes on the handler as soon as possible, without waiting for them.
+     * <p>
+     * The writes are performed on the handler so that they can't race with a write already in
+     * progress there, which might be of an older state for the same user, and so that the caller
+     * isn't blocked on I/O.
+     */
+    public void flushAll() {
+        mHandler.postAtFrontOfQueue(this::flushAllOnHandler);
+    }
+
+    private void flushAllOnHandler() {
+        List<Runnable> writes = new ArrayList<>();
+        synchronized (mLock) {
+            int pendingWritesSize = mPendingWrites.size();
+            for (int i = 0; i < pendingWritesSize; i++) {
+                PendingWrite pendingWrite = mPendingWrites.valueAt(i);
+                mHandler.removeCallbacks(pendingWrite);
+                writes.add(pendingWrite.mWrite);
+            }
+            mPendingWrites.clear();
+        }
+        int writesSize = writes.size();
+        for (int i = 0; i < writesSize; i++) {
+            writes.get(i).run();
+        }
+    }
+
+    /**
+     * A pending write for a user, posted to the handler.
+     */
+    private class PendingWrite implements Runnable {
+
+        @UserIdInt
+        private final int mUserId;
+
+        private final long mFirstRequestUptimeMillis;
+
+        @GuardedBy("mLock")
+        private Runnable mWrite;
+
+        @GuardedBy("mLock")
+        private int mRequestCount;
+
+        PendingWrite(@UserIdInt int userId, long firstRequestUptimeMillis) {
+            mUserId = userId;
+            mFirstRequestUptimeMillis = firstRequestUptimeMillis;
+        }
+
+        @Override
+        public void run() {
+            Runnable write;
+            synchronized (mLock) {
+                if (mPendingWrites.get(mUserId) != this) {
+                    return;
+                }
+                mPendingWrites.remove(mUserId);
+                write = mWrite;
+            }
+            write.run();
+        }
+    }
+}
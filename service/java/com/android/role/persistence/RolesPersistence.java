@@ -49,8 +49,9 @@ public interface RolesPersistence {
      *
      * @param roles the roles to write
      * @param user the user to write for
+     * @return the number of bytes written, or {@code 0} if the write failed
      */
-    void writeForUser(@NonNull RolesState roles, @NonNull UserHandle user);
+    long writeForUser(@NonNull RolesState roles, @NonNull UserHandle user);
 
     /**
      * Delete the roles from persistence.
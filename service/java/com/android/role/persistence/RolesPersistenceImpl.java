@@ -146,7 +146,7 @@ public class RolesPersistenceImpl implements RolesPersistence {
     }
 
     @Override
-    public void writeForUser(@NonNull RolesState roles, @NonNull UserHandle user) {
+    public long writeForUser(@NonNull RolesState roles, @NonNull UserHandle user) {
         File file = getFile(user);
         AtomicFile atomicFile = new AtomicFile(file);
         FileOutputStream outputStream = null;
@@ -161,11 +161,16 @@ public class RolesPersistenceImpl implements RolesPersistence {
             serializeRoles(serializer, roles);
 
             serializer.endDocument();
+            serializer.flush();
+            // The file was truncated when the write started.
+            long bytesWritten = outputStream.getChannel().position();
             atomicFile.finishWrite(outputStream);
+            return bytesWritten;
         } catch (Exception e) {
             Log.wtf(LOG_TAG, "Failed to write roles.xml, restoring backup: " + file,
                     e);
             atomicFile.failWrite(outputStream);
+            return 0;
         } finally {
             IoUtils.closeQuietly(outputStream);
         }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.safetycenter;
+
+import static android.os.Build.VERSION_CODES.TIRAMISU;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Parcel;
+import android.safetycenter.config.SafetyCenterConfig;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A cache of the parsed {@link SafetyCenterConfig}, persisted as a marshalled {@link Parcel} so
+ * that the config XML doesn't need to be parsed again on every boot.
+ *
+ * <p>The cached config is only returned for the exact key it was written with, which should
+ * identify the config XML and the resources it refers to.
+ *
+ * <p>This class isn't thread safe. Thread safety must be handled by the caller.
+ */
+@RequiresApi(TIRAMISU)
+final class SafetyCenterConfigCache {
+
+    private static final String TAG = "SafetyCenterConfigCach";
+
+    /** The version of the cache file format, to be incremented whenever it changes. */
+    private static final int FORMAT_VERSION = 1;
+
+    @NonNull private final AtomicFile mFile;
+
+    /** Creates a {@link SafetyCenterConfigCache} persisted in the given {@link File}. */
+    SafetyCenterConfigCache(@NonNull File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * Returns the cached {@link SafetyCenterConfig} if it was written with the given {@code key}.
+     *
+     * <p>Returns {@code null} if there is no cached config, if it was written with another key, or
+     * if it cannot be read.
+     */
+    @Nullable
+    SafetyCenterConfig read(@NonNull String key) {
+        byte[] data;
+        try {
+            data = mFile.readFully();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read SafetyCenterConfig cache", e);
+            return null;
+        }
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != FORMAT_VERSION || !key.equals(in.readUTF())) {
+                return null;
+            }
+            byte[] marshalledConfig = new byte[in.readInt()];
+            in.readFully(marshalledConfig);
+            parcel.unmarshall(marshalledConfig, 0, marshalledConfig.length);
+            parcel.setDataPosition(0);
+            return SafetyCenterConfig.CREATOR.createFromParcel(parcel);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Cannot parse SafetyCenterConfig cache", e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /** Writes the given {@link SafetyCenterConfig} to the cache with the given {@code key}. */
+    void write(@NonNull String key, @NonNull SafetyCenterConfig safetyCenterConfig) {
+        byte[] marshalledConfig;
+        Parcel parcel = Parcel.obtain();
+        try {
+            safetyCenterConfig.writeToParcel(parcel, 0);
+            marshalledConfig = parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+
+        FileOutputStream outputStream = null;
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(data);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(key);
+            out.writeInt(marshalledConfig.length);
+            out.write(marshalledConfig);
+            out.flush();
+
+            outputStream = mFile.startWrite();
+            outputStream.write(data.toByteArray());
+            mFile.finishWrite(outputStream);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write SafetyCenterConfig cache", e);
+            mFile.failWrite(outputStream);
+        }
+    }
+}
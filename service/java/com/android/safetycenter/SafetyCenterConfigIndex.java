@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.safetycenter;
+
+import static android.os.Build.VERSION_CODES.TIRAMISU;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.safetycenter.config.SafetyCenterConfig;
+import android.safetycenter.config.SafetySource;
+import android.safetycenter.config.SafetySourcesGroup;
+import android.util.ArrayMap;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable index of a {@link SafetyCenterConfig}, precomputed once when the config is loaded
+ * so that looking up safety sources doesn't require walking every {@link SafetySourcesGroup}.
+ *
+ * <p>This class is immutable and thread safe.
+ */
+@RequiresApi(TIRAMISU)
+final class SafetyCenterConfigIndex {
+
+    @NonNull private final SafetyCenterConfig mSafetyCenterConfig;
+
+    /** Maps the id of each non-static safety source to the safety source. */
+    @NonNull private final ArrayMap<String, SafetySource> mDynamicSafetySourcesById;
+
+    /**
+     * Maps the id of each non-static safety source to the index of its {@link SafetySourcesGroup}
+     * in {@link SafetyCenterConfig#getSafetySourcesGroups()}.
+     */
+    @NonNull private final ArrayMap<String, Integer> mSafetySourcesGroupIndexById;
+
+    @NonNull private final List<SafetySource> mDynamicSafetySources;
+
+    /** The non-static safety sources of each {@link SafetySourcesGroup}, in config order. */
+    @NonNull private final List<List<SafetySource>> mDynamicSafetySourcesByGroup;
+
+    private SafetyCenterConfigIndex(
+            @NonNull SafetyCenterConfig safetyCenterConfig,
+            @NonNull ArrayMap<String, SafetySource> dynamicSafetySourcesById,
+            @NonNull ArrayMap<String, Integer> safetySourcesGroupIndexById,
+            @NonNull List<SafetySource> dynamicSafetySources,
+            @NonNull List<List<SafetySource>> dynamicSafetySourcesByGroup) {
+        mSafetyCenterConfig = safetyCenterConfig;
+        mDynamicSafetySourcesById = dynamicSafetySourcesById;
+        mSafetySourcesGroupIndexById = safetySourcesGroupIndexById;
+        mDynamicSafetySources = dynamicSafetySources;
+        mDynamicSafetySourcesByGroup = dynamicSafetySourcesByGroup;
+    }
+
+    /** Creates a {@link SafetyCenterConfigIndex} for the given {@link SafetyCenterConfig}. */
+    @NonNull
+    static SafetyCenterConfigIndex of(@NonNull SafetyCenterConfig safetyCenterConfig) {
+        ArrayMap<String, SafetySource> dynamicSafetySourcesById = new ArrayMap<>();
+        ArrayMap<String, Integer> safetySourcesGroupIndexById = new ArrayMap<>();
+        List<SafetySource> dynamicSafetySources = new ArrayList<>();
+        List<SafetySourcesGroup> safetySourcesGroups = safetyCenterConfig.getSafetySourcesGroups();
+        List<List<SafetySource>> dynamicSafetySourcesByGroup =
+                new ArrayList<>(safetySourcesGroups.size());
+        for (int i = 0; i < safetySourcesGroups.size(); i++) {
+            SafetySourcesGroup safetySourcesGroup = safetySourcesGroups.get(i);
+
+            List<SafetySource> safetySources = safetySourcesGroup.getSafetySources();
+            List<SafetySource> groupDynamicSafetySources = new ArrayList<>(safetySources.size());
+            for (int j = 0; j < safetySources.size(); j++) {
+                SafetySource safetySource = safetySources.get(j);
+
+                if (safetySource.getType() == SafetySource.SAFETY_SOURCE_TYPE_STATIC) {
+                    continue;
+                }
+
+                dynamicSafetySourcesById.put(safetySource.getId(), safetySource);
+                safetySourcesGroupIndexById.put(safetySource.getId(), i);
+                dynamicSafetySources.add(safetySource);
+                groupDynamicSafetySources.add(safetySource);
+            }
+            dynamicSafetySourcesByGroup.add(
+                    Collections.unmodifiableList(groupDynamicSafetySources));
+        }
+        return new SafetyCenterConfigIndex(
+                safetyCenterConfig,
+                dynamicSafetySourcesById,
+                safetySourcesGroupIndexById,
+                Collections.unmodifiableList(dynamicSafetySources),
+                Collections.unmodifiableList(dynamicSafetySourcesByGroup));
+    }
+
+    /** Returns the indexed {@link SafetyCenterConfig}. */
+    @NonNull
+    SafetyCenterConfig getSafetyCenterConfig() {
+        return mSafetyCenterConfig;
+    }
+
+    /**
+     * Returns the non-static {@link SafetySource} with the given {@code safetySourceId}, if it
+     * belongs to the given {@code packageName}.
+     *
+     * <p>Returns {@code null} if there is no such safety source.
+     */
+    @Nullable
+    SafetySource getDynamicSafetySource(
+            @NonNull String safetySourceId, @NonNull String packageName) {
+        SafetySource safetySource = mDynamicSafetySourcesById.get(safetySourceId);
+        if (safetySource == null || !packageName.equals(safetySource.getPackageName())) {
+            return null;
+        }
+        return safetySource;
+    }
+
+    /**
+     * Returns whether the config contains a non-static {@link SafetySource} with the given {@code
+     * safetySourceId} and {@code packageName}.
+     */
+    boolean containsDynamicSafetySource(
+            @NonNull String safetySourceId, @NonNull String packageName) {
+        return getDynamicSafetySource(safetySourceId, packageName) != null;
+    }
+
+    /**
+     * Returns the index in {@link SafetyCenterConfig#getSafetySourcesGroups()} of the {@link
+     * SafetySourcesGroup} containing the non-static {@link SafetySource} with the given {@code
+     * safetySourceId} and {@code packageName}.
+     *
+     * <p>Returns {@code -1} if there is no such safety source.
+     */
+    int getSafetySourcesGroupIndex(@NonNull String safetySourceId, @NonNull String packageName) {
+        if (!containsDynamicSafetySource(safetySourceId, packageName)) {
+            return -1;
+        }
+        return mSafetySourcesGroupIndexById.get(safetySourceId);
+    }
+
+    /** Returns all the non-static {@link SafetySource}s of the config, in config order. */
+    @NonNull
+    List<SafetySource> getDynamicSafetySources() {
+        return mDynamicSafetySources;
+    }
+
+    /**
+     * Returns the non-static {@link SafetySource}s of the {@link SafetySourcesGroup} at the given
+     * index in {@link SafetyCenterConfig#getSafetySourcesGroups()}, in config order.
+     */
+    @NonNull
+    List<SafetySource> getDynamicSafetySources(int safetySourcesGroupIndex) {
+        return mDynamicSafetySourcesByGroup.get(safetySourcesGroupIndex);
+    }
+}
@@ -21,18 +21,25 @@ import static android.os.Build.VERSION_CODES.TIRAMISU;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.annotation.StringRes;
+import android.content.ApexEnvironment;
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.safetycenter.config.SafetyCenterConfig;
 import android.util.Log;
 
 import androidx.annotation.RequiresApi;
 
+import com.android.modules.utils.BackgroundThread;
 import com.android.safetycenter.config.ParseException;
 import com.android.safetycenter.config.SafetyCenterConfigParser;
 import com.android.safetycenter.resources.SafetyCenterResourcesContext;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.zip.CRC32;
 
 /**
  * A class that reads the {@link SafetyCenterConfig} from the associated {@link
@@ -43,10 +50,18 @@ final class SafetyCenterConfigReader {
 
     private static final String TAG = "SafetyCenterConfigReade";
 
+    private static final String APEX_MODULE_NAME = "com.android.permission";
+
+    private static final String CONFIG_CACHE_FILE_NAME = "safety_center_config.cache";
+
     private final Object mSafetyCenterConfigLock = new Object();
     @NonNull private final SafetyCenterResourcesContext mSafetyCenterResourcesContext;
 
-    @Nullable private SafetyCenterConfig mSafetyCenterConfig;
+    /**
+     * The {@link SafetyCenterConfigIndex} of the {@link SafetyCenterConfig} currently loaded,
+     * replaced as a whole whenever the config is loaded again.
+     */
+    @Nullable private volatile SafetyCenterConfigIndex mSafetyCenterConfigIndex;
 
     /**
      * Creates a {@link SafetyCenterConfigReader} from a {@link Context} object by wrapping it into
@@ -64,12 +79,23 @@ final class SafetyCenterConfigReader {
      */
     @Nullable
     SafetyCenterConfig getSafetyCenterConfig() {
-        if (mSafetyCenterConfig == null) {
-            synchronized (mSafetyCenterConfigLock) {
-                return mSafetyCenterConfig;
-            }
+        SafetyCenterConfigIndex safetyCenterConfigIndex = mSafetyCenterConfigIndex;
+        if (safetyCenterConfigIndex == null) {
+            return null;
         }
-        return mSafetyCenterConfig;
+        return safetyCenterConfigIndex.getSafetyCenterConfig();
+    }
+
+    /**
+     * Returns the {@link SafetyCenterConfigIndex} of the {@link SafetyCenterConfig} read by {@link
+     * #loadSafetyCenterConfig()}.
+     *
+     * <p>Returns {@code null} if {@link #loadSafetyCenterConfig()} was never called or if there was
+     * an issue when reading the {@link SafetyCenterConfig}.
+     */
+    @Nullable
+    SafetyCenterConfigIndex getSafetyCenterConfigIndex() {
+        return mSafetyCenterConfigIndex;
     }
 
     /**
@@ -100,15 +126,30 @@ final class SafetyCenterConfigReader {
      */
     void loadSafetyCenterConfig() {
         synchronized (mSafetyCenterConfigLock) {
-            mSafetyCenterConfig = readSafetyCenterConfig();
+            SafetyCenterConfig safetyCenterConfig = readSafetyCenterConfig();
+            mSafetyCenterConfigIndex =
+                    safetyCenterConfig != null
+                            ? SafetyCenterConfigIndex.of(safetyCenterConfig)
+                            : null;
         }
     }
 
+    /**
+     * Reads the {@link SafetyCenterConfig} from the {@link SafetyCenterConfigCache} if it was
+     * cached for the same resources APK version and config XML, or parses the config XML and
+     * caches the result otherwise.
+     */
     @Nullable
     private SafetyCenterConfig readSafetyCenterConfig() {
-        InputStream in = mSafetyCenterResourcesContext.getSafetyCenterConfig();
-        if (in == null) {
-            Log.e(TAG, "Cannot get safety center config file");
+        byte[] configXml;
+        try (InputStream in = mSafetyCenterResourcesContext.getSafetyCenterConfig()) {
+            if (in == null) {
+                Log.e(TAG, "Cannot get safety center config file");
+                return null;
+            }
+            configXml = in.readAllBytes();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read safety center config file", e);
             return null;
         }
 
@@ -118,14 +159,73 @@ final class SafetyCenterConfigReader {
             return null;
         }
 
+        String cacheKey = getConfigCacheKey(configXml);
+        SafetyCenterConfigCache configCache =
+                cacheKey != null ? new SafetyCenterConfigCache(getConfigCacheFile()) : null;
+        if (configCache != null) {
+            SafetyCenterConfig cachedSafetyCenterConfig = configCache.read(cacheKey);
+            if (cachedSafetyCenterConfig != null) {
+                Log.i(TAG, "SafetyCenterConfig read successfully from cache");
+                return cachedSafetyCenterConfig;
+            }
+        }
+
+        SafetyCenterConfig safetyCenterConfig;
         try {
-            SafetyCenterConfig safetyCenterConfig =
-                    SafetyCenterConfigParser.parseXmlResource(in, resources);
+            safetyCenterConfig =
+                    SafetyCenterConfigParser.parseXmlResource(
+                            new ByteArrayInputStream(configXml), resources);
             Log.i(TAG, "SafetyCenterConfig read successfully");
-            return safetyCenterConfig;
         } catch (ParseException e) {
             Log.e(TAG, "Cannot read SafetyCenterConfig", e);
             return null;
         }
+
+        if (configCache != null) {
+            // Writing the cache isn't needed for the config to be available.
+            BackgroundThread.getHandler()
+                    .post(() -> configCache.write(cacheKey, safetyCenterConfig));
+        }
+        return safetyCenterConfig;
+    }
+
+    /**
+     * Returns the key identifying the given config XML in the {@link SafetyCenterConfigCache},
+     * made of the package name and version code of the resources APK and of a checksum of the
+     * config XML.
+     *
+     * <p>Returns {@code null} if the resources APK cannot be resolved, in which case the config
+     * shouldn't be cached.
+     */
+    @Nullable
+    private String getConfigCacheKey(@NonNull byte[] configXml) {
+        String resourcesApkPackageName = mSafetyCenterResourcesContext.getResourcesApkPkgName();
+        if (resourcesApkPackageName == null) {
+            return null;
+        }
+        long resourcesApkVersionCode;
+        try {
+            resourcesApkVersionCode =
+                    mSafetyCenterResourcesContext
+                            .getPackageManager()
+                            .getPackageInfo(resourcesApkPackageName, 0)
+                            .getLongVersionCode();
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Cannot get safety center resources APK version, not caching config", e);
+            return null;
+        }
+        CRC32 configXmlChecksum = new CRC32();
+        configXmlChecksum.update(configXml);
+        return resourcesApkPackageName
+                + ":"
+                + resourcesApkVersionCode
+                + ":"
+                + Long.toHexString(configXmlChecksum.getValue());
+    }
+
+    @NonNull
+    private static File getConfigCacheFile() {
+        ApexEnvironment apexEnvironment = ApexEnvironment.getApexEnvironment(APEX_MODULE_NAME);
+        return new File(apexEnvironment.getDeviceProtectedDataDir(), CONFIG_CACHE_FILE_NAME);
     }
 }
@@ -28,6 +28,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Binder;
+import android.os.LocaleList;
+import android.os.UserHandle;
+import android.provider.DeviceConfig;
 import android.safetycenter.SafetyCenterData;
 import android.safetycenter.SafetyCenterEntry;
 import android.safetycenter.SafetyCenterEntryGroup;
@@ -43,31 +46,71 @@ import android.safetycenter.config.SafetyCenterConfig;
 import android.safetycenter.config.SafetySource;
 import android.safetycenter.config.SafetySourcesGroup;
 import android.util.Log;
+import android.util.SparseArray;
 
 import androidx.annotation.RequiresApi;
 
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 
 /**
  * A class that keeps track of all the {@link SafetySourceData} set by safety sources, and
  * aggregates them into a {@link SafetyCenterData} object to be used by permission controller.
  *
- * <p>This class isn't thread safe. Thread safety must be handled by the caller.
+ * <p>The {@link SafetyCenterData} of a {@link UserProfileGroup} merges the contribution of each of
+ * its users, which is materialized separately so that an update for a user only recomputes that
+ * user's contribution.
+ *
+ * <p>This class is thread safe. Its state is partitioned by user, and each partition is guarded
+ * by its own lock so that calls for different users never contend with each other.
  */
 @RequiresApi(TIRAMISU)
 final class SafetyCenterDataTracker {
 
     private static final String TAG = "SafetyCenterDataTracker";
 
-    private final Map<Key, SafetySourceData> mSafetySourceDataForKey = new HashMap<>();
+    /**
+     * Device Config property for the maximum number of issues in the {@link SafetySourceData} of a
+     * safety source.
+     */
+    private static final String PROPERTY_MAX_ISSUES_PER_SAFETY_SOURCE =
+            "safety_center_max_issues_per_safety_source";
+
+    private static final int DEFAULT_MAX_ISSUES_PER_SAFETY_SOURCE = 20;
+
+    /**
+     * Device Config property for the maximum serialized size in bytes of the {@link
+     * SafetySourceData} of a safety source.
+     */
+    private static final String PROPERTY_MAX_SAFETY_SOURCE_DATA_BYTES =
+            "safety_center_max_safety_source_data_bytes";
+
+    private static final int DEFAULT_MAX_SAFETY_SOURCE_DATA_BYTES = 64 * 1024;
+
+    private final Object mUserDataLock = new Object();
+
+    /**
+     * The {@link UserData} partition of each user. This lock only guards the partitions
+     * themselves, and is the only one shared across users.
+     */
+    @GuardedBy("mUserDataLock")
+    private final SparseArray<UserData> mUserData = new SparseArray<>();
 
     @NonNull private final Context mContext;
     @NonNull private final SafetyCenterConfigReader mSafetyCenterConfigReader;
 
+    private final Object mLimitsLock = new Object();
+
+    /**
+     * The limits on the {@link SafetySourceData} of a single safety source, read from Device
+     * Config on first use and kept up to date by a properties listener.
+     */
+    @Nullable private volatile Limits mLimits;
+
     /**
      * Creates a {@link SafetyCenterDataTracker} using the given {@link Context} and {@link
      * SafetyCenterConfigReader}.
@@ -80,30 +123,95 @@ final class SafetyCenterDataTracker {
 
     /**
      * Sets the latest {@link SafetySourceData} for the given {@code safetySourceId} and {@code
-     * userId}, and returns the updated {@link SafetyCenterData} of the {@code userId}.
+     * userId}, and returns whether the {@link SafetyCenterData} of the {@code userId} may have
+     * changed as a result.
      *
-     * <p>Returns {@code null} if there was no update to the underlying {@link SafetyCenterData}, or
-     * if the {@link SafetyCenterConfig} is not available.
+     * <p>Returns {@code false} if there was no update to the underlying {@link SafetyCenterData},
+     * or if the {@link SafetyCenterConfig} is not available.
+     *
+     * <p>Throws an {@link IllegalArgumentException} if the {@link SafetySourceData} has more issues
+     * or is larger than allowed for a single safety source, in which case the data previously set
+     * is kept.
+     *
+     * <p>Duplicate updates are rejected before the {@link SafetySourceData} is measured, and
+     * mostly without a deep comparison as {@link SafetySourceData} caches its hash code.
      */
-    @Nullable
-    SafetyCenterData setSafetySourceData(
+    boolean setSafetySourceData(
             @NonNull String safetySourceId,
             @Nullable SafetySourceData safetySourceData,
             @NonNull String packageName,
             @UserIdInt int userId) {
         if (!configContains(safetySourceId, packageName)) {
             // TODO(b/218801292): Should this be hard error for the caller?
-            return null;
+            return false;
         }
 
-        Key key = Key.of(safetySourceId, packageName, userId);
-        SafetySourceData existingSafetySourceData = mSafetySourceDataForKey.get(key);
-        if (Objects.equals(safetySourceData, existingSafetySourceData)) {
-            return null;
+        UserData userData = getOrCreateUserData(userId);
+        synchronized (userData.mLock) {
+            if (isDuplicateUpdateLocked(userData, safetySourceId, safetySourceData, packageName)) {
+                return false;
+            }
+        }
+
+        int retainedBytes = 0;
+        if (safetySourceData != null) {
+            Limits limits = getLimits();
+            if (safetySourceData.getIssues().size() > limits.mMaxIssuesPerSafetySource) {
+                throw new IllegalArgumentException(
+                        "SafetySourceData of "
+                                + safetySourceId
+                                + " has more than "
+                                + limits.mMaxIssuesPerSafetySource
+                                + " issues");
+            }
+            retainedBytes = SafetySourceDataStore.getRetainedBytes(safetySourceData);
+            if (retainedBytes > limits.mMaxSafetySourceDataBytes) {
+                throw new IllegalArgumentException(
+                        "SafetySourceData of "
+                                + safetySourceId
+                                + " is larger than "
+                                + limits.mMaxSafetySourceDataBytes
+                                + " bytes");
+            }
         }
 
-        mSafetySourceDataForKey.put(key, safetySourceData);
-        return getSafetyCenterData(userId);
+        synchronized (userData.mLock) {
+            // The data may have been set by a racing call since the check above.
+            if (isDuplicateUpdateLocked(userData, safetySourceId, safetySourceData, packageName)) {
+                return false;
+            }
+
+            userData.mSafetySourceDataStore.put(
+                    safetySourceId, packageName, safetySourceData, retainedBytes);
+            userData.mSafetySourceDataStore.recordUpdate(safetySourceId, /* duplicate = */ false);
+            invalidateSafetyCenterDataLocked(userData, safetySourceId, packageName);
+            return true;
+        }
+    }
+
+    /**
+     * Returns whether the given {@link SafetySourceData} is equal to the one already set for the
+     * given safety source, and records the duplicate update if so.
+     */
+    @GuardedBy("userData.mLock")
+    private static boolean isDuplicateUpdateLocked(
+            @NonNull UserData userData,
+            @NonNull String safetySourceId,
+            @Nullable SafetySourceData safetySourceData,
+            @NonNull String packageName) {
+        SafetySourceData existingSafetySourceData =
+                userData.mSafetySourceDataStore.get(safetySourceId, packageName);
+        // Comparing the cached hash codes first avoids a deep comparison of different data.
+        if (safetySourceData != null
+                && existingSafetySourceData != null
+                && safetySourceData.hashCode() != existingSafetySourceData.hashCode()) {
+            return false;
+        }
+        if (!Objects.equals(safetySourceData, existingSafetySourceData)) {
+            return false;
+        }
+        userData.mSafetySourceDataStore.recordUpdate(safetySourceId, /* duplicate = */ true);
+        return true;
     }
 
     /**
@@ -120,31 +228,220 @@ final class SafetyCenterDataTracker {
             return null;
         }
 
-        return mSafetySourceDataForKey.get(Key.of(safetySourceId, packageName, userId));
+        UserData userData = getUserData(userId);
+        if (userData == null) {
+            return null;
+        }
+        synchronized (userData.mLock) {
+            return userData.mSafetySourceDataStore.get(safetySourceId, packageName);
+        }
+    }
+
+    /**
+     * Restores the given persisted {@link SafetySourceData} for the given {@code userId}, for each
+     * safety source which didn't provide data since the last restart and is still in the {@link
+     * SafetyCenterConfig}.
+     */
+    void restoreSafetySourceData(
+            @NonNull List<SafetySourceDataPersistence.Record> records, @UserIdInt int userId) {
+        UserData userData = getOrCreateUserData(userId);
+        synchronized (userData.mLock) {
+            for (int i = 0; i < records.size(); i++) {
+                SafetySourceDataPersistence.Record record = records.get(i);
+                if (!configContains(record.getSafetySourceId(), record.getPackageName())) {
+                    continue;
+                }
+                if (userData.mSafetySourceDataStore.putRestored(
+                        record.getSafetySourceId(),
+                        record.getPackageName(),
+                        record.getSafetySourceData(),
+                        record.getWrittenAtMillis())) {
+                    invalidateSafetyCenterDataLocked(
+                            userData, record.getSafetySourceId(), record.getPackageName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the {@link SafetySourceData} to persist for the given {@code userId}, i.e. that of
+     * each safety source with a {@link SafetySourceStatus}, along with the time it was set.
+     */
+    @NonNull
+    List<SafetySourceDataPersistence.Record> getSafetySourceDataToPersist(
+            @UserIdInt int userId) {
+        List<SafetySourceDataPersistence.Record> records = new ArrayList<>();
+        UserData userData = getUserData(userId);
+        if (userData == null) {
+            return records;
+        }
+        synchronized (userData.mLock) {
+            SafetySourceDataStore safetySourceDataStore = userData.mSafetySourceDataStore;
+            for (int i = 0; i < safetySourceDataStore.size(); i++) {
+                SafetySourceData safetySourceData = safetySourceDataStore.getSafetySourceDataAt(i);
+                if (safetySourceData.getStatus() == null) {
+                    continue;
+                }
+                records.add(
+                        new SafetySourceDataPersistence.Record(
+                                safetySourceDataStore.getSafetySourceIdAt(i),
+                                safetySourceDataStore.getPackageNameAt(i),
+                                safetySourceData,
+                                safetySourceDataStore.getSetAtMillisAt(i)));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Clears all the {@link SafetySourceData} set received so far, for all users, and returns the
+     * ids of the users which had any.
+     *
+     * <p>Calls racing with this one for a given user behave as if they happened before it.
+     */
+    @NonNull
+    int[] clear() {
+        synchronized (mUserDataLock) {
+            int[] userIds = new int[mUserData.size()];
+            for (int i = 0; i < mUserData.size(); i++) {
+                userIds[i] = mUserData.keyAt(i);
+            }
+            mUserData.clear();
+            return userIds;
+        }
+    }
+
+    /** Dumps the {@link SafetySourceData} stored for each user, and the bytes it retains. */
+    void dump(@NonNull PrintWriter fout) {
+        List<UserData> userDatas = new ArrayList<>();
+        synchronized (mUserDataLock) {
+            for (int i = 0; i < mUserData.size(); i++) {
+                userDatas.add(mUserData.valueAt(i));
+            }
+        }
+
+        fout.println(
+                "DATA TRACKER (max issues per source: "
+                        + getMaxIssuesPerSafetySource()
+                        + ", max bytes per source: "
+                        + getMaxSafetySourceDataBytes()
+                        + ")");
+        for (int i = 0; i < userDatas.size(); i++) {
+            UserData userData = userDatas.get(i);
+            synchronized (userData.mLock) {
+                fout.println("\tuser " + userData.mUserId + ":");
+                userData.mSafetySourceDataStore.dump(fout, "\t\t");
+            }
+        }
+        fout.println();
+    }
+
+    @Nullable
+    private UserData getUserData(@UserIdInt int userId) {
+        synchronized (mUserDataLock) {
+            return mUserData.get(userId);
+        }
     }
 
-    /** Clears all the {@link SafetySourceData} set received so far, for all users. */
-    void clear() {
-        mSafetySourceDataForKey.clear();
+    @NonNull
+    private UserData getOrCreateUserData(@UserIdInt int userId) {
+        synchronized (mUserDataLock) {
+            UserData userData = mUserData.get(userId);
+            if (userData == null) {
+                userData = new UserData(userId);
+                mUserData.put(userId, userData);
+            }
+            return userData;
+        }
     }
 
     /**
-     * Returns the current {@link SafetyCenterData} for the given {@code userId}, aggregated from
-     * all the {@link SafetySourceData} set so far.
+     * Returns the current {@link SafetyCenterData} for the given {@link UserProfileGroup},
+     * aggregated from all the {@link SafetySourceData} set so far for each of its users.
      *
-     * <p>Returns an arbitrary default value if no data has been received for the user so far, or if
-     * the {@link SafetyCenterConfig} is not available.
+     * <p>Returns an arbitrary default value if no data has been received for the users so far, or
+     * if the {@link SafetyCenterConfig} is not available.
      */
     @NonNull
-    SafetyCenterData getSafetyCenterData(@UserIdInt int userId) {
-        SafetyCenterConfig safetyCenterConfig = mSafetyCenterConfigReader.getSafetyCenterConfig();
-        if (safetyCenterConfig == null) {
+    SafetyCenterData getSafetyCenterData(@NonNull UserProfileGroup userProfileGroup) {
+        SafetyCenterConfigIndex safetyCenterConfigIndex =
+                mSafetyCenterConfigReader.getSafetyCenterConfigIndex();
+        if (safetyCenterConfigIndex == null) {
             Log.w(TAG, "SafetyCenterConfig unavailable, returning default SafetyCenterData");
             return getDefaultSafetyCenterData();
         }
 
-        // TODO(b/218819144): Merge for all profiles.
-        return getSafetyCenterData(safetyCenterConfig, userId);
+        if (userProfileGroup.size() == 1) {
+            UserData userData = getOrCreateUserData(userProfileGroup.getProfileParentUserId());
+            synchronized (userData.mLock) {
+                return getSafetyCenterDataLocked(safetyCenterConfigIndex, userData);
+            }
+        }
+
+        SafetySourcesGroupData[][] safetySourcesGroupDatasByUser =
+                new SafetySourcesGroupData[userProfileGroup.size()][];
+        for (int i = 0; i < userProfileGroup.size(); i++) {
+            UserData userData = getOrCreateUserData(userProfileGroup.getUserIdAt(i));
+            synchronized (userData.mLock) {
+                // The array is copied as it is updated in place when the user's data changes.
+                safetySourcesGroupDatasByUser[i] =
+                        getUserSafetyCenterDataLocked(
+                                        safetyCenterConfigIndex, userData, i == 0)
+                                .mSafetySourcesGroupData
+                                .clone();
+            }
+        }
+        return mergeSafetySourcesGroupData(safetyCenterConfigIndex, safetySourcesGroupDatasByUser);
+    }
+
+    /**
+     * Returns the current {@link Limits}, reading them and registering a listener for their
+     * changes on first use.
+     */
+    @NonNull
+    private Limits getLimits() {
+        Limits limits = mLimits;
+        if (limits != null) {
+            return limits;
+        }
+        synchronized (mLimitsLock) {
+            if (mLimits == null) {
+                // These calls require the READ_DEVICE_CONFIG permission.
+                final long callingId = Binder.clearCallingIdentity();
+                try {
+                    // The listener is added first, so that no change is missed.
+                    DeviceConfig.addOnPropertiesChangedListener(
+                            DeviceConfig.NAMESPACE_PRIVACY,
+                            mContext.getMainExecutor(),
+                            properties -> {
+                                if (properties.getKeyset().contains(
+                                                PROPERTY_MAX_ISSUES_PER_SAFETY_SOURCE)
+                                        || properties.getKeyset().contains(
+                                                PROPERTY_MAX_SAFETY_SOURCE_DATA_BYTES)) {
+                                    mLimits = readLimits();
+                                }
+                            });
+                    mLimits = readLimits();
+                } finally {
+                    Binder.restoreCallingIdentity(callingId);
+                }
+            }
+            return mLimits;
+        }
+    }
+
+    /** Reads the {@link Limits} from Device Config, with the READ_DEVICE_CONFIG permission. */
+    @NonNull
+    private static Limits readLimits() {
+        return new Limits(
+                DeviceConfig.getInt(
+                        DeviceConfig.NAMESPACE_PRIVACY,
+                        PROPERTY_MAX_ISSUES_PER_SAFETY_SOURCE,
+                        DEFAULT_MAX_ISSUES_PER_SAFETY_SOURCE),
+                DeviceConfig.getInt(
+                        DeviceConfig.NAMESPACE_PRIVACY,
+                        PROPERTY_MAX_SAFETY_SOURCE_DATA_BYTES,
+                        DEFAULT_MAX_SAFETY_SOURCE_DATA_BYTES));
     }
 
     /**
@@ -165,11 +462,14 @@ final class SafetyCenterDataTracker {
                 emptyList());
     }
 
-    // TODO(b/219702252): Create a more efficient data structure for this, and update it when the
-    //  config changes.
-    private boolean configContains(@NonNull String safetySourceId, @NonNull String packageName) {
-        SafetyCenterConfig safetyCenterConfig = mSafetyCenterConfigReader.getSafetyCenterConfig();
-        if (safetyCenterConfig == null) {
+    /**
+     * Returns whether the {@link SafetyCenterConfig} contains the dynamic safety source with the
+     * given {@code safetySourceId} and {@code packageName}, i.e. whether it may send or get data.
+     */
+    boolean configContains(@NonNull String safetySourceId, @NonNull String packageName) {
+        SafetyCenterConfigIndex safetyCenterConfigIndex =
+                mSafetyCenterConfigReader.getSafetyCenterConfigIndex();
+        if (safetyCenterConfigIndex == null) {
             Log.w(TAG, "SafetyCenterConfig unavailable, assuming no sources can send/get data");
             return false;
         }
@@ -180,68 +480,197 @@ final class SafetyCenterDataTracker {
             return true;
         }
 
-        List<SafetySourcesGroup> safetySourcesGroups = safetyCenterConfig.getSafetySourcesGroups();
-        for (int i = 0; i < safetySourcesGroups.size(); i++) {
-            SafetySourcesGroup safetySourcesGroup = safetySourcesGroups.get(i);
+        return safetyCenterConfigIndex.containsDynamicSafetySource(safetySourceId, packageName);
+    }
+
+    /**
+     * Returns the {@link SafetyCenterData} of a user without any profile, which is materialized
+     * along with the contribution of the user.
+     */
+    @GuardedBy("userData.mLock")
+    @NonNull
+    private SafetyCenterData getSafetyCenterDataLocked(
+            @NonNull SafetyCenterConfigIndex safetyCenterConfigIndex, @NonNull UserData userData) {
+        UserSafetyCenterData userSafetyCenterData =
+                getUserSafetyCenterDataLocked(safetyCenterConfigIndex, userData, true);
+        if (userSafetyCenterData.mSafetyCenterData == null) {
+            userSafetyCenterData.mSafetyCenterData =
+                    mergeSafetySourcesGroupData(
+                            safetyCenterConfigIndex,
+                            new SafetySourcesGroupData[][] {
+                                userSafetyCenterData.mSafetySourcesGroupData
+                            });
+        }
+        return userSafetyCenterData.mSafetyCenterData;
+    }
 
-            List<SafetySource> safetySources = safetySourcesGroup.getSafetySources();
-            for (int j = 0; j < safetySources.size(); j++) {
-                SafetySource safetySource = safetySources.get(j);
+    /**
+     * Returns the materialized contribution of the given user, recomputing the {@link
+     * SafetySourcesGroupData} of each {@link SafetySourcesGroup} invalidated since the last call.
+     */
+    @GuardedBy("userData.mLock")
+    @NonNull
+    private UserSafetyCenterData getUserSafetyCenterDataLocked(
+            @NonNull SafetyCenterConfigIndex safetyCenterConfigIndex,
+            @NonNull UserData userData,
+            boolean isProfileParent) {
+        LocaleList locales = mContext.getResources().getConfiguration().getLocales();
+        UserSafetyCenterData userSafetyCenterData = userData.mUserSafetyCenterData;
+        if (userSafetyCenterData == null
+                || userSafetyCenterData.mSafetyCenterConfigIndex != safetyCenterConfigIndex
+                || !userSafetyCenterData.mLocales.equals(locales)
+                || userSafetyCenterData.mIsProfileParent != isProfileParent) {
+            userSafetyCenterData =
+                    new UserSafetyCenterData(safetyCenterConfigIndex, locales, isProfileParent);
+            userData.mUserSafetyCenterData = userSafetyCenterData;
+        }
 
-                if (safetySource.getType() == SafetySource.SAFETY_SOURCE_TYPE_STATIC) {
-                    continue;
-                }
+        SafetySourcesGroupData[] safetySourcesGroupDatas =
+                userSafetyCenterData.mSafetySourcesGroupData;
+        for (int i = 0; i < safetySourcesGroupDatas.length; i++) {
+            if (safetySourcesGroupDatas[i] == null) {
+                safetySourcesGroupDatas[i] =
+                        toSafetySourcesGroupDataLocked(
+                                safetyCenterConfigIndex, i, userData, isProfileParent);
+            }
+        }
+        return userSafetyCenterData;
+    }
+
+    /**
+     * Drops the materialized {@link SafetySourcesGroupData} of the {@link SafetySourcesGroup}
+     * containing the given safety source, if any, for it to be recomputed on the next call to
+     * {@link #getSafetyCenterData(UserProfileGroup)}.
+     */
+    @GuardedBy("userData.mLock")
+    private void invalidateSafetyCenterDataLocked(
+            @NonNull UserData userData,
+            @NonNull String safetySourceId,
+            @NonNull String packageName) {
+        UserSafetyCenterData userSafetyCenterData = userData.mUserSafetyCenterData;
+        if (userSafetyCenterData == null) {
+            return;
+        }
+
+        int safetySourcesGroupIndex =
+                userSafetyCenterData.mSafetyCenterConfigIndex.getSafetySourcesGroupIndex(
+                        safetySourceId, packageName);
+        if (safetySourcesGroupIndex < 0) {
+            return;
+        }
+
+        userSafetyCenterData.mSafetySourcesGroupData[safetySourcesGroupIndex] = null;
+        userSafetyCenterData.mSafetyCenterData = null;
+    }
+
+    /**
+     * Drops the materialized {@link SafetySourcesGroupData} of each {@link SafetySourcesGroup}
+     * containing a safety source of the given package for the given user, and returns whether any
+     * was dropped.
+     *
+     * <p>This must be called when the package is added, removed or changed, as the {@link
+     * PendingIntent}s created on behalf of its safety sources may no longer be valid. The static
+     * entries are kept, as their {@link PendingIntent}s are created by the system.
+     */
+    boolean invalidateSafetyCenterDataForPackage(
+            @NonNull String packageName, @UserIdInt int userId) {
+        UserData userData = getUserData(userId);
+        if (userData == null) {
+            return false;
+        }
+
+        synchronized (userData.mLock) {
+            UserSafetyCenterData userSafetyCenterData = userData.mUserSafetyCenterData;
+            if (userSafetyCenterData == null) {
+                return false;
+            }
 
-                if (safetySourceId.equals(safetySource.getId())
-                        && packageName.equals(safetySource.getPackageName())) {
-                    return true;
+            SafetySourcesGroupData[] safetySourcesGroupDatas =
+                    userSafetyCenterData.mSafetySourcesGroupData;
+            boolean invalidated = false;
+            for (int i = 0; i < safetySourcesGroupDatas.length; i++) {
+                if (safetySourcesGroupDatas[i] != null
+                        && containsPackage(
+                                userSafetyCenterData.mSafetyCenterConfigIndex
+                                        .getDynamicSafetySources(i),
+                                packageName)) {
+                    safetySourcesGroupDatas[i] = null;
+                    invalidated = true;
                 }
             }
+            if (invalidated) {
+                userSafetyCenterData.mSafetyCenterData = null;
+            }
+            return invalidated;
         }
+    }
 
+    private static boolean containsPackage(
+            @NonNull List<SafetySource> safetySources, @NonNull String packageName) {
+        for (int i = 0; i < safetySources.size(); i++) {
+            if (packageName.equals(safetySources.get(i).getPackageName())) {
+                return true;
+            }
+        }
         return false;
     }
 
+    /**
+     * Merges the {@link SafetySourcesGroupData} of each user of a {@link UserProfileGroup}, the
+     * profile parent first, into a single {@link SafetyCenterData}.
+     *
+     * <p>The ids of the issues and entries contributed by profiles are suffixed with the user id
+     * when materialized, so they stay unique once merged.
+     */
     @NonNull
-    private SafetyCenterData getSafetyCenterData(
-            @NonNull SafetyCenterConfig safetyCenterConfig, @UserIdInt int userId) {
+    private static SafetyCenterData mergeSafetySourcesGroupData(
+            @NonNull SafetyCenterConfigIndex safetyCenterConfigIndex,
+            @NonNull SafetySourcesGroupData[][] safetySourcesGroupDatasByUser) {
         int maxSafetyCenterEntryLevel = SafetyCenterEntry.ENTRY_SEVERITY_LEVEL_UNKNOWN;
         List<SafetyCenterIssue> safetyCenterIssues = new ArrayList<>();
         List<SafetyCenterEntryOrGroup> safetyCenterEntryOrGroups = new ArrayList<>();
         List<SafetyCenterStaticEntryGroup> safetyCenterStaticEntryGroups = new ArrayList<>();
 
-        List<SafetySourcesGroup> safetySourcesGroups = safetyCenterConfig.getSafetySourcesGroups();
+        List<SafetySourcesGroup> safetySourcesGroups =
+                safetyCenterConfigIndex.getSafetyCenterConfig().getSafetySourcesGroups();
         for (int i = 0; i < safetySourcesGroups.size(); i++) {
             SafetySourcesGroup safetySourcesGroup = safetySourcesGroups.get(i);
 
-            int groupSafetyCenterEntryLevel = SafetyCenterEntry.ENTRY_SEVERITY_LEVEL_UNKNOWN;
-            switch (safetySourcesGroup.getType()) {
-                case SafetySourcesGroup.SAFETY_SOURCES_GROUP_TYPE_COLLAPSIBLE: {
-                    groupSafetyCenterEntryLevel =
-                            Math.max(
-                                    addSafetyCenterIssues(
-                                            safetyCenterIssues, safetySourcesGroup, userId),
-                                    addSafetyCenterEntryGroup(
-                                            safetyCenterEntryOrGroups,
-                                            safetySourcesGroup,
-                                            userId));
-                    break;
-                }
-                case SafetySourcesGroup.SAFETY_SOURCES_GROUP_TYPE_RIGID: {
-                    addSafetyCenterStaticEntryGroup(
-                            safetyCenterStaticEntryGroups, safetySourcesGroup);
-                    break;
-                }
-                case SafetySourcesGroup.SAFETY_SOURCES_GROUP_TYPE_HIDDEN: {
-                    groupSafetyCenterEntryLevel =
-                            addSafetyCenterIssues(
-                                    safetyCenterIssues, safetySourcesGroup, userId);
-                    break;
-                }
+            List<SafetyCenterEntry> safetyCenterEntries = new ArrayList<>();
+            int maxSafetyCenterEntriesLevel = SafetyCenterEntry.ENTRY_SEVERITY_LEVEL_UNKNOWN;
+            for (int j = 0; j < safetySourcesGroupDatasByUser.length; j++) {
+                SafetySourcesGroupData safetySourcesGroupData = safetySourcesGroupDatasByUser[j][i];
+
+                safetyCenterIssues.addAll(safetySourcesGroupData.mSafetyCenterIssues);
+                safetyCenterEntries.addAll(safetySourcesGroupData.mSafetyCenterEntries);
+                // TODO(b/219700241): Should we rely on ordering for severity levels?
+                maxSafetyCenterEntriesLevel =
+                        Math.max(
+                                maxSafetyCenterEntriesLevel,
+                                safetySourcesGroupData.mSafetyCenterEntriesSeverityLevel);
+                maxSafetyCenterEntryLevel =
+                        Math.max(maxSafetyCenterEntryLevel, safetySourcesGroupData.mSeverityLevel);
+            }
+
+            SafetySourcesGroupData profileParentSafetySourcesGroupData =
+                    safetySourcesGroupDatasByUser[0][i];
+            if (safetySourcesGroup.getType()
+                    == SafetySourcesGroup.SAFETY_SOURCES_GROUP_TYPE_COLLAPSIBLE) {
+                // TODO(b/218817233): Add missing fields like: statelessIconType.
+                safetyCenterEntryOrGroups.add(
+                        new SafetyCenterEntryOrGroup(
+                                new SafetyCenterEntryGroup.Builder(
+                                                safetySourcesGroup.getId(),
+                                                profileParentSafetySourcesGroupData.mTitle)
+                                        .setSeverityLevel(maxSafetyCenterEntriesLevel)
+                                        .setSummary(profileParentSafetySourcesGroupData.mSummary)
+                                        .setEntries(safetyCenterEntries)
+                                        .build()));
+            }
+            if (profileParentSafetySourcesGroupData.mSafetyCenterStaticEntryGroup != null) {
+                safetyCenterStaticEntryGroups.add(
+                        profileParentSafetySourcesGroupData.mSafetyCenterStaticEntryGroup);
             }
-            // TODO(b/219700241): Should we rely on ordering for severity levels?
-            maxSafetyCenterEntryLevel =
-                    Math.max(maxSafetyCenterEntryLevel, groupSafetyCenterEntryLevel);
         }
 
         int safetyCenterOverallSeverityLevel =
@@ -257,22 +686,103 @@ final class SafetyCenterDataTracker {
                 safetyCenterStaticEntryGroups);
     }
 
+    /**
+     * Returns the contribution of the given user to the {@link SafetySourcesGroup} at the given
+     * index; users other than the profile parent only contribute the safety sources shown for all
+     * profiles.
+     */
+    @GuardedBy("userData.mLock")
+    @NonNull
+    private SafetySourcesGroupData toSafetySourcesGroupDataLocked(
+            @NonNull SafetyCenterConfigIndex safetyCenterConfigIndex,
+            int safetySourcesGroupIndex,
+            @NonNull UserData userData,
+            boolean isProfileParent) {
+        SafetySourcesGroup safetySourcesGroup =
+                safetyCenterConfigIndex
+                        .getSafetyCenterConfig()
+                        .getSafetySourcesGroups()
+                        .get(safetySourcesGroupIndex);
+        List<SafetyCenterIssue> safetyCenterIssues = new ArrayList<>();
+        List<SafetyCenterEntry> safetyCenterEntries = new ArrayList<>();
+        SafetyCenterStaticEntryGroup safetyCenterStaticEntryGroup = null;
+        String title = null;
+        String summary = null;
+
+        int safetyCenterEntriesLevel = SafetyCenterEntry.ENTRY_SEVERITY_LEVEL_UNKNOWN;
+        int groupSafetyCenterEntryLevel = SafetyCenterEntry.ENTRY_SEVERITY_LEVEL_UNKNOWN;
+        switch (safetySourcesGroup.getType()) {
+            case SafetySourcesGroup.SAFETY_SOURCES_GROUP_TYPE_COLLAPSIBLE: {
+                safetyCenterEntriesLevel =
+                        addSafetyCenterEntriesLocked(
+                                safetyCenterEntries,
+                                safetySourcesGroup,
+                                userData,
+                                isProfileParent);
+                groupSafetyCenterEntryLevel =
+                        Math.max(
+                                addSafetyCenterIssuesLocked(
+                                        safetyCenterIssues,
+                                        safetyCenterConfigIndex.getDynamicSafetySources(
+                                                safetySourcesGroupIndex),
+                                        userData,
+                                        isProfileParent),
+                                safetyCenterEntriesLevel);
+                title =
+                        mSafetyCenterConfigReader.readStringResource(
+                                safetySourcesGroup.getTitleResId());
+                summary =
+                        mSafetyCenterConfigReader.readStringResource(
+                                safetySourcesGroup.getSummaryResId());
+                break;
+            }
+            case SafetySourcesGroup.SAFETY_SOURCES_GROUP_TYPE_RIGID: {
+                if (isProfileParent) {
+                    safetyCenterStaticEntryGroup =
+                            toSafetyCenterStaticEntryGroup(safetySourcesGroup, userData.mUserId);
+                }
+                break;
+            }
+            case SafetySourcesGroup.SAFETY_SOURCES_GROUP_TYPE_HIDDEN: {
+                groupSafetyCenterEntryLevel =
+                        addSafetyCenterIssuesLocked(
+                                safetyCenterIssues,
+                                safetyCenterConfigIndex.getDynamicSafetySources(
+                                        safetySourcesGroupIndex),
+                                userData,
+                                isProfileParent);
+                break;
+            }
+        }
+
+        return new SafetySourcesGroupData(
+                safetyCenterIssues,
+                safetyCenterEntries,
+                safetyCenterEntriesLevel,
+                safetyCenterStaticEntryGroup,
+                title,
+                summary,
+                groupSafetyCenterEntryLevel);
+    }
+
+    @GuardedBy("userData.mLock")
     @SafetyCenterEntry.EntrySeverityLevel
-    private int addSafetyCenterIssues(
+    private int addSafetyCenterIssuesLocked(
             @NonNull List<SafetyCenterIssue> safetyCenterIssues,
-            @NonNull SafetySourcesGroup safetySourcesGroup,
-            @UserIdInt int userId) {
+            @NonNull List<SafetySource> dynamicSafetySources,
+            @NonNull UserData userData,
+            boolean isProfileParent) {
         int maxSafetyCenterEntrySeverityLevel = SafetyCenterEntry.ENTRY_SEVERITY_LEVEL_UNKNOWN;
-        List<SafetySource> safetySources = safetySourcesGroup.getSafetySources();
-        for (int i = 0; i < safetySources.size(); i++) {
-            SafetySource safetySource = safetySources.get(i);
+        for (int i = 0; i < dynamicSafetySources.size(); i++) {
+            SafetySource safetySource = dynamicSafetySources.get(i);
 
-            if (safetySource.getType() == SafetySource.SAFETY_SOURCE_TYPE_STATIC) {
+            if (!isShownForUser(safetySource, isProfileParent)) {
                 continue;
             }
 
-            Key key = Key.of(safetySource.getId(), safetySource.getPackageName(), userId);
-            SafetySourceData safetySourceData = mSafetySourceDataForKey.get(key);
+            SafetySourceData safetySourceData =
+                    userData.mSafetySourceDataStore.get(
+                            safetySource.getId(), safetySource.getPackageName());
             if (safetySourceData == null) {
                 continue;
             }
@@ -281,7 +791,11 @@ final class SafetyCenterDataTracker {
             for (int j = 0; j < safetySourceIssues.size(); j++) {
                 SafetySourceIssue safetySourceIssue = safetySourceIssues.get(j);
 
-                SafetyCenterIssue safetyCenterIssue = toSafetyCenterIssue(safetySourceIssue);
+                SafetyCenterIssue safetyCenterIssue =
+                        toSafetyCenterIssue(
+                                safetySourceIssue,
+                                toSafetyCenterIssueId(
+                                        safetySourceIssue, userData.mUserId, isProfileParent));
                 maxSafetyCenterEntrySeverityLevel =
                         Math.max(
                                 maxSafetyCenterEntrySeverityLevel,
@@ -296,7 +810,7 @@ final class SafetyCenterDataTracker {
 
     @NonNull
     private static SafetyCenterIssue toSafetyCenterIssue(
-            @NonNull SafetySourceIssue safetySourceIssue) {
+            @NonNull SafetySourceIssue safetySourceIssue, @NonNull String safetyCenterIssueId) {
         List<SafetySourceIssue.Action> safetySourceIssueActions = safetySourceIssue.getActions();
         List<SafetyCenterIssue.Action> safetyCenterIssueActions =
                 new ArrayList<>(safetySourceIssueActions.size());
@@ -305,7 +819,7 @@ final class SafetyCenterDataTracker {
 
             safetyCenterIssueActions.add(
                     new SafetyCenterIssue.Action.Builder(
-                                    safetySourceIssue.getId(),
+                                    safetyCenterIssueId,
                                     safetySourceIssueAction.getLabel(),
                                     safetySourceIssueAction.getPendingIntent())
                             .setSuccessMessage(safetySourceIssueAction.getSuccessMessage())
@@ -314,7 +828,7 @@ final class SafetyCenterDataTracker {
 
         // TODO(b/218817233): Add missing fields like: dismissible, shouldConfirmDismissal.
         return new SafetyCenterIssue.Builder(
-                        safetySourceIssue.getId(),
+                        safetyCenterIssueId,
                         safetySourceIssue.getTitle(),
                         safetySourceIssue.getSummary())
                 .setSeverityLevel(
@@ -325,19 +839,25 @@ final class SafetyCenterDataTracker {
                 .build();
     }
 
+    @GuardedBy("userData.mLock")
     @SafetyCenterEntry.EntrySeverityLevel
-    private int addSafetyCenterEntryGroup(
-            @NonNull List<SafetyCenterEntryOrGroup> safetyCenterEntryOrGroups,
+    private int addSafetyCenterEntriesLocked(
+            @NonNull List<SafetyCenterEntry> safetyCenterEntries,
             @NonNull SafetySourcesGroup safetySourcesGroup,
-            @UserIdInt int userId) {
+            @NonNull UserData userData,
+            boolean isProfileParent) {
         int maxSafetyCenterEntryLevel = SafetyCenterEntry.ENTRY_SEVERITY_LEVEL_UNKNOWN;
 
         List<SafetySource> safetySources = safetySourcesGroup.getSafetySources();
-        List<SafetyCenterEntry> entries = new ArrayList<>(safetySources.size());
         for (int i = 0; i < safetySources.size(); i++) {
             SafetySource safetySource = safetySources.get(i);
 
-            SafetyCenterEntry safetyCenterEntry = toSafetyCenterEntry(safetySource, userId);
+            if (!isShownForUser(safetySource, isProfileParent)) {
+                continue;
+            }
+
+            SafetyCenterEntry safetyCenterEntry =
+                    toSafetyCenterEntryLocked(safetySource, userData, isProfileParent);
             if (safetyCenterEntry == null) {
                 continue;
             }
@@ -345,38 +865,28 @@ final class SafetyCenterDataTracker {
             // TODO(b/219700241): Should we rely on ordering for severity levels?
             maxSafetyCenterEntryLevel =
                     Math.max(maxSafetyCenterEntryLevel, safetyCenterEntry.getSeverityLevel());
-            entries.add(safetyCenterEntry);
-        }
-
-        // TODO(b/218817233): Add missing fields like: statelessIconType.
-        safetyCenterEntryOrGroups.add(
-                new SafetyCenterEntryOrGroup(
-                        new SafetyCenterEntryGroup.Builder(
-                                        safetySourcesGroup.getId(),
-                                        mSafetyCenterConfigReader.readStringResource(
-                                                safetySourcesGroup.getTitleResId()))
-                                .setSeverityLevel(maxSafetyCenterEntryLevel)
-                                .setSummary(
-                                        mSafetyCenterConfigReader.readStringResource(
-                                                safetySourcesGroup.getSummaryResId()))
-                                .setEntries(entries)
-                                .build()));
+            safetyCenterEntries.add(safetyCenterEntry);
+        }
 
         return maxSafetyCenterEntryLevel;
     }
 
+    @GuardedBy("userData.mLock")
     @Nullable
-    private SafetyCenterEntry toSafetyCenterEntry(
-            @NonNull SafetySource safetySource, @UserIdInt int userId) {
+    private SafetyCenterEntry toSafetyCenterEntryLocked(
+            @NonNull SafetySource safetySource,
+            @NonNull UserData userData,
+            boolean isProfileParent) {
         switch (safetySource.getType()) {
             case SafetySource.SAFETY_SOURCE_TYPE_ISSUE_ONLY: {
                 Log.w(TAG, "Issue only safety source found in collapsible group");
                 return null;
             }
             case SafetySource.SAFETY_SOURCE_TYPE_DYNAMIC: {
-                Key key = Key.of(safetySource.getId(), safetySource.getPackageName(), userId);
                 SafetySourceStatus safetySourceStatus =
-                        getSafetySourceStatus(mSafetySourceDataForKey.get(key));
+                        getSafetySourceStatus(
+                                userData.mSafetySourceDataStore.get(
+                                        safetySource.getId(), safetySource.getPackageName()));
                 // TODO(b/218817233): Add missing fields like: iconAction, statelessIconType.
                 if (safetySourceStatus != null) {
                     PendingIntent pendingIntent = safetySourceStatus.getPendingIntent();
@@ -384,12 +894,15 @@ final class SafetyCenterDataTracker {
                         pendingIntent =
                                 toPendingIntent(
                                         safetySource.getIntentAction(),
-                                        safetySource.getPackageName());
+                                        safetySource.getPackageName(),
+                                        userData.mUserId);
                         // TODO(b/222838784): Automatically mark the source as disabled if the
                         //  pending intent is null again.
                     }
                     return new SafetyCenterEntry.Builder(
-                                    safetySource.getId(), safetySourceStatus.getTitle())
+                                    toSafetyCenterEntryId(
+                                            safetySource, userData.mUserId, isProfileParent),
+                                    safetySourceStatus.getTitle())
                             .setSeverityLevel(
                                     sourceToSafetyCenterEntrySeverityLevel(
                                             safetySourceStatus.getSeverityLevel()))
@@ -401,11 +914,17 @@ final class SafetyCenterDataTracker {
                 return toDefaultSafetyCenterEntry(
                         safetySource,
                         safetySource.getPackageName(),
-                        SafetyCenterEntry.ENTRY_SEVERITY_LEVEL_UNSPECIFIED);
+                        SafetyCenterEntry.ENTRY_SEVERITY_LEVEL_UNSPECIFIED,
+                        userData.mUserId,
+                        isProfileParent);
             }
             case SafetySource.SAFETY_SOURCE_TYPE_STATIC: {
                 return toDefaultSafetyCenterEntry(
-                        safetySource, null, SafetyCenterEntry.ENTRY_SEVERITY_LEVEL_UNKNOWN);
+                        safetySource,
+                        null,
+                        SafetyCenterEntry.ENTRY_SEVERITY_LEVEL_UNKNOWN,
+                        userData.mUserId,
+                        isProfileParent);
             }
         }
         Log.w(
@@ -420,21 +939,27 @@ final class SafetyCenterDataTracker {
     private SafetyCenterEntry toDefaultSafetyCenterEntry(
             @NonNull SafetySource safetySource,
             @Nullable String packageName,
-            @SafetyCenterEntry.EntrySeverityLevel int entrySeverityLevel) {
+            @SafetyCenterEntry.EntrySeverityLevel int entrySeverityLevel,
+            @UserIdInt int userId,
+            boolean isProfileParent) {
         if (safetySource.getType() == SafetySource.SAFETY_SOURCE_TYPE_DYNAMIC
                 && safetySource.getInitialDisplayState()
                         == SafetySource.INITIAL_DISPLAY_STATE_HIDDEN) {
             return null;
         }
 
-        PendingIntent pendingIntent = toPendingIntent(safetySource.getIntentAction(), packageName);
+        PendingIntent pendingIntent =
+                toPendingIntent(safetySource.getIntentAction(), packageName, userId);
 
         // TODO(b/218817233): Add missing fields like: enabled.
         // TODO(b/222838784): Automatically mark the source as disabled (both dynamic and static?)
         //  if the pending intent is null.
         return new SafetyCenterEntry.Builder(
-                        safetySource.getId(),
-                        mSafetyCenterConfigReader.readStringResource(safetySource.getTitleResId()))
+                        toSafetyCenterEntryId(safetySource, userId, isProfileParent),
+                        mSafetyCenterConfigReader.readStringResource(
+                                isProfileParent
+                                        ? safetySource.getTitleResId()
+                                        : safetySource.getTitleForWorkResId()))
                 .setSeverityLevel(entrySeverityLevel)
                 .setSummary(
                         mSafetyCenterConfigReader.readStringResource(
@@ -443,9 +968,44 @@ final class SafetyCenterDataTracker {
                 .build();
     }
 
-    private void addSafetyCenterStaticEntryGroup(
-            @NonNull List<SafetyCenterStaticEntryGroup> safetyCenterStaticEntryGroups,
-            @NonNull SafetySourcesGroup safetySourcesGroup) {
+    /**
+     * Returns the id of the {@link SafetyCenterEntry} of the given safety source for the given
+     * user; the entries of the profile parent use the id of the safety source as is.
+     */
+    @NonNull
+    private static String toSafetyCenterEntryId(
+            @NonNull SafetySource safetySource, @UserIdInt int userId, boolean isProfileParent) {
+        return isProfileParent ? safetySource.getId() : safetySource.getId() + "_" + userId;
+    }
+
+    /**
+     * Returns the id of the {@link SafetyCenterIssue} of the given safety source issue for the
+     * given user; like entries, the issues of the profile parent use the id of the safety source
+     * issue as is, so that the same issue sent for several users of a profile group isn't
+     * ambiguous once merged.
+     */
+    @NonNull
+    private static String toSafetyCenterIssueId(
+            @NonNull SafetySourceIssue safetySourceIssue,
+            @UserIdInt int userId,
+            boolean isProfileParent) {
+        return isProfileParent
+                ? safetySourceIssue.getId()
+                : safetySourceIssue.getId() + "_" + userId;
+    }
+
+    /**
+     * Returns whether the given safety source is shown for a user: all of them are shown for the
+     * profile parent, and only those shown for all profiles are shown for its profiles.
+     */
+    private static boolean isShownForUser(
+            @NonNull SafetySource safetySource, boolean isProfileParent) {
+        return isProfileParent || safetySource.getProfile() == SafetySource.PROFILE_ALL;
+    }
+
+    @NonNull
+    private SafetyCenterStaticEntryGroup toSafetyCenterStaticEntryGroup(
+            @NonNull SafetySourcesGroup safetySourcesGroup, @UserIdInt int userId) {
         List<SafetySource> safetySources = safetySourcesGroup.getSafetySources();
         List<SafetyCenterStaticEntry> staticEntries = new ArrayList<>(safetySources.size());
         for (int i = 0; i < safetySources.size(); i++) {
@@ -456,7 +1016,8 @@ final class SafetyCenterDataTracker {
                 continue;
             }
 
-            PendingIntent pendingIntent = toPendingIntent(safetySource.getIntentAction(), null);
+            PendingIntent pendingIntent =
+                    toPendingIntent(safetySource.getIntentAction(), null, userId);
             if (pendingIntent == null) {
                 // TODO(b/222838784): Decide strategy for static entries when the intent is null.
                 continue;
@@ -473,27 +1034,30 @@ final class SafetyCenterDataTracker {
                             .build());
         }
 
-        safetyCenterStaticEntryGroups.add(
-                new SafetyCenterStaticEntryGroup(
-                        mSafetyCenterConfigReader.readStringResource(
-                                safetySourcesGroup.getTitleResId()),
-                        staticEntries));
+        return new SafetyCenterStaticEntryGroup(
+                mSafetyCenterConfigReader.readStringResource(safetySourcesGroup.getTitleResId()),
+                staticEntries);
     }
 
     @Nullable
     private PendingIntent toPendingIntent(
-            @Nullable String intentAction, @Nullable String packageName) {
+            @Nullable String intentAction, @Nullable String packageName, @UserIdInt int userId) {
         if (intentAction == null) {
             return null;
         }
 
         Context context;
         if (packageName == null) {
-            context = mContext;
+            context =
+                    mContext.getUser().getIdentifier() == userId
+                            ? mContext
+                            : mContext.createContextAsUser(UserHandle.of(userId), 0);
         } else {
             final long identity = Binder.clearCallingIdentity();
             try {
-                context = mContext.createPackageContext(packageName, 0);
+                context =
+                        mContext.createPackageContextAsUser(
+                                packageName, 0, UserHandle.of(userId));
             } catch (NameNotFoundException e) {
                 Log.w(TAG, String.format("Package name %s not found", packageName), e);
                 return null;
@@ -647,61 +1211,118 @@ final class SafetyCenterDataTracker {
                         overallSeverityLevel));
     }
 
-    /**
-     * A key for {@link SafetySourceData}; based on the {@code safetySourceId}, {@code packageName}
-     * and {@code userId}.
-     */
-    // TODO(b/219697341): Look into using AutoValue for this data class.
-    private static final class Key {
-        @NonNull private final String mSafetySourceId;
-        @NonNull private final String mPackageName;
+    /** The limits on the {@link SafetySourceData} of a single safety source. */
+    private static final class Limits {
+        private final int mMaxIssuesPerSafetySource;
+        private final int mMaxSafetySourceDataBytes;
+
+        private Limits(int maxIssuesPerSafetySource, int maxSafetySourceDataBytes) {
+            mMaxIssuesPerSafetySource = maxIssuesPerSafetySource;
+            mMaxSafetySourceDataBytes = maxSafetySourceDataBytes;
+        }
+    }
+
+    /** The state of a user, guarded by its own lock. */
+    private static final class UserData {
         @UserIdInt private final int mUserId;
 
-        private Key(
-                @NonNull String safetySourceId,
-                @NonNull String packageName,
-                @UserIdInt int userId) {
-            mSafetySourceId = safetySourceId;
-            mPackageName = packageName;
+        private final Object mLock = new Object();
+
+        @GuardedBy("mLock")
+        @NonNull
+        private final SafetySourceDataStore mSafetySourceDataStore = new SafetySourceDataStore();
+
+        /**
+         * The materialized contribution of the user to each {@link SafetySourcesGroup}, so that an
+         * update only recomputes the group containing the updated safety source and the overall
+         * status.
+         */
+        @GuardedBy("mLock")
+        @Nullable
+        private UserSafetyCenterData mUserSafetyCenterData;
+
+        private UserData(@UserIdInt int userId) {
             mUserId = userId;
         }
+    }
 
-        @NonNull
-        private static Key of(
-                @NonNull String safetySourceId,
-                @NonNull String packageName,
-                @UserIdInt int userId) {
-            return new Key(safetySourceId, packageName, userId);
-        }
-
-        @Override
-        public String toString() {
-            return "Key{"
-                    + "mSafetySourceId='"
-                    + mSafetySourceId
-                    + '\''
-                    + ", mPackageName='"
-                    + mPackageName
-                    + '\''
-                    + ", mUserId="
-                    + mUserId
-                    + '\''
-                    + '}';
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (!(o instanceof Key)) return false;
-            Key key = (Key) o;
-            return mSafetySourceId.equals(key.mSafetySourceId)
-                    && mPackageName.equals(key.mPackageName)
-                    && mUserId == key.mUserId;
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(mSafetySourceId, mPackageName, mUserId);
+    /**
+     * The materialized contribution of a user for a given {@link SafetyCenterConfigIndex}, {@link
+     * LocaleList} and position in its {@link UserProfileGroup}.
+     *
+     * <p>{@link PendingIntent}s and resource strings are only resolved again when the {@link
+     * SafetySourcesGroup} they belong to is recomputed, e.g. after one of its safety sources or
+     * their package changes.
+     */
+    private static final class UserSafetyCenterData {
+        @NonNull private final SafetyCenterConfigIndex mSafetyCenterConfigIndex;
+        @NonNull private final LocaleList mLocales;
+        private final boolean mIsProfileParent;
+
+        /**
+         * The partial result of each {@link SafetySourcesGroup}, in config order; {@code null}
+         * until computed or after being invalidated.
+         */
+        @NonNull private final SafetySourcesGroupData[] mSafetySourcesGroupData;
+
+        /**
+         * The merged {@link SafetyCenterData} of the user when it has no profile; {@code null} if
+         * any group was invalidated.
+         */
+        @Nullable private SafetyCenterData mSafetyCenterData;
+
+        private UserSafetyCenterData(
+                @NonNull SafetyCenterConfigIndex safetyCenterConfigIndex,
+                @NonNull LocaleList locales,
+                boolean isProfileParent) {
+            mSafetyCenterConfigIndex = safetyCenterConfigIndex;
+            mLocales = locales;
+            mIsProfileParent = isProfileParent;
+            mSafetySourcesGroupData =
+                    new SafetySourcesGroupData
+                            [safetyCenterConfigIndex
+                                    .getSafetyCenterConfig()
+                                    .getSafetySourcesGroups()
+                                    .size()];
+        }
+    }
+
+    /**
+     * The contribution of a single user to a single {@link SafetySourcesGroup} of a {@link
+     * SafetyCenterData}.
+     */
+    private static final class SafetySourcesGroupData {
+        @NonNull private final List<SafetyCenterIssue> mSafetyCenterIssues;
+
+        /** The entries of the user in a collapsible group. */
+        @NonNull private final List<SafetyCenterEntry> mSafetyCenterEntries;
+
+        @SafetyCenterEntry.EntrySeverityLevel private final int mSafetyCenterEntriesSeverityLevel;
+
+        /** The static entries of a rigid group, only contributed by the profile parent. */
+        @Nullable private final SafetyCenterStaticEntryGroup mSafetyCenterStaticEntryGroup;
+
+        /** The title and summary of a collapsible group. */
+        @Nullable private final String mTitle;
+
+        @Nullable private final String mSummary;
+        @SafetyCenterEntry.EntrySeverityLevel private final int mSeverityLevel;
+
+        private SafetySourcesGroupData(
+                @NonNull List<SafetyCenterIssue> safetyCenterIssues,
+                @NonNull List<SafetyCenterEntry> safetyCenterEntries,
+                @SafetyCenterEntry.EntrySeverityLevel int safetyCenterEntriesSeverityLevel,
+                @Nullable SafetyCenterStaticEntryGroup safetyCenterStaticEntryGroup,
+                @Nullable String title,
+                @Nullable String summary,
+                @SafetyCenterEntry.EntrySeverityLevel int severityLevel) {
+            mSafetyCenterIssues = safetyCenterIssues;
+            mSafetyCenterEntries = safetyCenterEntries;
+            mSafetyCenterEntriesSeverityLevel = safetyCenterEntriesSeverityLevel;
+            mSafetyCenterStaticEntryGroup = safetyCenterStaticEntryGroup;
+            mTitle = title;
+            mSummary = summary;
+            mSeverityLevel = severityLevel;
         }
     }
 }
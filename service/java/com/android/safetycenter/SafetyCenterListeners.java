@@ -25,23 +25,29 @@ import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.safetycenter.IOnSafetyCenterDataChangedListener;
 import android.safetycenter.SafetyCenterData;
+import android.safetycenter.SafetyCenterDataDelta;
 import android.safetycenter.SafetyCenterErrorDetails;
 import android.util.Log;
 import android.util.SparseArray;
 
 import androidx.annotation.RequiresApi;
 
+import com.android.internal.annotations.GuardedBy;
+
 /**
  * A class that keeps track of all the registered {@link IOnSafetyCenterDataChangedListener}
  * per-user.
  *
- * <p>This class isn't thread safe. Thread safety must be handled by the caller.
+ * <p>This class is thread safe.
  */
 @RequiresApi(TIRAMISU)
 final class SafetyCenterListeners {
 
     private static final String TAG = "SafetyCenterListeners";
 
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
     private final SparseArray<RemoteCallbackList<IOnSafetyCenterDataChangedListener>>
             mSafetyCenterDataChangedListeners = new SparseArray<>();
 
@@ -62,9 +68,24 @@ final class SafetyCenterListeners {
         }
     }
 
+    /**
+     * Delivers a {@link SafetyCenterDataDelta} update to a single {@link
+     * IOnSafetyCenterDataChangedListener} receiving deltas.
+     */
+    static void deliverDelta(
+            @NonNull IOnSafetyCenterDataChangedListener listener,
+            @NonNull SafetyCenterDataDelta safetyCenterDataDelta) {
+        try {
+            listener.onSafetyCenterDataDelta(safetyCenterDataDelta);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Error delivering SafetyCenterDataDelta to listener", e);
+        }
+    }
+
     /**
      * Delivers a {@link SafetyCenterData} update to a {@link RemoteCallbackList} of {@link
-     * IOnSafetyCenterDataChangedListener}.
+     * IOnSafetyCenterDataChangedListener}, as the given {@link SafetyCenterDataDelta} to those
+     * receiving deltas.
      *
      * <p>Registering or unregistering {@link IOnSafetyCenterDataChangedListener} on the underlying
      * {@link RemoteCallbackList} on another thread while an update is happening is safe as this is
@@ -72,11 +93,16 @@ final class SafetyCenterListeners {
      */
     static void deliverUpdate(
             @NonNull RemoteCallbackList<IOnSafetyCenterDataChangedListener> listeners,
-            @NonNull SafetyCenterData safetyCenterData) {
+            @NonNull SafetyCenterData safetyCenterData,
+            @NonNull SafetyCenterDataDelta safetyCenterDataDelta) {
         int i = listeners.beginBroadcast();
         while (i > 0) {
             i--;
-            deliverUpdate(listeners.getBroadcastItem(i), safetyCenterData);
+            if (Boolean.TRUE.equals(listeners.getBroadcastCookie(i))) {
+                deliverDelta(listeners.getBroadcastItem(i), safetyCenterDataDelta);
+            } else {
+                deliverUpdate(listeners.getBroadcastItem(i), safetyCenterData);
+            }
         }
         listeners.finishBroadcast();
     }
@@ -114,28 +140,38 @@ final class SafetyCenterListeners {
         listeners.finishBroadcast();
     }
 
-    /** Adds a {@link IOnSafetyCenterDataChangedListener} for the given {@code userId}. */
-    void addListener(@NonNull IOnSafetyCenterDataChangedListener listener, @UserIdInt int userId) {
-        RemoteCallbackList<IOnSafetyCenterDataChangedListener> listeners =
-                mSafetyCenterDataChangedListeners.get(userId);
-        if (listeners == null) {
-            listeners = new RemoteCallbackList<>();
-            mSafetyCenterDataChangedListeners.put(userId, listeners);
+    /**
+     * Adds a {@link IOnSafetyCenterDataChangedListener} for the given {@code userId}, which
+     * receives {@link SafetyCenterDataDelta} updates if {@code receivesDeltas} is {@code true}.
+     */
+    void addListener(
+            @NonNull IOnSafetyCenterDataChangedListener listener,
+            @UserIdInt int userId,
+            boolean receivesDeltas) {
+        synchronized (mLock) {
+            RemoteCallbackList<IOnSafetyCenterDataChangedListener> listeners =
+                    mSafetyCenterDataChangedListeners.get(userId);
+            if (listeners == null) {
+                listeners = new RemoteCallbackList<>();
+                mSafetyCenterDataChangedListeners.put(userId, listeners);
+            }
+            listeners.register(listener, receivesDeltas);
         }
-        listeners.register(listener);
     }
 
     /** Removes a {@link IOnSafetyCenterDataChangedListener} for the given {@code userId}. */
     void removeListener(
             @NonNull IOnSafetyCenterDataChangedListener listener, @UserIdInt int userId) {
-        RemoteCallbackList<IOnSafetyCenterDataChangedListener> listeners =
-                mSafetyCenterDataChangedListeners.get(userId);
-        if (listeners == null) {
-            return;
-        }
-        listeners.unregister(listener);
-        if (listeners.getRegisteredCallbackCount() == 0) {
-            mSafetyCenterDataChangedListeners.put(userId, null);
+        synchronized (mLock) {
+            RemoteCallbackList<IOnSafetyCenterDataChangedListener> listeners =
+                    mSafetyCenterDataChangedListeners.get(userId);
+            if (listeners == null) {
+                return;
+            }
+            listeners.unregister(listener);
+            if (listeners.getRegisteredCallbackCount() == 0) {
+                mSafetyCenterDataChangedListeners.put(userId, null);
+            }
         }
     }
 
@@ -145,6 +181,8 @@ final class SafetyCenterListeners {
      */
     @Nullable
     RemoteCallbackList<IOnSafetyCenterDataChangedListener> getListeners(@UserIdInt int userId) {
-        return mSafetyCenterDataChangedListeners.get(userId);
+        synchronized (mLock) {
+            return mSafetyCenterDataChangedListeners.get(userId);
+        }
     }
 }
@@ -24,19 +24,27 @@ import static android.os.PowerExemptionManager.TEMPORARY_ALLOW_LIST_TYPE_FOREGRO
 import static android.safetycenter.SafetyCenterManager.ACTION_REFRESH_SAFETY_SOURCES;
 import static android.safetycenter.SafetyCenterManager.EXTRA_REFRESH_REQUEST_TYPE_FETCH_FRESH_DATA;
 import static android.safetycenter.SafetyCenterManager.EXTRA_REFRESH_REQUEST_TYPE_GET_DATA;
+import static android.safetycenter.SafetyCenterManager.EXTRA_REFRESH_SAFETY_SOURCES_BROADCAST_ID;
 import static android.safetycenter.SafetyCenterManager.EXTRA_REFRESH_SAFETY_SOURCES_REQUEST_TYPE;
+import static android.safetycenter.SafetyCenterManager.EXTRA_REFRESH_SAFETY_SOURCE_IDS;
 import static android.safetycenter.SafetyCenterManager.REFRESH_REASON_PAGE_OPEN;
 import static android.safetycenter.SafetyCenterManager.REFRESH_REASON_RESCAN_BUTTON_CLICK;
-import static android.safetycenter.config.SafetySource.SAFETY_SOURCE_TYPE_STATIC;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.app.BroadcastOptions;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.os.UserHandle;
+import android.provider.DeviceConfig;
 import android.safetycenter.SafetyCenterManager.RefreshReason;
-import android.safetycenter.config.SafetyCenterConfig;
 import android.safetycenter.config.SafetySource;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 
 import androidx.annotation.RequiresApi;
@@ -44,7 +52,6 @@ import androidx.annotation.RequiresApi;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * Class to manage and track refresh broadcasts sent by {@link SafetyCenterService}.
@@ -64,18 +71,47 @@ final class SafetyCenterRefreshManager {
     //  easily adjusted.
     private static final Duration ALLOWLIST_DURATION = Duration.ofSeconds(20);
 
+    /**
+     * Device Config property for the minimum time in milliseconds between two refreshes of a
+     * safety source for {@link android.safetycenter.SafetyCenterManager#REFRESH_REASON_PAGE_OPEN}.
+     */
+    private static final String PROPERTY_PAGE_OPEN_MIN_REFRESH_INTERVAL_MILLIS =
+            "safety_center_page_open_min_refresh_interval_millis";
+
+    private static final long DEFAULT_PAGE_OPEN_MIN_REFRESH_INTERVAL_MILLIS = 30_000;
+
     @NonNull private final List<String> mAdditionalSafetySourcePackageNames = new ArrayList<>();
+
+    /**
+     * Maps the id of each safety source to the time it was last sent a refresh broadcast; only
+     * holds the safety sources of {@link #mLastRefreshSafetyCenterConfigIndex}.
+     */
+    @NonNull
+    private final ArrayMap<String, Long> mLastRefreshElapsedMillisForSafetySourceId =
+            new ArrayMap<>();
+
+    /** The {@link SafetyCenterConfigIndex} used by the last refresh. */
+    @Nullable private SafetyCenterConfigIndex mLastRefreshSafetyCenterConfigIndex;
+
     @NonNull private final Context mContext;
     @NonNull private final SafetyCenterConfigReader mSafetyCenterConfigReader;
+    @NonNull private final SafetyCenterRefreshTracker mSafetyCenterRefreshTracker;
+    @NonNull private final Handler mHandler;
 
     /**
-     * Creates a {@link SafetyCenterRefreshManager} using the given {@link Context} and {@link
-     * SafetyCenterConfigReader}.
+     * Creates a {@link SafetyCenterRefreshManager} using the given {@link Context}, {@link
+     * SafetyCenterConfigReader} and {@link SafetyCenterRefreshTracker}, sending broadcasts on the
+     * given {@link Handler}.
      */
     SafetyCenterRefreshManager(
-            @NonNull Context context, @NonNull SafetyCenterConfigReader safetyCenterConfigReader) {
+            @NonNull Context context,
+            @NonNull SafetyCenterConfigReader safetyCenterConfigReader,
+            @NonNull SafetyCenterRefreshTracker safetyCenterRefreshTracker,
+            @NonNull Handler handler) {
         mContext = context;
         mSafetyCenterConfigReader = safetyCenterConfigReader;
+        mSafetyCenterRefreshTracker = safetyCenterRefreshTracker;
+        mHandler = handler;
     }
 
     /** Adds a package name representing a source to refresh. */
@@ -90,11 +126,22 @@ final class SafetyCenterRefreshManager {
     //  SafetyCenterRefreshManager instead once ag/16834483 is submitted.
     void clearAdditionalSafetySourcePackageNames() {
         mAdditionalSafetySourcePackageNames.clear();
+        // The safety sources may have been refreshed as overridden for tests.
+        mLastRefreshElapsedMillisForSafetySourceId.clear();
     }
 
     /**
      * Triggers a refresh of safety sources by sending them broadcasts with action {@link
      * android.safetycenter.SafetyCenterManager#ACTION_REFRESH_SAFETY_SOURCES}.
+     *
+     * <p>The broadcasts are batched per package and sent asynchronously on the {@link Handler} of
+     * this class, so that this call doesn't block on the broadcasts being sent.
+     *
+     * <p>No broadcast is sent if the refresh is collapsed into one already in flight by the {@link
+     * SafetyCenterRefreshTracker}. For {@link
+     * android.safetycenter.SafetyCenterManager#REFRESH_REASON_PAGE_OPEN}, safety sources which were
+     * refreshed within the minimum refresh interval are skipped, and no refresh is started at all
+     * if that skips every safety source.
      */
     void refreshSafetySources(@RefreshReason int refreshReason) {
         int requestType;
@@ -109,60 +156,141 @@ final class SafetyCenterRefreshManager {
                 throw new IllegalArgumentException("Invalid refresh reason: " + refreshReason);
         }
 
-        SafetyCenterConfig safetyCenterConfig = mSafetyCenterConfigReader.getSafetyCenterConfig();
-        if (safetyCenterConfig == null) {
+        SafetyCenterConfigIndex safetyCenterConfigIndex =
+                mSafetyCenterConfigReader.getSafetyCenterConfigIndex();
+        if (safetyCenterConfigIndex == null) {
             Log.w(TAG, "SafetyCenterConfig unavailable, ignoring refresh");
             return;
         }
 
-        // TODO(b/219702252): Use a more efficient data structure for this.
-        List<SafetySource> safetySourcesToRefresh =
-                safetyCenterConfig.getSafetySourcesGroups().stream()
-                        .flatMap(group -> group.getSafetySources().stream())
-                        .filter(
-                                // Only send broadcasts to dynamic safety sources.
-                                source -> source.getType() != SAFETY_SOURCE_TYPE_STATIC)
-                        .collect(Collectors.toList());
-
-        sendRefreshBroadcastToSafetySources(safetySourcesToRefresh, requestType);
-        sendRefreshBroadcastToAdditionalSafetySourceReceivers(requestType);
-    }
+        if (safetyCenterConfigIndex != mLastRefreshSafetyCenterConfigIndex) {
+            pruneLastRefreshElapsedMillis(safetyCenterConfigIndex);
+            mLastRefreshSafetyCenterConfigIndex = safetyCenterConfigIndex;
+        }
+
+        // Only send broadcasts to dynamic safety sources.
+        long nowElapsedMillis = SystemClock.elapsedRealtime();
+        List<SafetySource> dynamicSafetySources = safetyCenterConfigIndex.getDynamicSafetySources();
+        List<SafetySource> safetySources = dynamicSafetySources;
+        if (requestType == EXTRA_REFRESH_REQUEST_TYPE_GET_DATA) {
+            safetySources =
+                    filterRecentlyRefreshedSafetySources(dynamicSafetySources, nowElapsedMillis);
+            if (safetySources.isEmpty() && !dynamicSafetySources.isEmpty()) {
+                return;
+            }
+        }
+        List<String> safetySourceIds = new ArrayList<>(safetySources.size());
+        ArrayMap<String, ArrayList<String>> safetySourceIdsByPackageName = new ArrayMap<>();
+        for (int i = 0; i < safetySources.size(); i++) {
+            SafetySource safetySource = safetySources.get(i);
+            safetySourceIds.add(safetySource.getId());
+            ArrayList<String> packageSafetySourceIds =
+                    safetySourceIdsByPackageName.get(safetySource.getPackageName());
+            if (packageSafetySourceIds == null) {
+                packageSafetySourceIds = new ArrayList<>();
+                safetySourceIdsByPackageName.put(
+                        safetySource.getPackageName(), packageSafetySourceIds);
+            }
+            packageSafetySourceIds.add(safetySource.getId());
+        }
+
+        String refreshBroadcastId =
+                mSafetyCenterRefreshTracker.startRefresh(requestType, safetySourceIds);
+        if (refreshBroadcastId == null) {
+            return;
+        }
+        for (int i = 0; i < safetySourceIds.size(); i++) {
+            mLastRefreshElapsedMillisForSafetySourceId.put(
+                    safetySourceIds.get(i), nowElapsedMillis);
+        }
 
-    private void sendRefreshBroadcastToSafetySources(
-            List<SafetySource> safetySources, int requestType) {
         Intent broadcastIntent =
                 new Intent(ACTION_REFRESH_SAFETY_SOURCES)
                         .putExtra(EXTRA_REFRESH_SAFETY_SOURCES_REQUEST_TYPE, requestType)
+                        .putExtra(EXTRA_REFRESH_SAFETY_SOURCES_BROADCAST_ID, refreshBroadcastId)
                         .setFlags(FLAG_RECEIVER_FOREGROUND);
-        BroadcastOptions broadcastOptions = BroadcastOptions.makeBasic();
-        // The following operation requires START_FOREGROUND_SERVICES_FROM_BACKGROUND
-        // permission.
-        broadcastOptions.setTemporaryAppAllowlist(
-                ALLOWLIST_DURATION.toMillis(),
-                TEMPORARY_ALLOW_LIST_TYPE_FOREGROUND_SERVICE_ALLOWED,
-                REASON_REFRESH_SAFETY_SOURCES,
-                "Safety Center is requesting data from safety sources");
+        List<String> additionalSafetySourcePackageNames =
+                new ArrayList<>(mAdditionalSafetySourcePackageNames);
+        mHandler.post(
+                () -> {
+                    sendRefreshBroadcastToSafetySources(
+                            broadcastIntent, safetySourceIdsByPackageName);
+                    sendRefreshBroadcastToAdditionalSafetySourceReceivers(
+                            broadcastIntent, additionalSafetySourcePackageNames);
+                });
+    }
 
-        for (SafetySource source : safetySources) {
-            Intent broadcastIntentForSource =
-                    new Intent(broadcastIntent).setPackage(source.getPackageName());
+    /**
+     * Removes the safety sources which aren't in the given {@link SafetyCenterConfigIndex} from
+     * {@link #mLastRefreshElapsedMillisForSafetySourceId}.
+     */
+    private void pruneLastRefreshElapsedMillis(
+            @NonNull SafetyCenterConfigIndex safetyCenterConfigIndex) {
+        List<SafetySource> dynamicSafetySources = safetyCenterConfigIndex.getDynamicSafetySources();
+        ArraySet<String> safetySourceIds = new ArraySet<>(dynamicSafetySources.size());
+        for (int i = 0; i < dynamicSafetySources.size(); i++) {
+            safetySourceIds.add(dynamicSafetySources.get(i).getId());
+        }
+        mLastRefreshElapsedMillisForSafetySourceId.keySet().retainAll(safetySourceIds);
+    }
+
+    @NonNull
+    private List<SafetySource> filterRecentlyRefreshedSafetySources(
+            @NonNull List<SafetySource> safetySources, long nowElapsedMillis) {
+        long minRefreshIntervalMillis = getPageOpenMinRefreshIntervalMillis();
+        List<SafetySource> filteredSafetySources = new ArrayList<>(safetySources.size());
+        for (int i = 0; i < safetySources.size(); i++) {
+            SafetySource safetySource = safetySources.get(i);
+            Long lastRefreshElapsedMillis =
+                    mLastRefreshElapsedMillisForSafetySourceId.get(safetySource.getId());
+            if (lastRefreshElapsedMillis != null
+                    && nowElapsedMillis - lastRefreshElapsedMillis < minRefreshIntervalMillis) {
+                continue;
+            }
+            filteredSafetySources.add(safetySource);
+        }
+        return filteredSafetySources;
+    }
+
+    private void sendRefreshBroadcastToSafetySources(
+            @NonNull Intent broadcastIntent,
+            @NonNull ArrayMap<String, ArrayList<String>> safetySourceIdsByPackageName) {
+        Bundle broadcastOptions = createBroadcastOptions();
+        for (int i = 0; i < safetySourceIdsByPackageName.size(); i++) {
+            ArrayList<String> safetySourceIds = safetySourceIdsByPackageName.valueAt(i);
+            Intent broadcastIntentForPackage =
+                    new Intent(broadcastIntent)
+                            .putExtra(
+                                    EXTRA_REFRESH_SAFETY_SOURCE_IDS,
+                                    safetySourceIds.toArray(new String[0]))
+                            .setPackage(safetySourceIdsByPackageName.keyAt(i));
             // TODO(b/215144069): Add cross profile support for safety sources which support
             //  both personal and work profile. This implementation invokes
             //  `sendBroadcastAsUser` in order to invoke the permission.
             // The following operation requires INTERACT_ACROSS_USERS permission.
             mContext.sendBroadcastAsUser(
-                    broadcastIntentForSource,
+                    broadcastIntentForPackage,
                     UserHandle.CURRENT,
                     SEND_SAFETY_CENTER_UPDATE,
-                    broadcastOptions.toBundle());
+                    broadcastOptions);
         }
     }
 
-    private void sendRefreshBroadcastToAdditionalSafetySourceReceivers(int requestType) {
-        Intent broadcastIntent =
-                new Intent(ACTION_REFRESH_SAFETY_SOURCES)
-                        .putExtra(EXTRA_REFRESH_SAFETY_SOURCES_REQUEST_TYPE, requestType)
-                        .setFlags(FLAG_RECEIVER_FOREGROUND);
+    private void sendRefreshBroadcastToAdditionalSafetySourceReceivers(
+            @NonNull Intent broadcastIntent, @NonNull List<String> packageNames) {
+        Bundle broadcastOptions = createBroadcastOptions();
+        for (int i = 0; i < packageNames.size(); i++) {
+            // The following operation requires INTERACT_ACROSS_USERS permission.
+            mContext.sendBroadcastAsUser(
+                    new Intent(broadcastIntent).setPackage(packageNames.get(i)),
+                    UserHandle.CURRENT,
+                    SEND_SAFETY_CENTER_UPDATE,
+                    broadcastOptions);
+        }
+    }
+
+    @NonNull
+    private static Bundle createBroadcastOptions() {
         BroadcastOptions broadcastOptions = BroadcastOptions.makeBasic();
         // The following operation requires START_FOREGROUND_SERVICES_FROM_BACKGROUND
         // permission.
@@ -171,14 +299,19 @@ final class SafetyCenterRefreshManager {
                 TEMPORARY_ALLOW_LIST_TYPE_FOREGROUND_SERVICE_ALLOWED,
                 REASON_REFRESH_SAFETY_SOURCES,
                 "Safety Center is requesting data from safety sources");
+        return broadcastOptions.toBundle();
+    }
 
-        for (String packageName : mAdditionalSafetySourcePackageNames) {
-            // The following operation requires INTERACT_ACROSS_USERS permission.
-            mContext.sendBroadcastAsUser(
-                    new Intent(broadcastIntent).setPackage(packageName),
-                    UserHandle.CURRENT,
-                    SEND_SAFETY_CENTER_UPDATE,
-                    broadcastOptions.toBundle());
+    private static long getPageOpenMinRefreshIntervalMillis() {
+        // This call requires the READ_DEVICE_CONFIG permission.
+        final long callingId = Binder.clearCallingIdentity();
+        try {
+            return DeviceConfig.getLong(
+                    DeviceConfig.NAMESPACE_PRIVACY,
+                    PROPERTY_PAGE_OPEN_MIN_REFRESH_INTERVAL_MILLIS,
+                    DEFAULT_PAGE_OPEN_MIN_REFRESH_INTERVAL_MILLIS);
+        } finally {
+            Binder.restoreCallingIdentity(callingId);
         }
     }
 }
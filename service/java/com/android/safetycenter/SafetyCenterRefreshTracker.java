@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.safetycenter;
+
+import static android.os.Build.VERSION_CODES.TIRAMISU;
+import static android.safetycenter.SafetyCenterManager.EXTRA_REFRESH_REQUEST_TYPE_FETCH_FRESH_DATA;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.DeviceConfig;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A class that keeps track of the refresh broadcasts in flight, identified by their refresh
+ * broadcast id, and of how long each safety source takes to respond to them.
+ *
+ * <p>A refresh requested while another one requesting at least as fresh data is still in flight is
+ * collapsed into it. Safety sources that haven't responded by the refresh timeout are recorded as
+ * timed out, and the refresh is then considered complete.
+ *
+ * <p>This class is thread safe.
+ */
+@RequiresApi(TIRAMISU)
+final class SafetyCenterRefreshTracker {
+
+    private static final String TAG = "SafetyCenterRefreshTrac";
+
+    /**
+     * Device Config property for the time in milliseconds after which safety sources that haven't
+     * responded to a refresh broadcast are considered timed out.
+     */
+    private static final String PROPERTY_REFRESH_TIMEOUT_MILLIS =
+            "safety_center_refresh_timeout_millis";
+
+    private static final long DEFAULT_REFRESH_TIMEOUT_MILLIS = 10_000;
+
+    /** The upper bounds in milliseconds of the response latency histogram buckets. */
+    private static final long[] LATENCY_BUCKET_UPPER_BOUNDS_MILLIS = {
+        100, 250, 500, 1_000, 2_500, 5_000, 10_000
+    };
+
+    @NonNull private final Handler mHandler;
+
+    private final Object mLock = new Object();
+
+    /** Maps the refresh broadcast id of each refresh in flight to its {@link Refresh}. */
+    @GuardedBy("mLock")
+    private final ArrayMap<String, Refresh> mRefreshesInFlight = new ArrayMap<>();
+
+    /** Maps the id of each safety source to its {@link SourceStats}. */
+    @GuardedBy("mLock")
+    private final ArrayMap<String, SourceStats> mSourceStats = new ArrayMap<>();
+
+    @GuardedBy("mLock")
+    private long mRefreshesStarted;
+
+    @GuardedBy("mLock")
+    private long mRefreshesCollapsed;
+
+    /**
+     * Creates a {@link SafetyCenterRefreshTracker} timing out refreshes on the given {@link
+     * Handler}.
+     */
+    SafetyCenterRefreshTracker(@NonNull Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Starts tracking a refresh of the given {@code safetySourceIds} with the given {@code
+     * requestType}, and returns its refresh broadcast id.
+     *
+     * <p>Returns {@code null} if the refresh was collapsed into one already in flight, in which
+     * case no broadcast should be sent.
+     */
+    @Nullable
+    String startRefresh(int requestType, @NonNull List<String> safetySourceIds) {
+        long timeoutMillis = getRefreshTimeoutMillis();
+        synchronized (mLock) {
+            for (int i = 0; i < mRefreshesInFlight.size(); i++) {
+                Refresh refresh = mRefreshesInFlight.valueAt(i);
+                if (refresh.mRequestType == requestType
+                        || refresh.mRequestType == EXTRA_REFRESH_REQUEST_TYPE_FETCH_FRESH_DATA) {
+                    mRefreshesCollapsed++;
+                    Log.v(
+                            TAG,
+                            "Collapsing refresh into refresh in flight: "
+                                    + mRefreshesInFlight.keyAt(i));
+                    return null;
+                }
+            }
+
+            String refreshBroadcastId = UUID.randomUUID().toString();
+            mRefreshesStarted++;
+            if (safetySourceIds.isEmpty()) {
+                return refreshBroadcastId;
+            }
+
+            Refresh refresh = new Refresh(requestType, SystemClock.elapsedRealtime());
+            for (int i = 0; i < safetySourceIds.size(); i++) {
+                refresh.mPendingSafetySourceIds.add(safetySourceIds.get(i));
+            }
+            mRefreshesInFlight.put(refreshBroadcastId, refresh);
+            mHandler.postDelayed(() -> timeOutRefresh(refreshBroadcastId), timeoutMillis);
+            return refreshBroadcastId;
+        }
+    }
+
+    /**
+     * Reports that the safety source with the given {@code safetySourceId} responded to the
+     * refresh with the given {@code refreshBroadcastId}.
+     *
+     * <p>Responses to refreshes that aren't in flight anymore, or that weren't sent to the given
+     * safety source, are ignored.
+     */
+    void reportSafetySourceResponded(
+            @NonNull String refreshBroadcastId, @NonNull String safetySourceId) {
+        synchronized (mLock) {
+            Refresh refresh = mRefreshesInFlight.get(refreshBroadcastId);
+            if (refresh == null || !refresh.mPendingSafetySourceIds.remove(safetySourceId)) {
+                return;
+            }
+
+            long latencyMillis = SystemClock.elapsedRealtime() - refresh.mStartElapsedMillis;
+            getOrCreateSourceStatsLocked(safetySourceId).recordResponse(latencyMillis);
+            if (refresh.mPendingSafetySourceIds.isEmpty()) {
+                mRefreshesInFlight.remove(refreshBroadcastId);
+            }
+        }
+    }
+
+    private void timeOutRefresh(@NonNull String refreshBroadcastId) {
+        synchronized (mLock) {
+            Refresh refresh = mRefreshesInFlight.remove(refreshBroadcastId);
+            if (refresh == null) {
+                return;
+            }
+
+            for (int i = 0; i < refresh.mPendingSafetySourceIds.size(); i++) {
+                String safetySourceId = refresh.mPendingSafetySourceIds.get(i);
+                Log.w(
+                        TAG,
+                        "Safety source "
+                                + safetySourceId
+                                + " timed out responding to refresh "
+                                + refreshBroadcastId);
+                getOrCreateSourceStatsLocked(safetySourceId).mTimeouts++;
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    @NonNull
+    private SourceStats getOrCreateSourceStatsLocked(@NonNull String safetySourceId) {
+        SourceStats sourceStats = mSourceStats.get(safetySourceId);
+        if (sourceStats == null) {
+            sourceStats = new SourceStats();
+            mSourceStats.put(safetySourceId, sourceStats);
+        }
+        return sourceStats;
+    }
+
+    /** Dumps the refreshes in flight and the response statistics of each safety source. */
+    void dump(@NonNull PrintWriter fout) {
+        fout.println("REFRESH TRACKER (timeout: " + getRefreshTimeoutMillis() + "ms)");
+        synchronized (mLock) {
+            fout.println(
+                    "\t"
+                            + mRefreshesStarted
+                            + " refreshes started, "
+                            + mRefreshesCollapsed
+                            + " collapsed into a refresh in flight");
+
+            long nowElapsedMillis = SystemClock.elapsedRealtime();
+            fout.println("\t" + mRefreshesInFlight.size() + " refreshes in flight");
+            for (int i = 0; i < mRefreshesInFlight.size(); i++) {
+                Refresh refresh = mRefreshesInFlight.valueAt(i);
+                fout.println(
+                        "\t\t"
+                                + mRefreshesInFlight.keyAt(i)
+                                + ": request type "
+                                + refresh.mRequestType
+                                + ", started "
+                                + (nowElapsedMillis - refresh.mStartElapsedMillis)
+                                + "ms ago, waiting for "
+                                + refresh.mPendingSafetySourceIds);
+            }
+
+            fout.println("\t" + mSourceStats.size() + " safety sources");
+            for (int i = 0; i < mSourceStats.size(); i++) {
+                fout.println("\t\t" + mSourceStats.keyAt(i) + ": " + mSourceStats.valueAt(i));
+            }
+        }
+        fout.println();
+    }
+
+    private static long getRefreshTimeoutMillis() {
+        // This call requires the READ_DEVICE_CONFIG permission.
+        final long callingId = Binder.clearCallingIdentity();
+        try {
+            return DeviceConfig.getLong(
+                    DeviceConfig.NAMESPACE_PRIVACY,
+                    PROPERTY_REFRESH_TIMEOUT_MILLIS,
+                    DEFAULT_REFRESH_TIMEOUT_MILLIS);
+        } finally {
+            Binder.restoreCallingIdentity(callingId);
+        }
+    }
+
+    /** A refresh in flight. */
+    private static final class Refresh {
+        private final int mRequestType;
+        private final long mStartElapsedMillis;
+        @NonNull private final List<String> mPendingSafetySourceIds = new ArrayList<>();
+
+        private Refresh(int requestType, long startElapsedMillis) {
+            mRequestType = requestType;
+            mStartElapsedMillis = startElapsedMillis;
+        }
+    }
+
+    /** The response statistics of a safety source, including its response latency histogram. */
+    private static final class SourceStats {
+        /**
+         * The number of responses in each bucket of {@link #LATENCY_BUCKET_UPPER_BOUNDS_MILLIS},
+         * followed by the number of responses slower than all of them.
+         */
+        private final long[] mLatencyBuckets =
+                new long[LATENCY_BUCKET_UPPER_BOUNDS_MILLIS.length + 1];
+
+        private long mResponses;
+        private long mTimeouts;
+        private long mMaxLatencyMillis;
+
+        private void recordResponse(long latencyMillis) {
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKET_UPPER_BOUNDS_MILLIS.length
+                    && latencyMillis > LATENCY_BUCKET_UPPER_BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            mLatencyBuckets[bucket]++;
+            mResponses++;
+            mMaxLatencyMillis = Math.max(mMaxLatencyMillis, latencyMillis);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder histogram = new StringBuilder();
+            for (int i = 0; i < mLatencyBuckets.length; i++) {
+                if (i > 0) {
+                    histogram.append(", ");
+                }
+                histogram.append(
+                        i < LATENCY_BUCKET_UPPER_BOUNDS_MILLIS.length
+                                ? "<=" + LATENCY_BUCKET_UPPER_BOUNDS_MILLIS[i]
+                                : ">" + LATENCY_BUCKET_UPPER_BOUNDS_MILLIS[i - 1]);
+                histogram.append("ms: ").append(mLatencyBuckets[i]);
+            }
+            return mResponses
+                    + " responses, "
+                    + mTimeouts
+                    + " timeouts, max latency "
+                    + mMaxLatencyMillis
+                    + "ms, latency histogram {"
+                    + histogram
+                    + "}";
+        }
+    }
+}
@@ -29,10 +29,15 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.annotation.UserIdInt;
 import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.RemoteCallbackList;
 import android.provider.DeviceConfig;
 import android.safetycenter.IOnSafetyCenterDataChangedListener;
@@ -54,7 +59,10 @@ import com.android.internal.annotations.GuardedBy;
 import com.android.permission.util.PermissionUtils;
 import com.android.server.SystemService;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Service for the safety center.
@@ -70,33 +78,89 @@ public final class SafetyCenterService extends SystemService {
     /** Phenotype flag that determines whether SafetyCenter is enabled. */
     private static final String PROPERTY_SAFETY_CENTER_ENABLED = "safety_center_is_enabled";
 
-    private final Object mApiLock = new Object();
-    // Refresh/rescan is guarded by another lock: sending broadcasts can be a lengthy operation and
-    // the APIs that will be exercised by the receivers are already protected by `mApiLock`.
+    // The data tracker and listeners partition their state by user and are thread safe, so that
+    // API calls for different users don't contend with each other. Refresh/rescan is guarded by
+    // its own lock, and sends its broadcasts asynchronously on the background thread.
     private final Object mRefreshLock = new Object();
 
-    @GuardedBy("mApiLock")
+    @NonNull
     private final SafetyCenterListeners mSafetyCenterListeners = new SafetyCenterListeners();
 
     @NonNull private final SafetyCenterConfigReader mSafetyCenterConfigReader;
 
-    @GuardedBy("mApiLock")
-    @NonNull
-    private final SafetyCenterDataTracker mSafetyCenterDataTracker;
+    @NonNull private final SafetyCenterDataTracker mSafetyCenterDataTracker;
 
     @GuardedBy("mRefreshLock")
     @NonNull
     private final SafetyCenterRefreshManager mSafetyCenterRefreshManager;
 
+    @NonNull private final SafetyCenterRefreshTracker mSafetyCenterRefreshTracker;
+
+    @NonNull private final SafetyCenterUpdateDispatcher mSafetyCenterUpdateDispatcher;
+
+    @NonNull private final SafetySourceDataPersistence mSafetySourceDataPersistence;
+
+    @NonNull private final UserProfileGroupCache mUserProfileGroupCache;
+
     @NonNull private final AppOpsManager mAppOpsManager;
 
     public SafetyCenterService(@NonNull Context context) {
         super(context);
         mSafetyCenterConfigReader = new SafetyCenterConfigReader(context);
         mSafetyCenterDataTracker = new SafetyCenterDataTracker(context, mSafetyCenterConfigReader);
+        HandlerThread backgroundThread = new HandlerThread(TAG + "Background");
+        backgroundThread.start();
+        Handler backgroundHandler = new Handler(backgroundThread.getLooper());
+        mSafetyCenterRefreshTracker = new SafetyCenterRefreshTracker(backgroundHandler);
         mSafetyCenterRefreshManager =
-                new SafetyCenterRefreshManager(context, mSafetyCenterConfigReader);
+                new SafetyCenterRefreshManager(
+                        context,
+                        mSafetyCenterConfigReader,
+                        mSafetyCenterRefreshTracker,
+                        backgroundHandler);
+        mSafetyCenterUpdateDispatcher =
+                new SafetyCenterUpdateDispatcher(
+                        backgroundHandler, new UpdateDispatcherDelegate());
+        mSafetySourceDataPersistence =
+                new SafetySourceDataPersistence(backgroundHandler, new PersistenceDelegate());
         mAppOpsManager = requireNonNull(context.getSystemService(AppOpsManager.class));
+        mUserProfileGroupCache = new UserProfileGroupCache(context);
+        mUserProfileGroupCache.registerReceiver(backgroundHandler);
+        registerPackageChangeReceiver(context, backgroundHandler);
+    }
+
+    /**
+     * Registers a {@link BroadcastReceiver} updating the {@link SafetyCenterData} of the safety
+     * sources of a package when it is added, removed or changed, so that it doesn't keep stale
+     * {@code PendingIntent}s.
+     */
+    private void registerPackageChangeReceiver(
+            @NonNull Context context, @NonNull Handler handler) {
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        intentFilter.addDataScheme("package");
+        context.registerReceiverForAllUsers(
+                new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(@NonNull Context context, @NonNull Intent intent) {
+                        if (intent.getData() == null) {
+                            return;
+                        }
+                        String packageName = intent.getData().getSchemeSpecificPart();
+                        int userId = getSendingUserId();
+                        if (mSafetyCenterDataTracker.invalidateSafetyCenterDataForPackage(
+                                packageName, userId)) {
+                            mSafetyCenterUpdateDispatcher.scheduleUpdate(
+                                    mUserProfileGroupCache.get(userId));
+                        }
+                    }
+                },
+                intentFilter,
+                null,
+                handler);
     }
 
     @Override
@@ -105,6 +169,49 @@ public final class SafetyCenterService extends SystemService {
         mSafetyCenterConfigReader.loadSafetyCenterConfig();
     }
 
+    @Override
+    public void onUserStarting(@NonNull TargetUser user) {
+        int userId = user.getUserHandle().getIdentifier();
+        if (SafetySourceDataPersistence.isEnabled()) {
+            // Show the last known status of each safety source until it provides fresh data.
+            List<SafetySourceDataPersistence.Record> records =
+                    mSafetySourceDataPersistence.read(userId);
+            if (!records.isEmpty()) {
+                mSafetyCenterDataTracker.restoreSafetySourceData(records, userId);
+            }
+        }
+        // A profile starting may change the SafetyCenterData of its whole profile group.
+        mUserProfileGroupCache.invalidate();
+        mSafetyCenterUpdateDispatcher.scheduleUpdate(mUserProfileGroupCache.get(userId));
+    }
+
+    /** {@link SafetyCenterUpdateDispatcher.Delegate} reading the state of this service. */
+    private final class UpdateDispatcherDelegate implements SafetyCenterUpdateDispatcher.Delegate {
+        @Override
+        @NonNull
+        public SafetyCenterData getSafetyCenterData(@UserIdInt int userId) {
+            return mSafetyCenterDataTracker.getSafetyCenterData(
+                    mUserProfileGroupCache.get(userId));
+        }
+
+        @Override
+        @Nullable
+        public RemoteCallbackList<IOnSafetyCenterDataChangedListener> getListeners(
+                @UserIdInt int userId) {
+            return mSafetyCenterListeners.getListeners(userId);
+        }
+    }
+
+    /** {@link SafetySourceDataPersistence.Delegate} reading the state of this service. */
+    private final class PersistenceDelegate implements SafetySourceDataPersistence.Delegate {
+        @Override
+        @NonNull
+        public List<SafetySourceDataPersistence.Record> getRecordsToPersist(
+                @UserIdInt int userId) {
+            return mSafetyCenterDataTracker.getSafetySourceDataToPersist(userId);
+        }
+    }
+
     /** Service implementation of {@link ISafetyCenterManager.Stub}. */
     private final class Stub extends ISafetyCenterManager.Stub {
         @Override
@@ -136,24 +243,22 @@ public final class SafetyCenterService extends SystemService {
                 return;
             }
             // TODO(b/218812582): Validate the SafetySourceData.
-
-            SafetyCenterData safetyCenterData;
-            RemoteCallbackList<IOnSafetyCenterDataChangedListener> listeners;
-            synchronized (mApiLock) {
-                safetyCenterData =
-                        mSafetyCenterDataTracker.setSafetySourceData(
-                                safetySourceId, safetySourceData, packageName, userId);
-                listeners = mSafetyCenterListeners.getListeners(userId);
+            if (!mSafetyCenterDataTracker.configContains(safetySourceId, packageName)) {
+                // TODO(b/218801292): Should this be hard error for the caller?
+                return;
             }
-            // This doesn't need to be done while holding the lock, as RemoteCallbackList already
-            // handles concurrent calls.
-            // If the listener uses SafetyCenterManager and is executed on #directExecutor(),
-            // doing this while holding the lock could also potentially lead to deadlocks.
-            if (listeners != null && safetyCenterData != null) {
-                // TODO(b/218811189): This should be called on all listeners associated with the
-                //  userId, i.e. if #setSafetySourceData is called with a work profile userId,
-                //  we should also let the personal profile listeners know about the update.
-                SafetyCenterListeners.deliverUpdate(listeners, safetyCenterData);
+
+            // This throws for data over the limits, which then doesn't count as a refresh response.
+            boolean safetyCenterDataChanged =
+                    mSafetyCenterDataTracker.setSafetySourceData(
+                            safetySourceId, safetySourceData, packageName, userId);
+            reportRefreshResponse(safetySourceId, safetyEvent);
+            // The SafetyCenterData is only aggregated and delivered to listeners once a burst of
+            // updates is over, on the update dispatcher's own thread. The SafetyCenterData of
+            // every user of the profile group includes this data.
+            if (safetyCenterDataChanged) {
+                mSafetyCenterUpdateDispatcher.scheduleUpdate(mUserProfileGroupCache.get(userId));
+                mSafetySourceDataPersistence.scheduleWrite(userId);
             }
         }
 
@@ -175,10 +280,8 @@ public final class SafetyCenterService extends SystemService {
                 return null;
             }
 
-            synchronized (mApiLock) {
-                return mSafetyCenterDataTracker.getSafetySourceData(
-                        safetySourceId, packageName, userId);
-            }
+            return mSafetyCenterDataTracker.getSafetySourceData(
+                    safetySourceId, packageName, userId);
         }
 
         @Override
@@ -198,11 +301,13 @@ public final class SafetyCenterService extends SystemService {
                 return;
             }
 
-            // TODO(b/218379298): Add implementation
-            RemoteCallbackList<IOnSafetyCenterDataChangedListener> listeners;
-            synchronized (mApiLock) {
-                listeners = mSafetyCenterListeners.getListeners(userId);
+            // Only safety sources in the config may complete a refresh.
+            if (mSafetyCenterDataTracker.configContains(safetySourceId, packageName)) {
+                reportRefreshResponse(safetySourceId, errorDetails.getSafetyEvent());
             }
+            // TODO(b/218379298): Add implementation
+            RemoteCallbackList<IOnSafetyCenterDataChangedListener> listeners =
+                    mSafetyCenterListeners.getListeners(userId);
 
             SafetyCenterListeners.deliverError(listeners, new SafetyCenterErrorDetails("Error"));
         }
@@ -235,9 +340,7 @@ public final class SafetyCenterService extends SystemService {
             getContext()
                     .enforceCallingOrSelfPermission(MANAGE_SAFETY_CENTER, "getSafetyCenterConfig");
 
-            synchronized (mApiLock) {
-                return mSafetyCenterConfigReader.getSafetyCenterConfig();
-            }
+            return mSafetyCenterConfigReader.getSafetyCenterConfig();
         }
 
         @Override
@@ -252,9 +355,8 @@ public final class SafetyCenterService extends SystemService {
                 return SafetyCenterDataTracker.getDefaultSafetyCenterData();
             }
 
-            synchronized (mApiLock) {
-                return mSafetyCenterDataTracker.getSafetyCenterData(userId);
-            }
+            return mSafetyCenterDataTracker.getSafetyCenterData(
+                    mUserProfileGroupCache.get(userId));
         }
 
         @Override
@@ -270,15 +372,45 @@ public final class SafetyCenterService extends SystemService {
                 return;
             }
 
-            SafetyCenterData safetyCenterData;
-            synchronized (mApiLock) {
-                mSafetyCenterListeners.addListener(listener, userId);
-                safetyCenterData = mSafetyCenterDataTracker.getSafetyCenterData(userId);
+            mSafetyCenterListeners.addListener(listener, userId, /* receivesDeltas = */ false);
+            // The initial update is delivered on the update dispatcher's thread, so that it is
+            // ordered with the updates that follow it.
+            mSafetyCenterUpdateDispatcher.scheduleInitialUpdate(userId, listener);
+        }
+
+        @Override
+        public void addOnSafetyCenterDataDeltaListener(
+                @NonNull IOnSafetyCenterDataChangedListener listener, @UserIdInt int userId) {
+            // TODO(b/217235899): Finalize cross-user behavior.
+            PermissionUtils.enforceCrossUserPermission(
+                    userId, false, "addOnSafetyCenterDataDeltaListener", getContext());
+            getContext()
+                    .enforceCallingOrSelfPermission(
+                            MANAGE_SAFETY_CENTER, "addOnSafetyCenterDataDeltaListener");
+            if (!checkApiEnabled("addOnSafetyCenterDataDeltaListener")) {
+                return;
+            }
+
+            mSafetyCenterListeners.addListener(listener, userId, /* receivesDeltas = */ true);
+            // The snapshot is delivered on the update dispatcher's thread, so that it is ordered
+            // with the deltas that follow it.
+            mSafetyCenterUpdateDispatcher.scheduleSnapshot(userId, listener);
+        }
+
+        @Override
+        public void requestSafetyCenterDataSnapshot(
+                @NonNull IOnSafetyCenterDataChangedListener listener, @UserIdInt int userId) {
+            // TODO(b/217235899): Finalize cross-user behavior.
+            PermissionUtils.enforceCrossUserPermission(
+                    userId, false, "requestSafetyCenterDataSnapshot", getContext());
+            getContext()
+                    .enforceCallingOrSelfPermission(
+                            MANAGE_SAFETY_CENTER, "requestSafetyCenterDataSnapshot");
+            if (!checkApiEnabled("requestSafetyCenterDataSnapshot")) {
+                return;
             }
-            // This doesn't need to be done while holding the lock.
-            // If the listener uses SafetyCenterManager and is executed on #directExecutor(),
-            // doing this while holding the lock could also potentially lead to deadlocks.
-            SafetyCenterListeners.deliverUpdate(listener, safetyCenterData);
+
+            mSafetyCenterUpdateDispatcher.scheduleSnapshot(userId, listener);
         }
 
         @Override
@@ -294,9 +426,7 @@ public final class SafetyCenterService extends SystemService {
                 return;
             }
 
-            synchronized (mApiLock) {
-                mSafetyCenterListeners.removeListener(listener, userId);
-            }
+            mSafetyCenterListeners.removeListener(listener, userId);
         }
 
         @Override
@@ -340,8 +470,9 @@ public final class SafetyCenterService extends SystemService {
                 return;
             }
 
-            synchronized (mApiLock) {
-                mSafetyCenterDataTracker.clear();
+            int[] clearedUserIds = mSafetyCenterDataTracker.clear();
+            for (int i = 0; i < clearedUserIds.length; i++) {
+                mSafetySourceDataPersistence.scheduleWrite(clearedUserIds[i]);
             }
         }
 
@@ -385,6 +516,51 @@ public final class SafetyCenterService extends SystemService {
             }
         }
 
+        @Override
+        protected void dump(
+                @NonNull FileDescriptor fd, @NonNull PrintWriter fout, @Nullable String[] args) {
+            if (!checkDumpPermission(fout)) {
+                return;
+            }
+
+            fout.println("SAFETY CENTER SERVICE (dumpsys safety_center)");
+            fout.println();
+            mSafetyCenterDataTracker.dump(fout);
+            mSafetyCenterRefreshTracker.dump(fout);
+            mSafetyCenterUpdateDispatcher.dump(fout);
+        }
+
+        private void reportRefreshResponse(
+                @NonNull String safetySourceId, @NonNull SafetyEvent safetyEvent) {
+            if (safetyEvent.getType() != SafetyEvent.SAFETY_EVENT_TYPE_REFRESH_REQUESTED) {
+                return;
+            }
+            String refreshBroadcastId = safetyEvent.getRefreshBroadcastId();
+            if (refreshBroadcastId == null) {
+                return;
+            }
+            mSafetyCenterRefreshTracker.reportSafetySourceResponded(
+                    refreshBroadcastId, safetySourceId);
+        }
+
+        private boolean checkDumpPermission(@NonNull PrintWriter writer) {
+            if (getContext().checkCallingOrSelfPermission(android.Manifest.permission.DUMP)
+                    != PackageManager.PERMISSION_GRANTED) {
+                writer.println(
+                        "Permission Denial: can't dump "
+                                + "safety_center"
+                                + " from pid="
+                                + Binder.getCallingPid()
+                                + ", uid="
+                                + Binder.getCallingUid()
+                                + " due to missing "
+                                + android.Manifest.permission.DUMP
+                                + " permission");
+                return false;
+            }
+            return true;
+        }
+
         private boolean isApiEnabled() {
             return getSafetyCenterConfigValue() && getDeviceConfigSafetyCenterEnabledProperty();
         }
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.safetycenter;
+
+import static android.os.Build.VERSION_CODES.TIRAMISU;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.annotation.UserIdInt;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.RemoteCallbackList;
+import android.provider.DeviceConfig;
+import android.safetycenter.IOnSafetyCenterDataChangedListener;
+import android.safetycenter.SafetyCenterData;
+import android.safetycenter.SafetyCenterDataDelta;
+import android.util.SparseArray;
+
+import androidx.annotation.RequiresApi;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.Objects;
+
+/**
+ * A class that delivers {@link SafetyCenterData} updates to the registered {@link
+ * IOnSafetyCenterDataChangedListener}s of each user on a dedicated {@link Handler}.
+ *
+ * <p>Updates scheduled for a user within the coalescing window are coalesced into a single
+ * delivery of the latest {@link SafetyCenterData}, which is skipped if it is equal to the one
+ * last delivered to that user's listeners.
+ *
+ * <p>Each delivery to a user is versioned: listeners receiving deltas get a {@link
+ * SafetyCenterDataDelta} from the previous version instead of the whole {@link SafetyCenterData}.
+ * As all deliveries happen on the {@link Handler}, they reach each listener in version order.
+ *
+ * <p>This class is thread safe.
+ */
+@RequiresApi(TIRAMISU)
+final class SafetyCenterUpdateDispatcher {
+
+    /**
+     * Device Config property for the window in milliseconds within which {@link SafetyCenterData}
+     * updates are coalesced.
+     */
+    private static final String PROPERTY_UPDATE_COALESCING_WINDOW_MILLIS =
+            "safety_center_update_coalescing_window_millis";
+
+    private static final long DEFAULT_UPDATE_COALESCING_WINDOW_MILLIS = 100;
+
+    @NonNull private final Handler mHandler;
+    @NonNull private final Delegate mDelegate;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final SparseArray<UserUpdates> mUserUpdates = new SparseArray<>();
+
+    /**
+     * Creates a {@link SafetyCenterUpdateDispatcher} delivering updates on the given {@link
+     * Handler}, using the given {@link Delegate} to get the data and listeners of each user.
+     */
+    SafetyCenterUpdateDispatcher(@NonNull Handler handler, @NonNull Delegate delegate) {
+        mHandler = handler;
+        mDelegate = delegate;
+    }
+
+    /**
+     * Schedules the delivery of the latest {@link SafetyCenterData} to the listeners of the given
+     * {@code userId}, coalescing it with any delivery already scheduled for that user.
+     */
+    void scheduleUpdate(@UserIdInt int userId) {
+        long coalescingWindowMillis = getUpdateCoalescingWindowMillis();
+        synchronized (mLock) {
+            UserUpdates userUpdates = getOrCreateUserUpdatesLocked(userId);
+            userUpdates.mUpdatesRequested++;
+            if (userUpdates.mDeliveryScheduled) {
+                return;
+            }
+            userUpdates.mDeliveryScheduled = true;
+            mHandler.postDelayed(() -> deliverUpdate(userId), coalescingWindowMillis);
+        }
+    }
+
+    /**
+     * Schedules the delivery of the latest {@link SafetyCenterData} to the listeners of every user
+     * of the given {@link UserProfileGroup}, as they all share the same {@link SafetyCenterData}.
+     */
+    void scheduleUpdate(@NonNull UserProfileGroup userProfileGroup) {
+        for (int i = 0; i < userProfileGroup.size(); i++) {
+            scheduleUpdate(userProfileGroup.getUserIdAt(i));
+        }
+    }
+
+    /**
+     * Schedules the delivery of the current {@link SafetyCenterData} to the given listener added
+     * for the given {@code userId}, which doesn't receive deltas.
+     *
+     * <p>The next scheduled delivery for that user won't be skipped, as the new listener may have
+     * received a different {@link SafetyCenterData} than the one last delivered.
+     */
+    void scheduleInitialUpdate(
+            @UserIdInt int userId, @NonNull IOnSafetyCenterDataChangedListener listener) {
+        mHandler.post(() -> deliverInitialUpdate(userId, listener));
+    }
+
+    private void deliverInitialUpdate(
+            @UserIdInt int userId, @NonNull IOnSafetyCenterDataChangedListener listener) {
+        SafetyCenterData safetyCenterData = mDelegate.getSafetyCenterData(userId);
+        synchronized (mLock) {
+            getOrCreateUserUpdatesLocked(userId).mForceNextDelivery = true;
+        }
+        SafetyCenterListeners.deliverUpdate(listener, safetyCenterData);
+    }
+
+    /**
+     * Schedules the delivery of a snapshot of the {@link SafetyCenterData} last delivered to the
+     * given listener receiving deltas for the given {@code userId}, to apply the next deltas to.
+     *
+     * <p>This is done when the listener is added, and when it can't apply a delta to the last
+     * version it received.
+     */
+    void scheduleSnapshot(
+            @UserIdInt int userId, @NonNull IOnSafetyCenterDataChangedListener listener) {
+        mHandler.post(() -> deliverSnapshot(userId, listener));
+    }
+
+    private void deliverSnapshot(
+            @UserIdInt int userId, @NonNull IOnSafetyCenterDataChangedListener listener) {
+        SafetyCenterData safetyCenterData;
+        long version;
+        synchronized (mLock) {
+            UserUpdates userUpdates = getOrCreateUserUpdatesLocked(userId);
+            safetyCenterData = userUpdates.mLastDeliveredSafetyCenterData;
+            version = userUpdates.mLastDeliveredVersion;
+        }
+        if (safetyCenterData == null) {
+            // Nothing was delivered to the current listeners of this user yet, so deliver the
+            // current SafetyCenterData to all of them, which is a snapshot for those receiving
+            // deltas.
+            deliverLatest(userId);
+            return;
+        }
+        SafetyCenterListeners.deliverDelta(
+                listener, SafetyCenterDataDelta.snapshot(safetyCenterData, version));
+    }
+
+    private void deliverUpdate(@UserIdInt int userId) {
+        synchronized (mLock) {
+            mUserUpdates.get(userId).mDeliveryScheduled = false;
+        }
+        deliverLatest(userId);
+    }
+
+    private void deliverLatest(@UserIdInt int userId) {
+        RemoteCallbackList<IOnSafetyCenterDataChangedListener> listeners =
+                mDelegate.getListeners(userId);
+        if (listeners == null) {
+            // The SafetyCenterData last delivered goes stale while no listener receives updates,
+            // so drop it for the next snapshot to be computed from the current SafetyCenterData.
+            synchronized (mLock) {
+                getOrCreateUserUpdatesLocked(userId).mLastDeliveredSafetyCenterData = null;
+            }
+            return;
+        }
+        SafetyCenterData safetyCenterData = mDelegate.getSafetyCenterData(userId);
+
+        SafetyCenterDataDelta safetyCenterDataDelta;
+        synchronized (mLock) {
+            UserUpdates userUpdates = getOrCreateUserUpdatesLocked(userId);
+            SafetyCenterData lastDeliveredSafetyCenterData =
+                    userUpdates.mLastDeliveredSafetyCenterData;
+            if (!userUpdates.mForceNextDelivery
+                    && Objects.equals(safetyCenterData, lastDeliveredSafetyCenterData)) {
+                userUpdates.mDeliveriesSkipped++;
+                return;
+            }
+            long lastDeliveredVersion = userUpdates.mLastDeliveredVersion;
+            userUpdates.mForceNextDelivery = false;
+            userUpdates.mLastDeliveredSafetyCenterData = safetyCenterData;
+            userUpdates.mLastDeliveredVersion++;
+            userUpdates.mDeliveriesPerformed++;
+            safetyCenterDataDelta =
+                    SafetyCenterDataDelta.between(
+                            lastDeliveredSafetyCenterData,
+                            lastDeliveredVersion,
+                            safetyCenterData,
+                            userUpdates.mLastDeliveredVersion);
+        }
+        SafetyCenterListeners.deliverUpdate(listeners, safetyCenterData, safetyCenterDataDelta);
+    }
+
+    @GuardedBy("mLock")
+    @NonNull
+    private UserUpdates getOrCreateUserUpdatesLocked(@UserIdInt int userId) {
+        UserUpdates userUpdates = mUserUpdates.get(userId);
+        if (userUpdates == null) {
+            userUpdates = new UserUpdates();
+            mUserUpdates.put(userId, userUpdates);
+        }
+        return userUpdates;
+    }
+
+    /** Dumps the coalescing statistics of this dispatcher. */
+    void dump(@NonNull PrintWriter fout) {
+        fout.println(
+                "UPDATE DISPATCHER (coalescing window: "
+                        + getUpdateCoalescingWindowMillis()
+                        + "ms)");
+        synchronized (mLock) {
+            for (int i = 0; i < mUserUpdates.size(); i++) {
+                int userId = mUserUpdates.keyAt(i);
+                UserUpdates userUpdates = mUserUpdates.valueAt(i);
+
+                long deliveries = userUpdates.mDeliveriesPerformed + userUpdates.mDeliveriesSkipped;
+                fout.println(
+                        "\tuser "
+                                + userId
+                                + ": "
+                                + userUpdates.mUpdatesRequested
+                                + " updates requested, "
+                                + userUpdates.mDeliveriesPerformed
+                                + " delivered, "
+                                + userUpdates.mDeliveriesSkipped
+                                + " skipped as unchanged, coalescing ratio "
+                                + (deliveries > 0
+                                        ? String.format(
+                                                "%.2f",
+                                                (double) userUpdates.mUpdatesRequested
+                                                        / deliveries)
+                                        : "n/a"));
+            }
+        }
+        fout.println();
+    }
+
+    private static long getUpdateCoalescingWindowMillis() {
+        // This call requires the READ_DEVICE_CONFIG permission.
+        final long callingId = Binder.clearCallingIdentity();
+        try {
+            return DeviceConfig.getLong(
+                    DeviceConfig.NAMESPACE_PRIVACY,
+                    PROPERTY_UPDATE_COALESCING_WINDOW_MILLIS,
+                    DEFAULT_UPDATE_COALESCING_WINDOW_MILLIS);
+        } finally {
+            Binder.restoreCallingIdentity(callingId);
+        }
+    }
+
+    /** Provides the data and listeners to deliver updates for. */
+    interface Delegate {
+
+        /**
+         * Returns the latest {@link SafetyCenterData} for the given {@code userId}, merged for its
+         * {@link UserProfileGroup}.
+         */
+        @NonNull
+        SafetyCenterData getSafetyCenterData(@UserIdInt int userId);
+
+        /**
+         * Returns the {@link RemoteCallbackList} of {@link IOnSafetyCenterDataChangedListener} for
+         * the given {@code userId}.
+         */
+        @Nullable
+        RemoteCallbackList<IOnSafetyCenterDataChangedListener> getListeners(
+                @UserIdInt int userId);
+    }
+
+    /** The update delivery state and statistics of a user. */
+    private static final class UserUpdates {
+        private boolean mDeliveryScheduled;
+        private boolean mForceNextDelivery;
+        @Nullable private SafetyCenterData mLastDeliveredSafetyCenterData;
+        private long mLastDeliveredVersion;
+        private long mUpdatesRequested;
+        private long mDeliveriesPerformed;
+        private long mDeliveriesSkipped;
+    }
+}
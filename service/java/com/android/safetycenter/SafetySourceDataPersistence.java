@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.safetycenter;
+
+import static android.os.Build.VERSION_CODES.TIRAMISU;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.annotation.UserIdInt;
+import android.content.ApexEnvironment;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.UserHandle;
+import android.provider.DeviceConfig;
+import android.safetycenter.SafetySourceData;
+import android.safetycenter.SafetySourceStatus;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+
+import androidx.annotation.RequiresApi;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A class that persists the {@link SafetySourceStatus} of each safety source per user, so that
+ * Safety Center can show the last known status of each safety source right away after a reboot or
+ * a system server restart, until the safety sources provide fresh data.
+ *
+ * <p>Only the {@link SafetySourceStatus} title, summary, severity level and enabled state are
+ * persisted, as the {@link android.app.PendingIntent}s of the rest of the {@link SafetySourceData}
+ * don't survive a system server restart.
+ *
+ * <p>Writes are batched: a write scheduled for a user happens after a short delay on the given
+ * {@link Handler}, along with any other write scheduled for that user in the meantime.
+ *
+ * <p>This class is thread safe.
+ */
+@RequiresApi(TIRAMISU)
+final class SafetySourceDataPersistence {
+
+    private static final String TAG = "SafetySourceDataPersis";
+
+    private static final String APEX_MODULE_NAME = "com.android.permission";
+
+    private static final String FILE_NAME = "safety_source_data.bin";
+
+    /** The version of the file format, to be incremented whenever it changes. */
+    private static final int FORMAT_VERSION = 1;
+
+    /** Device Config property for whether the {@link SafetySourceData} is persisted. */
+    private static final String PROPERTY_PERSISTENCE_ENABLED =
+            "safety_center_persist_safety_source_data";
+
+    /**
+     * Device Config property for the maximum age in milliseconds of the persisted data, past which
+     * it isn't restored.
+     */
+    private static final String PROPERTY_MAX_AGE_MILLIS =
+            "safety_center_persisted_safety_source_data_max_age_millis";
+
+    private static final long DEFAULT_MAX_AGE_MILLIS = Duration.ofDays(1).toMillis();
+
+    /** The delay after which a scheduled write happens, batching the writes in between. */
+    private static final Duration WRITE_DELAY = Duration.ofSeconds(2);
+
+    @NonNull private final Handler mHandler;
+    @NonNull private final Delegate mDelegate;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final SparseBooleanArray mWriteScheduledForUser = new SparseBooleanArray();
+
+    /**
+     * Creates a {@link SafetySourceDataPersistence} writing on the given {@link Handler}, using the
+     * given {@link Delegate} to get the data to write.
+     */
+    SafetySourceDataPersistence(@NonNull Handler handler, @NonNull Delegate delegate) {
+        mHandler = handler;
+        mDelegate = delegate;
+    }
+
+    /** Returns whether the {@link SafetySourceData} is persisted. */
+    static boolean isEnabled() {
+        // This call requires the READ_DEVICE_CONFIG permission.
+        final long callingId = Binder.clearCallingIdentity();
+        try {
+            return DeviceConfig.getBoolean(
+                    DeviceConfig.NAMESPACE_PRIVACY,
+                    PROPERTY_PERSISTENCE_ENABLED,
+                    /* defaultValue = */ true);
+        } finally {
+            Binder.restoreCallingIdentity(callingId);
+        }
+    }
+
+    /**
+     * Reads the {@link Record}s persisted for the given {@code userId}.
+     *
+     * <p>Returns an empty list if there is no persisted data or if it cannot be read. Records older
+     * than the maximum age are left out.
+     */
+    @NonNull
+    List<Record> read(@UserIdInt int userId) {
+        File file = getFile(userId);
+        byte[] data;
+        try {
+            data = new AtomicFile(file).readFully();
+        } catch (FileNotFoundException e) {
+            return new ArrayList<>();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read persisted SafetySourceData: " + file, e);
+            return new ArrayList<>();
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != FORMAT_VERSION) {
+                return new ArrayList<>();
+            }
+            long minWrittenAtMillis = System.currentTimeMillis() - getMaxAgeMillis();
+            int recordCount = in.readInt();
+            List<Record> records = new ArrayList<>(recordCount);
+            for (int i = 0; i < recordCount; i++) {
+                String safetySourceId = in.readUTF();
+                String packageName = in.readUTF();
+                String title = in.readUTF();
+                String summary = in.readUTF();
+                int severityLevel = in.readInt();
+                boolean enabled = in.readBoolean();
+                long writtenAtMillis = in.readLong();
+                if (writtenAtMillis < minWrittenAtMillis) {
+                    continue;
+                }
+                SafetySourceData safetySourceData =
+                        new SafetySourceData.Builder()
+                                .setStatus(
+                                        new SafetySourceStatus.Builder(
+                                                        title, summary, severityLevel)
+                                                .setEnabled(enabled)
+                                                .build())
+                                .build();
+                records.add(
+                        new Record(safetySourceId, packageName, safetySourceData, writtenAtMillis));
+            }
+            return records;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Cannot parse persisted SafetySourceData: " + file, e);
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Schedules a write of the {@link SafetySourceData} of the given {@code userId}, batching it
+     * with any write already scheduled for that user.
+     */
+    void scheduleWrite(@UserIdInt int userId) {
+        synchronized (mLock) {
+            if (mWriteScheduledForUser.get(userId)) {
+                return;
+            }
+            mWriteScheduledForUser.put(userId, true);
+            mHandler.postDelayed(() -> write(userId), WRITE_DELAY.toMillis());
+        }
+    }
+
+    private void write(@UserIdInt int userId) {
+        synchronized (mLock) {
+            mWriteScheduledForUser.delete(userId);
+        }
+        if (!isEnabled()) {
+            return;
+        }
+
+        List<Record> records = mDelegate.getRecordsToPersist(userId);
+        File file = getFile(userId);
+        AtomicFile atomicFile = new AtomicFile(file);
+        if (records.isEmpty()) {
+            atomicFile.delete();
+            return;
+        }
+
+        FileOutputStream outputStream = null;
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(data);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(records.size());
+            for (int i = 0; i < records.size(); i++) {
+                Record record = records.get(i);
+                SafetySourceStatus safetySourceStatus = record.mSafetySourceData.getStatus();
+                out.writeUTF(record.mSafetySourceId);
+                out.writeUTF(record.mPackageName);
+                out.writeUTF(safetySourceStatus.getTitle().toString());
+                out.writeUTF(safetySourceStatus.getSummary().toString());
+                out.writeInt(safetySourceStatus.getSeverityLevel());
+                out.writeBoolean(safetySourceStatus.isEnabled());
+                out.writeLong(record.mWrittenAtMillis);
+            }
+            out.flush();
+
+            outputStream = atomicFile.startWrite();
+            outputStream.write(data.toByteArray());
+            atomicFile.finishWrite(outputStream);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot persist SafetySourceData: " + file, e);
+            atomicFile.failWrite(outputStream);
+        }
+    }
+
+    private static long getMaxAgeMillis() {
+        // This call requires the READ_DEVICE_CONFIG permission.
+        final long callingId = Binder.clearCallingIdentity();
+        try {
+            return DeviceConfig.getLong(
+                    DeviceConfig.NAMESPACE_PRIVACY,
+                    PROPERTY_MAX_AGE_MILLIS,
+                    DEFAULT_MAX_AGE_MILLIS);
+        } finally {
+            Binder.restoreCallingIdentity(callingId);
+        }
+    }
+
+    @NonNull
+    private static File getFile(@UserIdInt int userId) {
+        ApexEnvironment apexEnvironment = ApexEnvironment.getApexEnvironment(APEX_MODULE_NAME);
+        return new File(
+                apexEnvironment.getDeviceProtectedDataDirForUser(UserHandle.of(userId)),
+                FILE_NAME);
+    }
+
+    /** Provides the data to persist. */
+    interface Delegate {
+
+        /**
+         * Returns the {@link Record}s to persist for the given {@code userId}; their {@link
+         * SafetySourceData} must have a {@link SafetySourceStatus}.
+         */
+        @NonNull
+        List<Record> getRecordsToPersist(@UserIdInt int userId);
+    }
+
+    /** The persisted {@link SafetySourceData} of a safety source. */
+    static final class Record {
+        @NonNull private final String mSafetySourceId;
+        @NonNull private final String mPackageName;
+        @NonNull private final SafetySourceData mSafetySourceData;
+        private final long mWrittenAtMillis;
+
+        /**
+         * Creates a {@link Record} for the given {@link SafetySourceData}, provided by the safety
+         * source at the given wall clock time.
+         */
+        Record(
+                @NonNull String safetySourceId,
+                @NonNull String packageName,
+                @NonNull SafetySourceData safetySourceData,
+                long writtenAtMillis) {
+            mSafetySourceId = safetySourceId;
+            mPackageName = packageName;
+            mSafetySourceData = safetySourceData;
+            mWrittenAtMillis = writtenAtMillis;
+        }
+
+        /** Returns the id of the safety source. */
+        @NonNull
+        String getSafetySourceId() {
+            return mSafetySourceId;
+        }
+
+        /** Returns the package name of the safety source. */
+        @NonNull
+        String getPackageName() {
+            return mPackageName;
+        }
+
+        /** Returns the {@link SafetySourceData} of the safety source. */
+        @NonNull
+        SafetySourceData getSafetySourceData() {
+            return mSafetySourceData;
+        }
+
+        /** Returns the wall clock time at which the safety source provided this data. */
+        long getWrittenAtMillis() {
+            return mWrittenAtMillis;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.safetycenter;
+
+import static android.os.Build.VERSION_CODES.TIRAMISU;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Parcel;
+import android.safetycenter.SafetySourceData;
+import android.util.ArrayMap;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.PrintWriter;
+
+/**
+ * A store of the {@link SafetySourceData} of a single user, keyed by safety source id.
+ *
+ * <p>Lookups don't allocate, and the approximate number of bytes retained by the {@link
+ * SafetySourceData} of each safety source is tracked so that it can be reported.
+ *
+ * <p>This class isn't thread safe. Thread safety must be handled by the caller.
+ */
+@RequiresApi(TIRAMISU)
+final class SafetySourceDataStore {
+
+    /** Maps the id of each safety source with data to its {@link Entry}. */
+    @NonNull private final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+
+    private long mRetainedBytes;
+
+    /** Maps the id of each safety source that set data to its {@link UpdateCounts}. */
+    @NonNull private final ArrayMap<String, UpdateCounts> mUpdateCounts = new ArrayMap<>();
+
+    /**
+     * Returns the {@link SafetySourceData} of the safety source with the given {@code
+     * safetySourceId} and {@code packageName}.
+     *
+     * <p>Returns {@code null} if there is no data for this safety source.
+     */
+    @Nullable
+    SafetySourceData get(@NonNull String safetySourceId, @NonNull String packageName) {
+        Entry entry = mEntries.get(safetySourceId);
+        if (entry == null || !entry.mPackageName.equals(packageName)) {
+            return null;
+        }
+        return entry.mSafetySourceData;
+    }
+
+    /**
+     * Sets the {@link SafetySourceData} of the safety source with the given {@code safetySourceId}
+     * and {@code packageName}, and the approximate number of bytes it retains as returned by {@link
+     * #getRetainedBytes(SafetySourceData)}, recording the current wall clock time as the time it
+     * was set.
+     *
+     * <p>Removes the data of this safety source if {@code safetySourceData} is {@code null}.
+     */
+    void put(
+            @NonNull String safetySourceId,
+            @NonNull String packageName,
+            @Nullable SafetySourceData safetySourceData,
+            int retainedBytes) {
+        put(
+                safetySourceId,
+                packageName,
+                safetySourceData,
+                retainedBytes,
+                System.currentTimeMillis(),
+                /* restored = */ false);
+    }
+
+    /**
+     * Sets the {@link SafetySourceData} of the safety source with the given {@code safetySourceId}
+     * and {@code packageName} to persisted data it set at the given wall clock time, unless this
+     * safety source already has data.
+     *
+     * <p>Returns whether the data was set.
+     */
+    boolean putRestored(
+            @NonNull String safetySourceId,
+            @NonNull String packageName,
+            @NonNull SafetySourceData safetySourceData,
+            long setAtMillis) {
+        if (mEntries.containsKey(safetySourceId)) {
+            return false;
+        }
+        put(
+                safetySourceId,
+                packageName,
+                safetySourceData,
+                getRetainedBytes(safetySourceData),
+                setAtMillis,
+                /* restored = */ true);
+        return true;
+    }
+
+    private void put(
+            @NonNull String safetySourceId,
+            @NonNull String packageName,
+            @Nullable SafetySourceData safetySourceData,
+            int retainedBytes,
+            long setAtMillis,
+            boolean restored) {
+        Entry previousEntry =
+                safetySourceData != null
+                        ? mEntries.put(
+                                safetySourceId,
+                                new Entry(
+                                        packageName,
+                                        safetySourceData,
+                                        retainedBytes,
+                                        setAtMillis,
+                                        restored))
+                        : mEntries.remove(safetySourceId);
+        if (previousEntry != null) {
+            mRetainedBytes -= previousEntry.mRetainedBytes;
+        }
+        if (safetySourceData != null) {
+            mRetainedBytes += retainedBytes;
+        }
+    }
+
+    /**
+     * Records an update of the {@link SafetySourceData} of the safety source with the given {@code
+     * safetySourceId}, which is a {@code duplicate} if it was equal to the data already set.
+     */
+    void recordUpdate(@NonNull String safetySourceId, boolean duplicate) {
+        UpdateCounts updateCounts = mUpdateCounts.get(safetySourceId);
+        if (updateCounts == null) {
+            updateCounts = new UpdateCounts();
+            mUpdateCounts.put(safetySourceId, updateCounts);
+        }
+        updateCounts.mUpdates++;
+        if (duplicate) {
+            updateCounts.mDuplicateUpdates++;
+        }
+    }
+
+    /** Returns the number of safety sources with data in this store. */
+    int size() {
+        return mEntries.size();
+    }
+
+    /** Returns the id of the safety source at the given index. */
+    @NonNull
+    String getSafetySourceIdAt(int index) {
+        return mEntries.keyAt(index);
+    }
+
+    /** Returns the package name of the safety source at the given index. */
+    @NonNull
+    String getPackageNameAt(int index) {
+        return mEntries.valueAt(index).mPackageName;
+    }
+
+    /** Returns the {@link SafetySourceData} of the safety source at the given index. */
+    @NonNull
+    SafetySourceData getSafetySourceDataAt(int index) {
+        return mEntries.valueAt(index).mSafetySourceData;
+    }
+
+    /**
+     * Returns the wall clock time at which the safety source at the given index set its data,
+     * which is before the last restart if the data was restored.
+     */
+    long getSetAtMillisAt(int index) {
+        return mEntries.valueAt(index).mSetAtMillis;
+    }
+
+    /** Dumps the safety sources with data in this store, and the bytes they retain. */
+    void dump(@NonNull PrintWriter fout, @NonNull String prefix) {
+        fout.println(
+                prefix
+                        + mEntries.size()
+                        + " safety sources with data, ~"
+                        + mRetainedBytes
+                        + " bytes retained");
+        for (int i = 0; i < mEntries.size(); i++) {
+            Entry entry = mEntries.valueAt(i);
+            fout.println(
+                    prefix
+                            + "\t"
+                            + mEntries.keyAt(i)
+                            + " ("
+                            + entry.mPackageName
+                            + "): "
+                            + entry.mSafetySourceData.getIssues().size()
+                            + " issues, ~"
+                            + entry.mRetainedBytes
+                            + " bytes retained, set at "
+                            + entry.mSetAtMillis
+                            + (entry.mRestored ? " (restored)" : ""));
+        }
+        for (int i = 0; i < mUpdateCounts.size(); i++) {
+            UpdateCounts updateCounts = mUpdateCounts.valueAt(i);
+            fout.println(
+                    prefix
+                            + "\t"
+                            + mUpdateCounts.keyAt(i)
+                            + ": "
+                            + updateCounts.mUpdates
+                            + " updates, "
+                            + updateCounts.mDuplicateUpdates
+                            + " duplicates ("
+                            + (updateCounts.mDuplicateUpdates * 100 / updateCounts.mUpdates)
+                            + "%)");
+        }
+    }
+
+    /**
+     * Returns the approximate number of bytes retained by the given {@link SafetySourceData},
+     * measured as the size of its serialized form.
+     */
+    static int getRetainedBytes(@NonNull SafetySourceData safetySourceData) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            safetySourceData.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /** The number of updates of the {@link SafetySourceData} of a safety source. */
+    private static final class UpdateCounts {
+        private long mUpdates;
+        private long mDuplicateUpdates;
+    }
+
+    /** The {@link SafetySourceData} of a safety source. */
+    private static final class Entry {
+        @NonNull private final String mPackageName;
+        @NonNull private final SafetySourceData mSafetySourceData;
+        private final int mRetainedBytes;
+        private final long mSetAtMillis;
+        private final boolean mRestored;
+
+        private Entry(
+                @NonNull String packageName,
+                @NonNull SafetySourceData safetySourceData,
+                int retainedBytes,
+                long setAtMillis,
+                boolean restored) {
+            mPackageName = packageName;
+            mSafetySourceData = safetySourceData;
+            mRetainedBytes = retainedBytes;
+            mSetAtMillis = setAtMillis;
+            mRestored = restored;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.safetycenter;
+
+import static android.os.Build.VERSION_CODES.TIRAMISU;
+
+import static java.util.Objects.requireNonNull;
+
+import android.annotation.NonNull;
+import android.annotation.UserIdInt;
+import android.content.Context;
+import android.os.Binder;
+import android.os.UserHandle;
+import android.os.UserManager;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A group of users sharing a single Safety Center page: a profile parent user and its enabled
+ * profiles, such as managed or clone profiles.
+ *
+ * <p>This class is immutable and thread safe.
+ */
+@RequiresApi(TIRAMISU)
+final class UserProfileGroup {
+
+    @UserIdInt private final int mProfileParentUserId;
+
+    /** The ids of all the users of this group, starting with the profile parent. */
+    @NonNull private final int[] mAllUserIds;
+
+    /**
+     * Creates a {@link UserProfileGroup} for the given {@code profileParentUserId} and the given
+     * {@code profileUserIds}, which must not include the profile parent.
+     */
+    UserProfileGroup(@UserIdInt int profileParentUserId, @NonNull int[] profileUserIds) {
+        mProfileParentUserId = profileParentUserId;
+        mAllUserIds = new int[profileUserIds.length + 1];
+        mAllUserIds[0] = profileParentUserId;
+        System.arraycopy(profileUserIds, 0, mAllUserIds, 1, profileUserIds.length);
+    }
+
+    /** Returns the {@link UserProfileGroup} that the given {@code userId} belongs to. */
+    @NonNull
+    static UserProfileGroup from(@NonNull Context context, @UserIdInt int userId) {
+        // These calls require the MANAGE_USERS permission.
+        final long callingId = Binder.clearCallingIdentity();
+        try {
+            UserManager userManager = requireNonNull(context.getSystemService(UserManager.class));
+            UserHandle profileParent = userManager.getProfileParent(UserHandle.of(userId));
+            int profileParentUserId =
+                    profileParent != null ? profileParent.getIdentifier() : userId;
+
+            UserManager profileParentUserManager =
+                    requireNonNull(
+                            context.createContextAsUser(UserHandle.of(profileParentUserId), 0)
+                                    .getSystemService(UserManager.class));
+            List<UserHandle> enabledProfiles = profileParentUserManager.getEnabledProfiles();
+            int[] profileUserIds = new int[enabledProfiles.size()];
+            int profileCount = 0;
+            boolean containsUserId = userId == profileParentUserId;
+            for (int i = 0; i < enabledProfiles.size(); i++) {
+                int profileUserId = enabledProfiles.get(i).getIdentifier();
+                if (profileUserId == profileParentUserId) {
+                    continue;
+                }
+                containsUserId |= profileUserId == userId;
+                profileUserIds[profileCount++] = profileUserId;
+            }
+            if (!containsUserId) {
+                // The given user is a profile that isn't enabled; it still sees its own data.
+                profileUserIds = Arrays.copyOf(profileUserIds, profileCount + 1);
+                profileUserIds[profileCount++] = userId;
+            }
+            return new UserProfileGroup(
+                    profileParentUserId, Arrays.copyOf(profileUserIds, profileCount));
+        } finally {
+            Binder.restoreCallingIdentity(callingId);
+        }
+    }
+
+    /** Returns the id of the profile parent user of this group. */
+    @UserIdInt
+    int getProfileParentUserId() {
+        return mProfileParentUserId;
+    }
+
+    /** Returns the number of users in this group, including the profile parent. */
+    int size() {
+        return mAllUserIds.length;
+    }
+
+    /**
+     * Returns the id of the user at the given index in this group; the profile parent is at index
+     * {@code 0}.
+     */
+    @UserIdInt
+    int getUserIdAt(int index) {
+        return mAllUserIds[index];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof UserProfileGroup)) return false;
+        UserProfileGroup that = (UserProfileGroup) o;
+        return Arrays.equals(mAllUserIds, that.mAllUserIds);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mAllUserIds);
+    }
+
+    @Override
+    public String toString() {
+        return "UserProfileGroup{"
+                + "mProfileParentUserId="
+                + mProfileParentUserId
+                + ", mAllUserIds="
+                + Arrays.toString(mAllUserIds)
+                + '}';
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.safetycenter;
+
+import static android.os.Build.VERSION_CODES.TIRAMISU;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.annotation.UserIdInt;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.util.SparseArray;
+
+import androidx.annotation.RequiresApi;
+
+import com.android.internal.annotations.GuardedBy;
+
+/**
+ * A cache of the {@link UserProfileGroup} of each user, to avoid querying the {@code UserManager}
+ * on every API call and update.
+ *
+ * <p>The cache is dropped whenever a user or profile is added, removed, or has its availability
+ * changed, once {@link #registerReceiver(Handler)} has been called.
+ *
+ * <p>This class is thread safe.
+ */
+@RequiresApi(TIRAMISU)
+final class UserProfileGroupCache {
+
+    @NonNull private final Context mContext;
+
+    private final Object mLock = new Object();
+
+    /** Maps user id to the {@link UserProfileGroup} it belongs to. */
+    @GuardedBy("mLock")
+    private final SparseArray<UserProfileGroup> mUserProfileGroups = new SparseArray<>();
+
+    /**
+     * Incremented on every invalidation, so that a {@link UserProfileGroup} computed while racing
+     * with an invalidation isn't cached.
+     */
+    @GuardedBy("mLock")
+    private long mGeneration;
+
+    /** Creates a {@link UserProfileGroupCache} using the given {@link Context}. */
+    UserProfileGroupCache(@NonNull Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Registers the {@link BroadcastReceiver} dropping this cache when users or profiles change,
+     * running it on the given {@link Handler}.
+     */
+    void registerReceiver(@Nullable Handler handler) {
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(Intent.ACTION_USER_ADDED);
+        intentFilter.addAction(Intent.ACTION_USER_REMOVED);
+        intentFilter.addAction(Intent.ACTION_MANAGED_PROFILE_ADDED);
+        intentFilter.addAction(Intent.ACTION_MANAGED_PROFILE_REMOVED);
+        intentFilter.addAction(Intent.ACTION_MANAGED_PROFILE_AVAILABLE);
+        intentFilter.addAction(Intent.ACTION_MANAGED_PROFILE_UNAVAILABLE);
+        mContext.registerReceiverForAllUsers(
+                new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(@NonNull Context context, @NonNull Intent intent) {
+                        invalidate();
+                    }
+                },
+                intentFilter,
+                null,
+                handler);
+    }
+
+    /** Returns the {@link UserProfileGroup} that the given {@code userId} belongs to. */
+    @NonNull
+    UserProfileGroup get(@UserIdInt int userId) {
+        long generation;
+        synchronized (mLock) {
+            UserProfileGroup userProfileGroup = mUserProfileGroups.get(userId);
+            if (userProfileGroup != null) {
+                return userProfileGroup;
+            }
+            generation = mGeneration;
+        }
+
+        UserProfileGroup userProfileGroup = UserProfileGroup.from(mContext, userId);
+
+        synchronized (mLock) {
+            if (mGeneration == generation) {
+                mUserProfileGroups.put(userId, userProfileGroup);
+            }
+        }
+        return userProfileGroup;
+    }
+
+    /** Drops the cached {@link UserProfileGroup} of every user. */
+    void invalidate() {
+        synchronized (mLock) {
+            mGeneration++;
+            mUserProfileGroups.clear();
+        }
+    }
+}
@@ -36,6 +36,8 @@ import org.mockito.MockitoAnnotations.initMocks
 import org.mockito.MockitoSession
 import org.mockito.quality.Strictness
 import java.io.File
+import java.nio.ByteBuffer
+import java.util.zip.CRC32
 
 @RunWith(AndroidJUnit4::class)
 class RuntimePermissionsPersistenceTest {
@@ -95,6 +97,166 @@ class RuntimePermissionsPersistenceTest {
         assertThat(persistedState.sharedUserPermissions).isEqualTo(state.sharedUserPermissions)
     }
 
+    @Test
+    fun testReadLazily() {
+        persistence.writeForUser(state, user)
+        val persistedState = RuntimePermissionsPersistence.createInstance().readLazilyForUser(user)
+
+        assertThat(persistedState).isEqualTo(state)
+        assertThat(persistedState!!.packagePermissions.keys).containsExactly("package")
+        assertThat(persistedState.packagePermissions["package"]).containsExactly(permissionState)
+        assertThat(persistedState.packagePermissions["missing"]).isNull()
+        assertThat(persistedState.sharedUserPermissions).isEqualTo(state.sharedUserPermissions)
+    }
+
+    @Test
+    fun testMigrateFromXml() {
+        val xmlPersistence = RuntimePermissionsPersistenceImpl()
+        xmlPersistence.writeForUser(state, user)
+        val persistedState = persistence.readForUser(user)
+
+        assertThat(persistedState).isEqualTo(state)
+        assertThat(xmlPersistence.readForUser(user)).isEqualTo(state)
+        assertThat(persistence.readForUser(user)).isEqualTo(state)
+    }
+
+    @Test
+    fun testReadWriteXml_manyPermissionsAndHighFlags() {
+        val permissionStates = (0 until 40).map {
+            RuntimePermissionsState.PermissionState(
+                "permission$it", it % 2 == 0, Int.MIN_VALUE or it
+            )
+        }
+        val state = RuntimePermissionsState(
+            1, "fingerprint",
+            mapOf("package" to permissionStates, "other" to listOf(permissionState)), emptyMap()
+        )
+        val xmlPersistence = RuntimePermissionsPersistenceImpl()
+        xmlPersistence.writeForUser(state, user)
+        val persistedState = xmlPersistence.readForUser(user)
+
+        assertThat(persistedState).isEqualTo(state)
+        val persistedPermissions = persistedState!!.packagePermissions.getValue("package")
+        assertThat(persistedPermissions[0]).isSameInstanceAs(persistedPermissions[0])
+    }
+
+    @Test
+    fun testMigrateFromXml_afterRollback() {
+        persistence.writeForUser(state, user)
+        val changedPermissionState = RuntimePermissionsState.PermissionState("permission", false, 1)
+        val changedState = RuntimePermissionsState(
+            2, "fingerprint", mapOf("package" to listOf(changedPermissionState)),
+            mapOf("sharedUser" to listOf(permissionState))
+        )
+        // A rolled back module only writes the XML file.
+        val xmlPersistence = RuntimePermissionsPersistenceImpl()
+        xmlPersistence.writeForUser(changedState, user)
+        getXmlFile().setLastModified(getBinaryFile().lastModified() + 1000)
+
+        assertThat(RuntimePermissionsPersistence.createInstance().readForUser(user))
+            .isEqualTo(changedState)
+    }
+
+    @Test
+    fun testMigrateFromXml_clockMovedBackward_keepsBinaryState() {
+        val xmlPersistence = RuntimePermissionsPersistenceImpl()
+        xmlPersistence.writeForUser(state, user)
+        persistence.readForUser(user)
+        val changedPermissionState = RuntimePermissionsState.PermissionState("permission", false, 1)
+        val changedState = RuntimePermissionsState(
+            2, "fingerprint", mapOf("package" to listOf(changedPermissionState)),
+            mapOf("sharedUser" to listOf(permissionState))
+        )
+        RuntimePermissionsPersistence.createInstance().writeForUser(changedState, user)
+        // The binary file was written after the XML file, but the clock moved backward.
+        getBinaryFile().setLastModified(getXmlFile().lastModified() - 1000)
+
+        assertThat(RuntimePermissionsPersistence.createInstance().readForUser(user))
+            .isEqualTo(changedState)
+        assertThat(xmlPersistence.readForUser(user)).isEqualTo(state)
+    }
+
+    @Test
+    fun testReadWrite_nullFingerprintAndNoVersion() {
+        val state = RuntimePermissionsState(
+            RuntimePermissionsState.NO_VERSION, null, mapOf("package" to listOf(permissionState)),
+            emptyMap()
+        )
+        persistence.writeForUser(state, user)
+        val persistedState = persistence.readForUser(user)
+
+        assertThat(persistedState).isEqualTo(state)
+    }
+
+    @Test
+    fun testReadWrite_journal() {
+        persistence.writeForUser(state, user)
+        val changedPermissionState = RuntimePermissionsState.PermissionState("permission", false, 1)
+        val changedState = RuntimePermissionsState(
+            2, "fingerprint", mapOf("package" to listOf(changedPermissionState)),
+            mapOf("sharedUser" to listOf(permissionState))
+        )
+        persistence.writeForUser(changedState, user)
+
+        assertThat(getJournalFile().exists()).isTrue()
+        assertThat(RuntimePermissionsPersistence.createInstance().readForUser(user))
+            .isEqualTo(changedState)
+    }
+
+    @Test
+    fun testReadWrite_journalWithTornRecord() {
+        persistence.writeForUser(state, user)
+        val changedPermissionState = RuntimePermissionsState.PermissionState("permission", false, 1)
+        val changedState = RuntimePermissionsState(
+            1, "fingerprint", mapOf("package" to listOf(changedPermissionState)),
+            mapOf("sharedUser" to listOf(permissionState))
+        )
+        persistence.writeForUser(changedState, user)
+        getJournalFile().appendBytes(byteArrayOf(0, 0, 1))
+        val persistedState = RuntimePermissionsPersistence.createInstance().readForUser(user)
+
+        assertThat(persistedState).isEqualTo(changedState)
+        assertThat(getJournalFile().exists()).isFalse()
+    }
+
+    @Test
+    fun testReadWrite_journalRecordFailingToDecode_isSkippedAsAWhole() {
+        persistence.writeForUser(state, user)
+        val changedPermissionState = RuntimePermissionsState.PermissionState("permission", false, 1)
+        val changedState = RuntimePermissionsState(
+            2, "fingerprint", mapOf("package" to listOf(changedPermissionState)),
+            mapOf("sharedUser" to listOf(permissionState))
+        )
+        persistence.writeForUser(changedState, user)
+        getJournalFile().writeBytes(appendUnknownOperation(getJournalFile().readBytes()))
+
+        assertThat(RuntimePermissionsPersistence.createInstance().readForUser(user))
+            .isEqualTo(state)
+    }
+
+    @Test
+    fun testReadWrite_staleJournalNextToNewerSnapshot() {
+        val revokedPermissionState = RuntimePermissionsState.PermissionState("permission", false, 0)
+        val revokedState = RuntimePermissionsState(
+            1, "fingerprint", mapOf("package" to listOf(revokedPermissionState)), emptyMap()
+        )
+        persistence.writeForUser(revokedState, user)
+        val grantedState = RuntimePermissionsState(
+            1, "fingerprint", mapOf("package" to listOf(permissionState)), emptyMap()
+        )
+        persistence.writeForUser(grantedState, user)
+        val staleJournal = getJournalFile().readBytes()
+        // A new instance has no journal state, so it writes a new snapshot.
+        RuntimePermissionsPersistence.createInstance().writeForUser(revokedState, user)
+        assertThat(getJournalFile().exists()).isFalse()
+        // Simulate a crash between writing the snapshot and deleting the journal.
+        getJournalFile().writeBytes(staleJournal)
+
+        assertThat(RuntimePermissionsPersistence.createInstance().readForUser(user))
+            .isEqualTo(revokedState)
+        assertThat(getJournalFile().exists()).isFalse()
+    }
+
     @Test
     fun testDelete() {
         persistence.writeForUser(state, user)
@@ -104,7 +266,45 @@ class RuntimePermissionsPersistenceTest {
         assertThat(persistedState).isNull()
     }
 
+    /**
+     * Appends an unknown operation to the single record of a journal, keeping its checksum valid.
+     */
+    private fun appendUnknownOperation(journal: ByteArray): ByteArray {
+        val header = ByteBuffer.wrap(journal)
+        val payloadSize = header.int
+        assertThat(journal.size).isEqualTo(RECORD_HEADER_SIZE + payloadSize)
+        val payload = journal.copyOfRange(RECORD_HEADER_SIZE, journal.size) +
+            UNKNOWN_OPERATION.toByte()
+        // The payload starts with the generation, followed by the operation count.
+        var operationCountIndex = 0
+        while (payload[operationCountIndex].toInt() and 0x80 != 0) {
+            operationCountIndex++
+        }
+        operationCountIndex++
+        payload[operationCountIndex]++
+        val crc32 = CRC32().apply { update(payload) }
+        return ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.size)
+            .putInt(payload.size)
+            .putInt(crc32.value.toInt())
+            .put(payload)
+            .array()
+    }
+
+    private fun getJournalFile(): File =
+        File(apexEnvironment.getDeviceProtectedDataDirForUser(user), JOURNAL_FILE_NAME)
+
+    private fun getBinaryFile(): File =
+        File(apexEnvironment.getDeviceProtectedDataDirForUser(user), BINARY_FILE_NAME)
+
+    private fun getXmlFile(): File =
+        File(apexEnvironment.getDeviceProtectedDataDirForUser(user), XML_FILE_NAME)
+
     companion object {
         private const val APEX_MODULE_NAME = "com.android.permission"
+        private const val BINARY_FILE_NAME = "runtime-permissions.bin"
+        private const val XML_FILE_NAME = "runtime-permissions.xml"
+        private const val JOURNAL_FILE_NAME = "runtime-permissions.journal"
+        private const val RECORD_HEADER_SIZE = 8
+        private const val UNKNOWN_OPERATION = 127
     }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.role
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.random.Random
+
+@RunWith(AndroidJUnit4::class)
+class RoleHoldersSnapshotTest {
+    @Test
+    fun testCreate() {
+        val snapshot = RoleHoldersSnapshot.create(
+            mapOf("role1" to setOf("holder1", "holder2"), "role2" to setOf("holder1"),
+                "role3" to emptySet())
+        )
+
+        assertThat(snapshot.getHeldRoles("holder1")).containsExactly("role1", "role2")
+        assertThat(snapshot.getHeldRoles("holder2")).containsExactly("role1")
+        assertThat(snapshot.getHeldRoles("holder3")).isNull()
+        assertThat(snapshot.isRoleAvailable("role3")).isTrue()
+    }
+
+    @Test
+    fun testWithRoleHolder_unchanged() {
+        val snapshot = RoleHoldersSnapshot.create(mapOf("role" to setOf("holder")))
+
+        assertThat(snapshot.withRoleHolder("role", "holder", true)).isSameInstanceAs(snapshot)
+        assertThat(snapshot.withRoleHolder("role", "other", false)).isSameInstanceAs(snapshot)
+        assertThat(snapshot.withRoleNames(listOf("role"))).isSameInstanceAs(snapshot)
+    }
+
+    @Test
+    fun testWithRoleNames_removesHeldRoles() {
+        val snapshot = RoleHoldersSnapshot.create(
+            mapOf("role1" to setOf("holder"), "role2" to setOf("holder"))
+        ).withRoleNames(listOf("role2", "role3"))
+
+        assertThat(snapshot.getHeldRoles("holder")).containsExactly("role2")
+        assertThat(snapshot.isRoleAvailable("role1")).isFalse()
+        assertThat(snapshot.getRoleHolders("role3")).isEmpty()
+    }
+
+    @Test
+    fun testRandomMutations_heldRolesConsistent() {
+        val random = Random(RANDOM_SEED)
+        var snapshot = RoleHoldersSnapshot.EMPTY
+        repeat(MUTATION_COUNT) {
+            val previousSnapshot = snapshot
+            val previousRoles = previousSnapshot.roles.toDeepMap()
+            snapshot = when (random.nextInt(4)) {
+                0 -> snapshot.withRoleNames(ROLE_NAMES.filter { random.nextInt(4) != 0 })
+                1 -> snapshot.withRoleName(ROLE_NAMES.random(random))
+                else -> {
+                    val availableRoleNames = snapshot.roles.keys.toList()
+                    if (availableRoleNames.isEmpty()) {
+                        snapshot
+                    } else {
+                        snapshot.withRoleHolder(availableRoleNames.random(random),
+                            PACKAGE_NAMES.random(random), random.nextBoolean())
+                    }
+                }
+            }
+
+            assertHeldRolesConsistent(snapshot)
+            assertHeldRolesConsistent(RoleHoldersSnapshot.create(snapshot.roles.toDeepMap()))
+            // Previously published snapshots must never be modified.
+            assertThat(previousSnapshot.roles.toDeepMap()).isEqualTo(previousRoles)
+        }
+    }
+
+    @Test
+    fun testWithRoleHolder_doesNotModifyPreviousSnapshot() {
+        val snapshot = RoleHoldersSnapshot.create(mapOf("role" to setOf("holder1")))
+
+        snapshot.withRoleHolder("role", "holder2", true).withRoleHolder("role", "holder1", false)
+
+        assertThat(snapshot.getRoleHolders("role")).containsExactly("holder1")
+        assertThat(snapshot.getHeldRoles("holder1")).containsExactly("role")
+        assertThat(snapshot.getHeldRoles("holder2")).isNull()
+    }
+
+    private fun assertHeldRolesConsistent(snapshot: RoleHoldersSnapshot) {
+        val roles = snapshot.roles
+        for (packageName in PACKAGE_NAMES) {
+            val expectedRoleNames = roles.filterValues { packageName in it }.keys
+            val heldRoles = snapshot.getHeldRoles(packageName)
+            if (expectedRoleNames.isEmpty()) {
+                assertThat(heldRoles).isNull()
+            } else {
+                assertThat(heldRoles).containsExactlyElementsIn(expectedRoleNames)
+            }
+            for (roleName in ROLE_NAMES) {
+                assertThat(snapshot.isRoleHeld(roleName, packageName))
+                    .isEqualTo(roleName in expectedRoleNames)
+            }
+        }
+    }
+
+    private fun Map<String, Set<String>>.toDeepMap(): Map<String, Set<String>> =
+        mapValues { it.value.toSet() }
+
+    companion object {
+        private const val RANDOM_SEED = 42
+        private const val MUTATION_COUNT = 1000
+
+        private val ROLE_NAMES = (1..8).map { "role$it" }
+        private val PACKAGE_NAMES = (1..6).map { "package$it" }
+    }
+}
@@ -86,6 +86,15 @@ class RolesPersistenceTest {
         assertThat(persistedState.roles).isEqualTo(state.roles)
     }
 
+    @Test
+    fun testWrite_returnsBytesWritten() {
+        val bytesWritten = persistence.writeForUser(state, user)
+
+        val file = File(apexEnvironment.getDeviceProtectedDataDirForUser(user), ROLES_FILE_NAME)
+        assertThat(bytesWritten).isEqualTo(file.length())
+        assertThat(bytesWritten).isGreaterThan(0L)
+    }
+
     @Test
     fun testDelete() {
         persistence.writeForUser(state, user)
@@ -97,5 +106,6 @@ class RolesPersistenceTest {
 
     companion object {
         private const val APEX_MODULE_NAME = "com.android.permission"
+        private const val ROLES_FILE_NAME = "roles.xml"
     }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.safetycenter
+
+import android.content.Context
+import android.os.Build.VERSION_CODES.TIRAMISU
+import android.safetycenter.config.SafetyCenterConfig
+import android.safetycenter.config.SafetySource
+import android.safetycenter.config.SafetySourcesGroup
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SdkSuppress
+import androidx.test.platform.app.InstrumentationRegistry
+import com.google.common.truth.Truth.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+
+@RunWith(AndroidJUnit4::class)
+@SdkSuppress(minSdkVersion = TIRAMISU, codeName = "Tiramisu")
+class SafetyCenterConfigCacheTest {
+    private val context = InstrumentationRegistry.getInstrumentation().context
+
+    private lateinit var cacheFile: File
+
+    private val safetyCenterConfig = SafetyCenterConfig.Builder()
+        .addSafetySourcesGroup(
+            SafetySourcesGroup.Builder()
+                .setId("group")
+                .addSafetySource(
+                    SafetySource.Builder(SafetySource.SAFETY_SOURCE_TYPE_ISSUE_ONLY)
+                        .setId("source")
+                        .setPackageName("package")
+                        .setProfile(SafetySource.PROFILE_PRIMARY)
+                        .build()
+                )
+                .build()
+        )
+        .build()
+
+    @Before
+    fun createCacheFile() {
+        val cacheDirectory = context.getDir("safety_center_config_cache", Context.MODE_PRIVATE)
+        cacheDirectory.listFiles()!!.forEach { assertThat(it.deleteRecursively()).isTrue() }
+        cacheFile = File(cacheDirectory, "safety_center_config.cache")
+    }
+
+    @Test
+    fun testRead_noCache_returnsNull() {
+        assertThat(SafetyCenterConfigCache(cacheFile).read(KEY)).isNull()
+    }
+
+    @Test
+    fun testWriteRead_sameKey_returnsConfig() {
+        SafetyCenterConfigCache(cacheFile).write(KEY, safetyCenterConfig)
+
+        assertThat(SafetyCenterConfigCache(cacheFile).read(KEY)).isEqualTo(safetyCenterConfig)
+    }
+
+    @Test
+    fun testWriteRead_otherKey_returnsNull() {
+        SafetyCenterConfigCache(cacheFile).write(KEY, safetyCenterConfig)
+
+        assertThat(SafetyCenterConfigCache(cacheFile).read("other$KEY")).isNull()
+    }
+
+    @Test
+    fun testRead_corruptedCache_returnsNull() {
+        SafetyCenterConfigCache(cacheFile).write(KEY, safetyCenterConfig)
+        cacheFile.writeBytes(cacheFile.readBytes().copyOf(cacheFile.length().toInt() / 2))
+
+        assertThat(SafetyCenterConfigCache(cacheFile).read(KEY)).isNull()
+    }
+
+    companion object {
+        private const val KEY = "package:1:cafe"
+    }
+}
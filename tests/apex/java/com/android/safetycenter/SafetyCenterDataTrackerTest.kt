@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.safetycenter
+
+import android.Manifest.permission.READ_DEVICE_CONFIG
+import android.app.PendingIntent
+import android.content.Intent
+import android.os.Build.VERSION_CODES.TIRAMISU
+import android.safetycenter.SafetySourceData
+import android.safetycenter.SafetySourceIssue
+import android.safetycenter.SafetySourceStatus
+import android.safetycenter.config.SafetyCenterConfig
+import android.safetycenter.config.SafetySource
+import android.safetycenter.config.SafetySourcesGroup
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SdkSuppress
+import androidx.test.platform.app.InstrumentationRegistry
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Assert.assertThrows
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.`when`
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+@RunWith(AndroidJUnit4::class)
+@SdkSuppress(minSdkVersion = TIRAMISU, codeName = "Tiramisu")
+class SafetyCenterDataTrackerTest {
+    private val instrumentation = InstrumentationRegistry.getInstrumentation()
+    private val context = instrumentation.context
+
+    private val safetyCenterConfigReader = mock(SafetyCenterConfigReader::class.java)
+
+    private lateinit var safetyCenterDataTracker: SafetyCenterDataTracker
+
+    @Before
+    fun adoptShellPermissionIdentity() {
+        // The data tracker reads its limits from DeviceConfig.
+        instrumentation.uiAutomation.adoptShellPermissionIdentity(READ_DEVICE_CONFIG)
+    }
+
+    @After
+    fun dropShellPermissionIdentity() {
+        instrumentation.uiAutomation.dropShellPermissionIdentity()
+    }
+
+    @Before
+    fun createSafetyCenterDataTracker() {
+        val safetyCenterConfigIndex = SafetyCenterConfigIndex.of(createSafetyCenterConfig())
+        `when`(safetyCenterConfigReader.safetyCenterConfigIndex).thenReturn(
+            safetyCenterConfigIndex
+        )
+        `when`(safetyCenterConfigReader.safetyCenterConfig).thenReturn(
+            safetyCenterConfigIndex.safetyCenterConfig
+        )
+        `when`(safetyCenterConfigReader.readStringResource(anyInt())).thenReturn("string")
+        safetyCenterDataTracker = SafetyCenterDataTracker(context, safetyCenterConfigReader)
+    }
+
+    @Test
+    fun testSetSafetySourceData_unchanged_returnsFalse() {
+        val safetySourceData = createSafetySourceData(0)
+
+        assertThat(
+            safetyCenterDataTracker.setSafetySourceData(
+                SOURCE_IDS[0], safetySourceData, PACKAGE_NAME, USER_IDS[0]
+            )
+        ).isTrue()
+        assertThat(
+            safetyCenterDataTracker.setSafetySourceData(
+                SOURCE_IDS[0], createSafetySourceData(0), PACKAGE_NAME, USER_IDS[0]
+            )
+        ).isFalse()
+        assertThat(
+            safetyCenterDataTracker.getSafetySourceData(SOURCE_IDS[0], PACKAGE_NAME, USER_IDS[1])
+        ).isNull()
+    }
+
+    @Test
+    fun testSetSafetySourceData_tooManyIssues_throwsAndKeepsPreviousData() {
+        safetyCenterDataTracker.setSafetySourceData(
+            SOURCE_IDS[0], createSafetySourceData(0), PACKAGE_NAME, USER_IDS[0]
+        )
+        val safetySourceDataBuilder = SafetySourceData.Builder()
+        for (i in 0..DEFAULT_MAX_ISSUES_PER_SAFETY_SOURCE) {
+            safetySourceDataBuilder.addIssue(createSafetySourceIssue("issue$i"))
+        }
+
+        assertThrows(IllegalArgumentException::class.java) {
+            safetyCenterDataTracker.setSafetySourceData(
+                SOURCE_IDS[0], safetySourceDataBuilder.build(), PACKAGE_NAME, USER_IDS[0]
+            )
+        }
+        assertThat(
+            safetyCenterDataTracker.getSafetySourceData(SOURCE_IDS[0], PACKAGE_NAME, USER_IDS[0])
+        ).isEqualTo(createSafetySourceData(0))
+    }
+
+    @Test
+    fun testClear_clearsAllUsers() {
+        for (userId in USER_IDS) {
+            safetyCenterDataTracker.setSafetySourceData(
+                SOURCE_IDS[0], createSafetySourceData(0), PACKAGE_NAME, userId
+            )
+        }
+
+        safetyCenterDataTracker.clear()
+
+        for (userId in USER_IDS) {
+            assertThat(
+                safetyCenterDataTracker.getSafetySourceData(SOURCE_IDS[0], PACKAGE_NAME, userId)
+            ).isNull()
+        }
+    }
+
+    @Test
+    fun testRestoreSafetySourceData_doesNotOverrideFreshData() {
+        safetyCenterDataTracker.setSafetySourceData(
+            SOURCE_IDS[0], createSafetySourceData(1), PACKAGE_NAME, USER_IDS[0]
+        )
+
+        safetyCenterDataTracker.restoreSafetySourceData(
+            listOf(
+                SafetySourceDataPersistence.Record(
+                    SOURCE_IDS[0], PACKAGE_NAME, createSafetySourceData(0), WRITTEN_AT_MILLIS
+                ),
+                SafetySourceDataPersistence.Record(
+                    SOURCE_IDS[1], PACKAGE_NAME, createSafetySourceData(0), WRITTEN_AT_MILLIS
+                ),
+                SafetySourceDataPersistence.Record(
+                    "unknown", PACKAGE_NAME, createSafetySourceData(0), WRITTEN_AT_MILLIS
+                )
+            ),
+            USER_IDS[0]
+        )
+
+        assertThat(
+            safetyCenterDataTracker.getSafetySourceData(SOURCE_IDS[0], PACKAGE_NAME, USER_IDS[0])
+        ).isEqualTo(createSafetySourceData(1))
+        assertThat(
+            safetyCenterDataTracker.getSafetySourceData(SOURCE_IDS[1], PACKAGE_NAME, USER_IDS[0])
+        ).isEqualTo(createSafetySourceData(0))
+        assertThat(
+            safetyCenterDataTracker.getSafetySourceData("unknown", PACKAGE_NAME, USER_IDS[0])
+        ).isNull()
+    }
+
+    @Test
+    fun testGetSafetySourceDataToPersist_keepsSetTimestamps() {
+        val beforeSetMillis = System.currentTimeMillis()
+        safetyCenterDataTracker.setSafetySourceData(
+            SOURCE_IDS[0], createSafetySourceData(1), PACKAGE_NAME, USER_IDS[0]
+        )
+        val afterSetMillis = System.currentTimeMillis()
+        safetyCenterDataTracker.restoreSafetySourceData(
+            listOf(
+                SafetySourceDataPersistence.Record(
+                    SOURCE_IDS[1], PACKAGE_NAME, createSafetySourceData(0), WRITTEN_AT_MILLIS
+                )
+            ),
+            USER_IDS[0]
+        )
+
+        val records = safetyCenterDataTracker.getSafetySourceDataToPersist(USER_IDS[0])
+            .associateBy { it.safetySourceId }
+
+        assertThat(records.keys).containsExactly(SOURCE_IDS[0], SOURCE_IDS[1])
+        assertThat(records.getValue(SOURCE_IDS[0]).writtenAtMillis).isAtLeast(beforeSetMillis)
+        assertThat(records.getValue(SOURCE_IDS[0]).writtenAtMillis).isAtMost(afterSetMillis)
+        assertThat(records.getValue(SOURCE_IDS[1]).writtenAtMillis).isEqualTo(WRITTEN_AT_MILLIS)
+        assertThat(safetyCenterDataTracker.getSafetySourceDataToPersist(USER_IDS[1])).isEmpty()
+        // Persisting again later doesn't refresh the timestamp of data that didn't change.
+        Thread.sleep(1)
+        assertThat(
+            safetyCenterDataTracker.getSafetySourceDataToPersist(USER_IDS[0])
+                .single { it.safetySourceId == SOURCE_IDS[0] }
+                .writtenAtMillis
+        ).isEqualTo(records.getValue(SOURCE_IDS[0]).writtenAtMillis)
+    }
+
+    @Test
+    fun testGetSafetyCenterData_profileGroup_mergesProfilesSourcesOnly() {
+        val profileGroup = UserProfileGroup(USER_IDS[0], intArrayOf(USER_IDS[1]))
+        safetyCenterDataTracker.setSafetySourceData(
+            ALL_PROFILES_SOURCE_ID, createSafetySourceDataWithIssue("parent"), PACKAGE_NAME,
+            USER_IDS[0]
+        )
+        safetyCenterDataTracker.setSafetySourceData(
+            ALL_PROFILES_SOURCE_ID, createSafetySourceDataWithIssue("profile"), PACKAGE_NAME,
+            USER_IDS[1]
+        )
+        safetyCenterDataTracker.setSafetySourceData(
+            SOURCE_IDS[0], createSafetySourceDataWithIssue("primaryOnly"), PACKAGE_NAME,
+            USER_IDS[1]
+        )
+
+        val issueIds = safetyCenterDataTracker.getSafetyCenterData(profileGroup).issues.map {
+            it.id
+        }
+
+        assertThat(issueIds).containsExactly("parent", "profile_${USER_IDS[1]}").inOrder()
+    }
+
+    @Test
+    fun testGetSafetyCenterData_profileGroup_sameIssueIdInBothProfiles_hasUniqueIds() {
+        val profileGroup = UserProfileGroup(USER_IDS[0], intArrayOf(USER_IDS[1]))
+        safetyCenterDataTracker.setSafetySourceData(
+            ALL_PROFILES_SOURCE_ID, createSafetySourceDataWithIssue("issue"), PACKAGE_NAME,
+            USER_IDS[0]
+        )
+        safetyCenterDataTracker.setSafetySourceData(
+            ALL_PROFILES_SOURCE_ID, createSafetySourceDataWithIssue("issue"), PACKAGE_NAME,
+            USER_IDS[1]
+        )
+
+        val issues = safetyCenterDataTracker.getSafetyCenterData(profileGroup).issues
+
+        assertThat(issues.map { it.id }).containsExactly("issue", "issue_${USER_IDS[1]}")
+            .inOrder()
+        assertThat(issues.map { it.actions.single().id })
+            .containsExactly("issue", "issue_${USER_IDS[1]}")
+            .inOrder()
+    }
+
+    @Test
+    fun testGetSafetyCenterData_profileGroup_recomputesChangedProfile() {
+        val profileGroup = UserProfileGroup(USER_IDS[0], intArrayOf(USER_IDS[1]))
+        safetyCenterDataTracker.setSafetySourceData(
+            ALL_PROFILES_SOURCE_ID, createSafetySourceDataWithIssue("parent"), PACKAGE_NAME,
+            USER_IDS[0]
+        )
+        safetyCenterDataTracker.getSafetyCenterData(profileGroup)
+
+        safetyCenterDataTracker.setSafetySourceData(
+            ALL_PROFILES_SOURCE_ID, createSafetySourceDataWithIssue("profile"), PACKAGE_NAME,
+            USER_IDS[1]
+        )
+
+        assertThat(safetyCenterDataTracker.getSafetyCenterData(profileGroup).issues.map { it.id })
+            .containsExactly("parent", "profile_${USER_IDS[1]}")
+            .inOrder()
+        assertThat(
+            safetyCenterDataTracker.getSafetyCenterData(
+                UserProfileGroup(USER_IDS[0], intArrayOf())
+            ).issues.map { it.id }
+        ).containsExactly("parent")
+    }
+
+    @Test
+    fun testInvalidateSafetyCenterDataForPackage_onlyRecomputesGroupsOfPackage() {
+        `when`(safetyCenterConfigReader.safetyCenterConfigIndex).thenReturn(
+            SafetyCenterConfigIndex.of(createTwoPackagesSafetyCenterConfig())
+        )
+        val profileGroup = UserProfileGroup(USER_IDS[0], intArrayOf())
+        safetyCenterDataTracker.setSafetySourceData(
+            SOURCE_IDS[0], createSafetySourceDataWithIssue("issue"), PACKAGE_NAME, USER_IDS[0]
+        )
+        safetyCenterDataTracker.setSafetySourceData(
+            OTHER_SOURCE_ID, createSafetySourceDataWithIssue("otherIssue"), OTHER_PACKAGE_NAME,
+            USER_IDS[0]
+        )
+        val issues = safetyCenterDataTracker.getSafetyCenterData(profileGroup).issues
+
+        assertThat(
+            safetyCenterDataTracker.invalidateSafetyCenterDataForPackage(
+                OTHER_PACKAGE_NAME, USER_IDS[0]
+            )
+        ).isTrue()
+        val recomputedIssues = safetyCenterDataTracker.getSafetyCenterData(profileGroup).issues
+
+        assertThat(recomputedIssues.map { it.id }).containsExactly("issue", "otherIssue").inOrder()
+        assertThat(recomputedIssues[0]).isSameInstanceAs(issues[0])
+        assertThat(recomputedIssues[1]).isNotSameInstanceAs(issues[1])
+    }
+
+    @Test
+    fun testInvalidateSafetyCenterDataForPackage_unknownPackageOrUser_returnsFalse() {
+        val profileGroup = UserProfileGroup(USER_IDS[0], intArrayOf())
+        safetyCenterDataTracker.setSafetySourceData(
+            SOURCE_IDS[0], createSafetySourceDataWithIssue("issue"), PACKAGE_NAME, USER_IDS[0]
+        )
+        val issues = safetyCenterDataTracker.getSafetyCenterData(profileGroup).issues
+
+        assertThat(
+            safetyCenterDataTracker.invalidateSafetyCenterDataForPackage(
+                OTHER_PACKAGE_NAME, USER_IDS[0]
+            )
+        ).isFalse()
+        assertThat(
+            safetyCenterDataTracker.invalidateSafetyCenterDataForPackage(PACKAGE_NAME, USER_IDS[1])
+        ).isFalse()
+        assertThat(safetyCenterDataTracker.getSafetyCenterData(profileGroup).issues.single())
+            .isSameInstanceAs(issues.single())
+    }
+
+    @Test
+    fun testConcurrentCalls_acrossUsers_lastWriteWins() {
+        val executor = Executors.newFixedThreadPool(USER_IDS.size * SOURCE_IDS.size * 2)
+        val startLatch = CountDownLatch(1)
+        val failures = mutableListOf<Throwable>()
+        try {
+            for (userId in USER_IDS) {
+                for (sourceId in SOURCE_IDS) {
+                    executor.execute {
+                        runCatchingInto(failures) {
+                            startLatch.await()
+                            for (i in 0 until ITERATION_COUNT) {
+                                safetyCenterDataTracker.setSafetySourceData(
+                                    sourceId, createSafetySourceData(i), PACKAGE_NAME, userId
+                                )
+                            }
+                        }
+                    }
+                    executor.execute {
+                        runCatchingInto(failures) {
+                            startLatch.await()
+                            for (i in 0 until ITERATION_COUNT) {
+                                safetyCenterDataTracker.getSafetyCenterData(
+                                    UserProfileGroup(userId, intArrayOf())
+                                )
+                                safetyCenterDataTracker.getSafetySourceData(
+                                    sourceId, PACKAGE_NAME, userId
+                                )
+                            }
+                        }
+                    }
+                }
+            }
+            startLatch.countDown()
+        } finally {
+            executor.shutdown()
+            assertThat(executor.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue()
+        }
+
+        synchronized(failures) { assertThat(failures).isEmpty() }
+        for (userId in USER_IDS) {
+            for (sourceId in SOURCE_IDS) {
+                assertThat(
+                    safetyCenterDataTracker.getSafetySourceData(sourceId, PACKAGE_NAME, userId)
+                ).isEqualTo(createSafetySourceData(ITERATION_COUNT - 1))
+            }
+            assertThat(
+                safetyCenterDataTracker.getSafetyCenterData(UserProfileGroup(userId, intArrayOf()))
+            ).isNotNull()
+        }
+    }
+
+    private fun runCatchingInto(failures: MutableList<Throwable>, block: () -> Unit) {
+        try {
+            block()
+        } catch (e: Throwable) {
+            synchronized(failures) { failures += e }
+        }
+    }
+
+    private fun createSafetyCenterConfig(): SafetyCenterConfig {
+        val safetySourcesGroupBuilder = SafetySourcesGroup.Builder().setId("group")
+        for (sourceId in SOURCE_IDS) {
+            safetySourcesGroupBuilder.addSafetySource(
+                SafetySource.Builder(SafetySource.SAFETY_SOURCE_TYPE_ISSUE_ONLY)
+                    .setId(sourceId)
+                    .setPackageName(PACKAGE_NAME)
+                    .setProfile(SafetySource.PROFILE_PRIMARY)
+                    .build()
+            )
+        }
+        safetySourcesGroupBuilder.addSafetySource(
+            SafetySource.Builder(SafetySource.SAFETY_SOURCE_TYPE_ISSUE_ONLY)
+                .setId(ALL_PROFILES_SOURCE_ID)
+                .setPackageName(PACKAGE_NAME)
+                .setProfile(SafetySource.PROFILE_ALL)
+                .build()
+        )
+        return SafetyCenterConfig.Builder()
+            .addSafetySourcesGroup(safetySourcesGroupBuilder.build())
+            .build()
+    }
+
+    private fun createTwoPackagesSafetyCenterConfig(): SafetyCenterConfig =
+        SafetyCenterConfig.Builder()
+            .addSafetySourcesGroup(createSafetySourcesGroup("group", SOURCE_IDS[0], PACKAGE_NAME))
+            .addSafetySourcesGroup(
+                createSafetySourcesGroup("otherGroup", OTHER_SOURCE_ID, OTHER_PACKAGE_NAME)
+            )
+            .build()
+
+    private fun createSafetySourcesGroup(
+        groupId: String,
+        sourceId: String,
+        packageName: String
+    ): SafetySourcesGroup =
+        SafetySourcesGroup.Builder()
+            .setId(groupId)
+            .addSafetySource(
+                SafetySource.Builder(SafetySource.SAFETY_SOURCE_TYPE_ISSUE_ONLY)
+                    .setId(sourceId)
+                    .setPackageName(packageName)
+                    .setProfile(SafetySource.PROFILE_PRIMARY)
+                    .build()
+            )
+            .build()
+
+    private fun createSafetySourceData(iteration: Int): SafetySourceData =
+        SafetySourceData.Builder()
+            .setStatus(
+                SafetySourceStatus.Builder(
+                    "title", "summary $iteration", SafetySourceData.SEVERITY_LEVEL_INFORMATION
+                ).build()
+            )
+            .build()
+
+    private fun createSafetySourceDataWithIssue(issueId: String): SafetySourceData =
+        SafetySourceData.Builder().addIssue(createSafetySourceIssue(issueId)).build()
+
+    private fun createSafetySourceIssue(issueId: String): SafetySourceIssue =
+        SafetySourceIssue.Builder(
+            issueId, "title", "summary", SafetySourceData.SEVERITY_LEVEL_INFORMATION, "issueType"
+        )
+            .addAction(
+                SafetySourceIssue.Action.Builder(
+                    "action", "label",
+                    PendingIntent.getActivity(context, 0, Intent(), PendingIntent.FLAG_IMMUTABLE)
+                ).build()
+            )
+            .build()
+
+    companion object {
+        private const val PACKAGE_NAME = "package"
+        private const val ALL_PROFILES_SOURCE_ID = "allProfilesSource"
+        private const val OTHER_PACKAGE_NAME = "otherPackage"
+        private const val OTHER_SOURCE_ID = "otherSource"
+        private const val ITERATION_COUNT = 500
+        private const val TIMEOUT_SECONDS = 60L
+        private const val WRITTEN_AT_MILLIS = 1_000L
+        private const val DEFAULT_MAX_ISSUES_PER_SAFETY_SOURCE = 20
+
+        private val SOURCE_IDS = (1..4).map { "source$it" }
+        private val USER_IDS = listOf(0, 10, 11)
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.safetycenter
+
+import android.Manifest.permission.READ_DEVICE_CONFIG
+import android.content.Context
+import android.os.Build.VERSION_CODES.TIRAMISU
+import android.os.Handler
+import android.safetycenter.SafetyCenterManager.EXTRA_REFRESH_REQUEST_TYPE_GET_DATA
+import android.safetycenter.SafetyCenterManager.REFRESH_REASON_PAGE_OPEN
+import android.safetycenter.config.SafetyCenterConfig
+import android.safetycenter.config.SafetySource
+import android.safetycenter.config.SafetySourcesGroup
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SdkSuppress
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyList
+import org.mockito.ArgumentMatchers.eq
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.never
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+import org.mockito.Mockito.`when`
+
+@RunWith(AndroidJUnit4::class)
+@SdkSuppress(minSdkVersion = TIRAMISU, codeName = "Tiramisu")
+class SafetyCenterRefreshManagerTest {
+    private val instrumentation = InstrumentationRegistry.getInstrumentation()
+    private val context = mock(Context::class.java)
+    private val handler = mock(Handler::class.java)
+
+    private val safetyCenterConfigReader = mock(SafetyCenterConfigReader::class.java)
+    private val safetyCenterRefreshTracker = mock(SafetyCenterRefreshTracker::class.java)
+
+    private val safetyCenterRefreshManager =
+        SafetyCenterRefreshManager(
+            context, safetyCenterConfigReader, safetyCenterRefreshTracker, handler
+        )
+
+    @Before
+    fun adoptShellPermissionIdentity() {
+        // The refresh manager reads the page open refresh interval from DeviceConfig.
+        instrumentation.uiAutomation.adoptShellPermissionIdentity(READ_DEVICE_CONFIG)
+    }
+
+    @After
+    fun dropShellPermissionIdentity() {
+        instrumentation.uiAutomation.dropShellPermissionIdentity()
+    }
+
+    @Before
+    fun mockDependencies() {
+        setSafetyCenterConfig(SOURCE_ID)
+        `when`(safetyCenterRefreshTracker.startRefresh(anyInt(), anyList()))
+            .thenReturn("broadcastId")
+    }
+
+    @Test
+    fun testRefreshSafetySources_pageOpenWithinInterval_doesNotStartRefreshOrBroadcast() {
+        safetyCenterRefreshManager.refreshSafetySources(REFRESH_REASON_PAGE_OPEN)
+        safetyCenterRefreshManager.addAdditionalSafetySourcePackageNames(PACKAGE_NAME)
+        safetyCenterRefreshManager.refreshSafetySources(REFRESH_REASON_PAGE_OPEN)
+
+        verify(safetyCenterRefreshTracker, times(1)).startRefresh(anyInt(), anyList())
+        verify(handler, times(1)).post(any())
+    }
+
+    @Test
+    fun testRefreshSafetySources_pageOpenAfterSourceRemovedFromConfig_refreshesSourceAgain() {
+        safetyCenterRefreshManager.refreshSafetySources(REFRESH_REASON_PAGE_OPEN)
+        setSafetyCenterConfig(OTHER_SOURCE_ID)
+        safetyCenterRefreshManager.refreshSafetySources(REFRESH_REASON_PAGE_OPEN)
+        setSafetyCenterConfig(SOURCE_ID)
+        safetyCenterRefreshManager.refreshSafetySources(REFRESH_REASON_PAGE_OPEN)
+
+        verify(safetyCenterRefreshTracker, times(2))
+            .startRefresh(EXTRA_REFRESH_REQUEST_TYPE_GET_DATA, listOf(SOURCE_ID))
+    }
+
+    @Test
+    fun testRefreshSafetySources_pageOpenAfterTestOverridesCleared_refreshesSourceAgain() {
+        safetyCenterRefreshManager.refreshSafetySources(REFRESH_REASON_PAGE_OPEN)
+        safetyCenterRefreshManager.clearAdditionalSafetySourcePackageNames()
+        safetyCenterRefreshManager.refreshSafetySources(REFRESH_REASON_PAGE_OPEN)
+
+        verify(safetyCenterRefreshTracker, times(2))
+            .startRefresh(eq(EXTRA_REFRESH_REQUEST_TYPE_GET_DATA), anyList())
+    }
+
+    @Test
+    fun testRefreshSafetySources_noConfig_doesNotStartRefresh() {
+        `when`(safetyCenterConfigReader.safetyCenterConfigIndex).thenReturn(null)
+
+        safetyCenterRefreshManager.refreshSafetySources(REFRESH_REASON_PAGE_OPEN)
+
+        verify(safetyCenterRefreshTracker, never()).startRefresh(anyInt(), anyList())
+    }
+
+    private fun setSafetyCenterConfig(sourceId: String) {
+        val safetyCenterConfig =
+            SafetyCenterConfig.Builder()
+                .addSafetySourcesGroup(
+                    SafetySourcesGroup.Builder()
+                        .setId("group")
+                        .addSafetySource(
+                            SafetySource.Builder(SafetySource.SAFETY_SOURCE_TYPE_ISSUE_ONLY)
+                                .setId(sourceId)
+                                .setPackageName(PACKAGE_NAME)
+                                .setProfile(SafetySource.PROFILE_PRIMARY)
+                                .build()
+                        )
+                        .build()
+                )
+                .build()
+        `when`(safetyCenterConfigReader.safetyCenterConfigIndex).thenReturn(
+            SafetyCenterConfigIndex.of(safetyCenterConfig)
+        )
+    }
+
+    companion object {
+        private const val PACKAGE_NAME = "package"
+        private const val SOURCE_ID = "source"
+        private const val OTHER_SOURCE_ID = "otherSource"
+    }
+}
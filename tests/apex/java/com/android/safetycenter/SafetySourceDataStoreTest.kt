@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.safetycenter
+
+import android.os.Build.VERSION_CODES.TIRAMISU
+import android.safetycenter.SafetySourceData
+import android.safetycenter.SafetySourceStatus
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SdkSuppress
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.PrintWriter
+import java.io.StringWriter
+
+@RunWith(AndroidJUnit4::class)
+@SdkSuppress(minSdkVersion = TIRAMISU, codeName = "Tiramisu")
+class SafetySourceDataStoreTest {
+    private val store = SafetySourceDataStore()
+
+    private val safetySourceData = SafetySourceData.Builder()
+        .setStatus(
+            SafetySourceStatus.Builder(
+                "title", "summary", SafetySourceData.SEVERITY_LEVEL_INFORMATION
+            ).build()
+        )
+        .build()
+
+    @Test
+    fun testGetRetainedBytes_positive() {
+        assertThat(SafetySourceDataStore.getRetainedBytes(safetySourceData)).isGreaterThan(0)
+    }
+
+    @Test
+    fun testPutGet_samePackage_returnsData() {
+        store.put(SOURCE_ID, PACKAGE_NAME, safetySourceData, RETAINED_BYTES)
+
+        assertThat(store.get(SOURCE_ID, PACKAGE_NAME)).isEqualTo(safetySourceData)
+    }
+
+    @Test
+    fun testPutGet_otherPackage_returnsNull() {
+        store.put(SOURCE_ID, PACKAGE_NAME, safetySourceData, RETAINED_BYTES)
+
+        assertThat(store.get(SOURCE_ID, "other$PACKAGE_NAME")).isNull()
+    }
+
+    @Test
+    fun testPutNull_removesData() {
+        store.put(SOURCE_ID, PACKAGE_NAME, safetySourceData, RETAINED_BYTES)
+        store.put(SOURCE_ID, PACKAGE_NAME, null, 0)
+
+        assertThat(store.get(SOURCE_ID, PACKAGE_NAME)).isNull()
+        assertThat(dump()).contains("0 safety sources with data, ~0 bytes retained")
+    }
+
+    @Test
+    fun testPut_recordsSetTime() {
+        val beforeMillis = System.currentTimeMillis()
+        store.put(SOURCE_ID, PACKAGE_NAME, safetySourceData, RETAINED_BYTES)
+        val afterMillis = System.currentTimeMillis()
+
+        assertThat(store.getSetAtMillisAt(0)).isAtLeast(beforeMillis)
+        assertThat(store.getSetAtMillisAt(0)).isAtMost(afterMillis)
+    }
+
+    @Test
+    fun testPutRestored_keepsPersistedSetTime() {
+        store.putRestored(SOURCE_ID, PACKAGE_NAME, safetySourceData, SET_AT_MILLIS)
+
+        assertThat(store.getSetAtMillisAt(0)).isEqualTo(SET_AT_MILLIS)
+        assertThat(dump()).contains("set at $SET_AT_MILLIS (restored)")
+    }
+
+    @Test
+    fun testDump_accountsRetainedBytes() {
+        store.put(SOURCE_ID, PACKAGE_NAME, safetySourceData, RETAINED_BYTES)
+        store.put("other$SOURCE_ID", PACKAGE_NAME, safetySourceData, RETAINED_BYTES)
+        store.put(SOURCE_ID, PACKAGE_NAME, safetySourceData, RETAINED_BYTES * 2)
+
+        assertThat(dump())
+            .contains("2 safety sources with data, ~${RETAINED_BYTES * 3} bytes retained")
+    }
+
+    @Test
+    fun testDump_reportsDuplicateUpdates() {
+        store.recordUpdate(SOURCE_ID, /* duplicate= */ false)
+        store.recordUpdate(SOURCE_ID, /* duplicate= */ true)
+        store.recordUpdate(SOURCE_ID, /* duplicate= */ true)
+        store.recordUpdate(SOURCE_ID, /* duplicate= */ true)
+
+        assertThat(dump()).contains("$SOURCE_ID: 4 updates, 3 duplicates (75%)")
+    }
+
+    private fun dump(): String {
+        val stringWriter = StringWriter()
+        PrintWriter(stringWriter).use { store.dump(it, "") }
+        return stringWriter.toString()
+    }
+
+    companion object {
+        private const val SOURCE_ID = "source"
+        private const val PACKAGE_NAME = "package"
+        private const val RETAINED_BYTES = 100
+        private const val SET_AT_MILLIS = 1_000L
+    }
+}
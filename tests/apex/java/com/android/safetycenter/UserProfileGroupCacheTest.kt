@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.safetycenter
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.os.Build.VERSION_CODES.TIRAMISU
+import android.os.UserHandle
+import android.os.UserManager
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SdkSuppress
+import com.google.common.truth.Truth.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentCaptor
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.isNull
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+import org.mockito.Mockito.`when`
+
+@RunWith(AndroidJUnit4::class)
+@SdkSuppress(minSdkVersion = TIRAMISU, codeName = "Tiramisu")
+class UserProfileGroupCacheTest {
+    private val context = mock(Context::class.java)
+    private val userManager = mock(UserManager::class.java)
+
+    private val userProfileGroupCache = UserProfileGroupCache(context)
+
+    @Before
+    fun mockUserManager() {
+        `when`(context.getSystemService(UserManager::class.java)).thenReturn(userManager)
+        `when`(context.createContextAsUser(any(UserHandle::class.java), anyInt()))
+            .thenReturn(context)
+        `when`(userManager.enabledProfiles)
+            .thenReturn(listOf(UserHandle.of(PARENT_USER_ID), UserHandle.of(PROFILE_USER_ID)))
+    }
+
+    @Test
+    fun testGet_returnsProfileGroup() {
+        assertThat(userProfileGroupCache.get(PARENT_USER_ID))
+            .isEqualTo(UserProfileGroup(PARENT_USER_ID, intArrayOf(PROFILE_USER_ID)))
+    }
+
+    @Test
+    fun testGet_twice_queriesUserManagerOnce() {
+        userProfileGroupCache.get(PARENT_USER_ID)
+        userProfileGroupCache.get(PARENT_USER_ID)
+
+        verify(userManager, times(1)).enabledProfiles
+    }
+
+    @Test
+    fun testGet_afterProfileBroadcast_queriesUserManagerAgain() {
+        userProfileGroupCache.registerReceiver(null)
+        val receiverCaptor = ArgumentCaptor.forClass(BroadcastReceiver::class.java)
+        verify(context).registerReceiverForAllUsers(
+            receiverCaptor.capture(), any(), isNull(), isNull()
+        )
+        userProfileGroupCache.get(PARENT_USER_ID)
+        `when`(userManager.enabledProfiles).thenReturn(listOf(UserHandle.of(PARENT_USER_ID)))
+
+        receiverCaptor.value.onReceive(context, Intent(Intent.ACTION_MANAGED_PROFILE_REMOVED))
+
+        assertThat(userProfileGroupCache.get(PARENT_USER_ID))
+            .isEqualTo(UserProfileGroup(PARENT_USER_ID, intArrayOf()))
+        verify(userManager, times(2)).enabledProfiles
+    }
+
+    companion object {
+        private const val PARENT_USER_ID = 0
+        private const val PROFILE_USER_ID = 10
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.role
+
+import android.content.Context
+import android.os.Build.VERSION_CODES.TIRAMISU
+import android.os.Bundle
+import android.os.Process
+import android.os.RemoteCallback
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SdkSuppress
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito.mock
+import java.util.concurrent.Executor
+
+@RunWith(AndroidJUnit4::class)
+@SdkSuppress(minSdkVersion = TIRAMISU, codeName = "Tiramisu")
+class RoleHoldersCacheTest {
+    private val service = FakeRoleManagerService()
+    private val roleManager = RoleManager(mock(Context::class.java), service)
+    private val user = Process.myUserHandle()
+    private val userId = user.identifier
+
+    @Before
+    fun enableCache() {
+        roleManager.enableRoleHoldersCache()
+    }
+
+    @After
+    fun disableCache() {
+        roleManager.disableRoleHoldersCache()
+    }
+
+    @Test
+    fun testGetRoleHoldersAsUser_cachesResult() {
+        service.setRoleHolders(ROLE_NAME, userId, listOf(PACKAGE_NAME))
+
+        assertThat(getRoleHolders()).containsExactly(PACKAGE_NAME)
+        assertThat(getRoleHolders()).containsExactly(PACKAGE_NAME)
+        assertThat(service.queryCount).isEqualTo(1)
+        assertThat(service.getListenerCount(userId)).isEqualTo(1)
+    }
+
+    @Test
+    fun testGetRoleHoldersAsUser_afterRoleHoldersChanged_queriesAgain() {
+        service.setRoleHolders(ROLE_NAME, userId, listOf(PACKAGE_NAME))
+        getRoleHolders()
+        service.setRoleHolders(ROLE_NAME, userId, listOf(OTHER_PACKAGE_NAME))
+
+        assertThat(getRoleHolders()).containsExactly(OTHER_PACKAGE_NAME)
+        assertThat(service.queryCount).isEqualTo(2)
+    }
+
+    @Test
+    fun testGetRoleHoldersAsUser_afterOtherRoleHoldersChanged_usesCache() {
+        service.setRoleHolders(ROLE_NAME, userId, listOf(PACKAGE_NAME))
+        getRoleHolders()
+        service.setRoleHolders(OTHER_ROLE_NAME, userId, listOf(OTHER_PACKAGE_NAME))
+
+        assertThat(getRoleHolders()).containsExactly(PACKAGE_NAME)
+        assertThat(service.queryCount).isEqualTo(1)
+    }
+
+    @Test
+    fun testGetRoleHoldersAsUser_cannotObserveUser_doesNotCache() {
+        service.canObserve = false
+        service.setRoleHolders(ROLE_NAME, userId, listOf(PACKAGE_NAME))
+
+        getRoleHolders()
+        getRoleHolders()
+        assertThat(service.queryCount).isEqualTo(2)
+    }
+
+    @Test
+    fun testDisableRoleHoldersCache_unregistersListeners() {
+        getRoleHolders()
+        roleManager.disableRoleHoldersCache()
+
+        assertThat(service.getListenerCount(userId)).isEqualTo(0)
+        getRoleHolders()
+        assertThat(service.queryCount).isEqualTo(2)
+    }
+
+    @Test
+    fun testAddRoleHolderAsUser_readAfterWrite_returnsNewHolder() {
+        service.setRoleHolders(ROLE_NAME, userId, listOf(PACKAGE_NAME))
+        assertThat(getRoleHolders()).containsExactly(PACKAGE_NAME)
+
+        var successful = false
+        roleManager.addRoleHolderAsUser(
+            ROLE_NAME, OTHER_PACKAGE_NAME, 0, user, DIRECT_EXECUTOR
+        ) { successful = it }
+
+        assertThat(successful).isTrue()
+        assertThat(getRoleHolders()).containsExactly(PACKAGE_NAME, OTHER_PACKAGE_NAME)
+    }
+
+    private fun getRoleHolders(): List<String> = roleManager.getRoleHoldersAsUser(ROLE_NAME, user)
+
+    /**
+     * A fake role service that keeps role holders in memory.
+     *
+     * Holder changes made through [addRoleHolderAsUser] don't notify listeners, like a change
+     * whose notification hasn't been delivered yet.
+     */
+    private class FakeRoleManagerService : IRoleManager.Stub() {
+        private val roleHolders = mutableMapOf<Pair<String, Int>, List<String>>()
+        private val listeners = mutableMapOf<Int, MutableList<IOnRoleHoldersChangedListener>>()
+
+        var canObserve = true
+        var queryCount = 0
+            private set
+
+        fun setRoleHolders(roleName: String, userId: Int, packageNames: List<String>) {
+            roleHolders[roleName to userId] = packageNames
+            listeners[userId]?.toList()?.forEach { it.onRoleHoldersChanged(roleName, userId) }
+        }
+
+        fun getListenerCount(userId: Int): Int = listeners[userId]?.size ?: 0
+
+        override fun getRoleHoldersAsUser(roleName: String, userId: Int): List<String> {
+            queryCount++
+            return roleHolders[roleName to userId] ?: emptyList()
+        }
+
+        override fun addRoleHolderAsUser(
+            roleName: String,
+            packageName: String,
+            flags: Int,
+            userId: Int,
+            callback: RemoteCallback
+        ) {
+            roleHolders[roleName to userId] =
+                (roleHolders[roleName to userId] ?: emptyList()) + packageName
+            callback.sendResult(Bundle())
+        }
+
+        override fun addOnRoleHoldersChangedListenerAsUser(
+            listener: IOnRoleHoldersChangedListener,
+            userId: Int
+        ) {
+            if (!canObserve) {
+                throw SecurityException("Cannot observe user $userId")
+            }
+            listeners.getOrPut(userId) { mutableListOf() } += listener
+        }
+
+        override fun removeOnRoleHoldersChangedListenerAsUser(
+            listener: IOnRoleHoldersChangedListener,
+            userId: Int
+        ) {
+            listeners[userId]?.remove(listener)
+        }
+
+        override fun isRoleAvailable(roleName: String): Boolean = true
+
+        override fun isRoleHeld(roleName: String, packageName: String): Boolean =
+            throw UnsupportedOperationException()
+
+        override fun removeRoleHolderAsUser(
+            roleName: String,
+            packageName: String,
+            flags: Int,
+            userId: Int,
+            callback: RemoteCallback
+        ): Unit = throw UnsupportedOperationException()
+
+        override fun clearRoleHoldersAsUser(
+            roleName: String,
+            flags: Int,
+            userId: Int,
+            callback: RemoteCallback
+        ): Unit = throw UnsupportedOperationException()
+
+        override fun isBypassingRoleQualification(): Boolean = false
+
+        override fun setBypassingRoleQualification(bypassRoleQualification: Boolean): Unit =
+            throw UnsupportedOperationException()
+
+        override fun setRoleNamesFromController(roleNames: List<String>): Unit =
+            throw UnsupportedOperationException()
+
+        override fun addRoleHolderFromController(roleName: String, packageName: String): Boolean =
+            throw UnsupportedOperationException()
+
+        override fun removeRoleHolderFromController(
+            roleName: String,
+            packageName: String
+        ): Boolean = throw UnsupportedOperationException()
+
+        override fun getHeldRolesFromController(packageName: String): List<String> =
+            throw UnsupportedOperationException()
+
+        override fun getBrowserRoleHolder(userId: Int): String? =
+            throw UnsupportedOperationException()
+
+        override fun setBrowserRoleHolder(packageName: String?, userId: Int): Boolean =
+            throw UnsupportedOperationException()
+
+        override fun getSmsRoleHolder(userId: Int): String? =
+            throw UnsupportedOperationException()
+    }
+
+    companion object {
+        private const val ROLE_NAME = "android.app.role.DIALER"
+        private const val OTHER_ROLE_NAME = "android.app.role.SMS"
+        private const val PACKAGE_NAME = "com.example.dialer"
+        private const val OTHER_PACKAGE_NAME = "com.example.otherdialer"
+        private val DIRECT_EXECUTOR = Executor { it.run() }
+    }
+}
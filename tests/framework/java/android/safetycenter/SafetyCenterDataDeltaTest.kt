@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.safetycenter
+
+import android.os.Build.VERSION_CODES.TIRAMISU
+import android.os.Parcel
+import android.safetycenter.SafetyCenterDataDelta.NO_VERSION
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SdkSuppress
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+@SdkSuppress(minSdkVersion = TIRAMISU, codeName = "Tiramisu")
+class SafetyCenterDataDeltaTest {
+
+    @Test
+    fun testSnapshot_appliesToAnyBase() {
+        val data = createData(issues = listOf(issue("a"), issue("b")))
+        val snapshot = SafetyCenterDataDelta.snapshot(data, 3)
+
+        assertThat(snapshot.baseVersion).isEqualTo(NO_VERSION)
+        assertThat(snapshot.version).isEqualTo(3)
+        assertThat(snapshot.applyTo(null, NO_VERSION)).isEqualTo(data)
+        assertThat(snapshot.applyTo(createData(), 7)).isEqualTo(data)
+    }
+
+    @Test
+    fun testBetween_noBase_returnsSnapshot() {
+        val data = createData(issues = listOf(issue("a")))
+        val delta = SafetyCenterDataDelta.between(null, NO_VERSION, data, 1)
+
+        assertThat(delta).isEqualTo(SafetyCenterDataDelta.snapshot(data, 1))
+    }
+
+    @Test
+    fun testBetween_addedIssue_appliesToBase() {
+        val base = createData(issues = listOf(issue("a")))
+        val data = createData(issues = listOf(issue("a"), issue("b")))
+
+        assertDeltaAppliesToBase(base, data)
+    }
+
+    @Test
+    fun testBetween_removedIssue_appliesToBase() {
+        val base = createData(issues = listOf(issue("a"), issue("b")))
+        val data = createData(issues = listOf(issue("b")))
+
+        assertDeltaAppliesToBase(base, data)
+    }
+
+    @Test
+    fun testBetween_changedIssue_appliesToBase() {
+        val base = createData(issues = listOf(issue("a"), issue("b")))
+        val data = createData(issues = listOf(issue("a"), issue("b", title = "changed")))
+
+        assertDeltaAppliesToBase(base, data)
+    }
+
+    @Test
+    fun testBetween_reorderedIssues_appliesToBase() {
+        val base = createData(issues = listOf(issue("a"), issue("b"), issue("c")))
+        val data = createData(issues = listOf(issue("c"), issue("a"), issue("b")))
+
+        assertDeltaAppliesToBase(base, data)
+    }
+
+    @Test
+    fun testBetween_unchanged_appliesToBase() {
+        val base = createData(issues = listOf(issue("a")))
+
+        assertDeltaAppliesToBase(base, createData(issues = listOf(issue("a"))))
+    }
+
+    @Test
+    fun testBetween_unchangedStatus_keepsBaseStatus() {
+        val base = createData(issues = listOf(issue("a")))
+        val data = createData(issues = listOf(issue("b")))
+        val delta = SafetyCenterDataDelta.between(base, 1, data, 2)
+        val otherStatusBase = createData(statusTitle = "other", issues = listOf(issue("a")))
+
+        val result = delta.applyTo(otherStatusBase, 1)!!
+
+        assertThat(result.status).isEqualTo(otherStatusBase.status)
+        assertThat(result.issues).isEqualTo(data.issues)
+    }
+
+    @Test
+    fun testBetween_unchangedEntries_keepsBaseEntries() {
+        val base = createData(issues = listOf(issue("a")))
+        val data = createData(issues = listOf(issue("b")))
+        val delta = SafetyCenterDataDelta.between(base, 1, data, 2)
+        val otherEntriesBase =
+            createData(entryTitle = "other", staticEntryTitle = "other", issues = base.issues)
+
+        val result = delta.applyTo(otherEntriesBase, 1)!!
+
+        assertThat(result.entriesOrGroups).isEqualTo(otherEntriesBase.entriesOrGroups)
+        assertThat(result.staticEntryGroups).isEqualTo(otherEntriesBase.staticEntryGroups)
+    }
+
+    @Test
+    fun testBetween_changedStatusAndEntries_appliesToBase() {
+        val base = createData(issues = listOf(issue("a")))
+        val data =
+            createData(
+                statusTitle = "changed", entryTitle = "changed", staticEntryTitle = "changed",
+                issues = listOf(issue("a"))
+            )
+
+        assertDeltaAppliesToBase(base, data)
+    }
+
+    @Test
+    fun testApplyTo_versionMismatch_returnsNull() {
+        val base = createData(issues = listOf(issue("a")))
+        val data = createData(issues = listOf(issue("b")))
+        val delta = SafetyCenterDataDelta.between(base, 1, data, 2)
+
+        assertThat(delta.applyTo(base, 2)).isNull()
+        assertThat(delta.applyTo(base, NO_VERSION)).isNull()
+        assertThat(delta.applyTo(null, 1)).isNull()
+    }
+
+    @Test
+    fun testBetween_duplicateIssueIds_returnsSnapshot() {
+        val base = createData(issues = listOf(issue("a")))
+        val data = createData(issues = listOf(issue("a"), issue("a", title = "duplicate")))
+        val delta = SafetyCenterDataDelta.between(base, 1, data, 2)
+
+        assertThat(delta.baseVersion).isEqualTo(NO_VERSION)
+        assertThat(delta.applyTo(null, NO_VERSION)).isEqualTo(data)
+    }
+
+    @Test
+    fun testBetween_duplicateBaseIssueIds_returnsSnapshot() {
+        val base = createData(issues = listOf(issue("a"), issue("a", title = "duplicate")))
+        val data = createData(issues = listOf(issue("a")))
+        val delta = SafetyCenterDataDelta.between(base, 1, data, 2)
+
+        assertThat(delta.baseVersion).isEqualTo(NO_VERSION)
+        assertThat(delta.applyTo(base, 1)).isEqualTo(data)
+    }
+
+    @Test
+    fun testApplyTo_baseWithDuplicateIssueIds_returnsNull() {
+        val base = createData(issues = listOf(issue("a")))
+        val data = createData(issues = listOf(issue("b")))
+        val delta = SafetyCenterDataDelta.between(base, 1, data, 2)
+        val duplicateBase = createData(issues = listOf(issue("a"), issue("a")))
+
+        assertThat(delta.applyTo(duplicateBase, 1)).isNull()
+    }
+
+    @Test
+    fun testParcel_snapshot_roundTrips() {
+        val snapshot = SafetyCenterDataDelta.snapshot(createData(issues = listOf(issue("a"))), 1)
+
+        assertThat(parcelUnparcel(snapshot)).isEqualTo(snapshot)
+    }
+
+    @Test
+    fun testParcel_delta_roundTrips() {
+        val base = createData(issues = listOf(issue("a"), issue("b")))
+        val data = createData(statusTitle = "changed", issues = listOf(issue("b"), issue("c")))
+        val delta = SafetyCenterDataDelta.between(base, 1, data, 2)
+
+        val unparceledDelta = parcelUnparcel(delta)
+
+        assertThat(unparceledDelta).isEqualTo(delta)
+        assertThat(unparceledDelta.applyTo(base, 1)).isEqualTo(data)
+    }
+
+    private fun assertDeltaAppliesToBase(base: SafetyCenterData, data: SafetyCenterData) {
+        val delta = SafetyCenterDataDelta.between(base, 1, data, 2)
+
+        assertThat(delta.baseVersion).isEqualTo(1)
+        assertThat(delta.version).isEqualTo(2)
+        assertThat(delta.applyTo(base, 1)).isEqualTo(data)
+    }
+
+    private fun parcelUnparcel(delta: SafetyCenterDataDelta): SafetyCenterDataDelta {
+        val parcel = Parcel.obtain()
+        try {
+            delta.writeToParcel(parcel, 0)
+            parcel.setDataPosition(0)
+            return SafetyCenterDataDelta.CREATOR.createFromParcel(parcel)
+        } finally {
+            parcel.recycle()
+        }
+    }
+
+    private fun issue(id: String, title: String = "title"): SafetyCenterIssue =
+        SafetyCenterIssue.Builder(id, title, "summary").build()
+
+    private fun createData(
+        statusTitle: String = "status",
+        entryTitle: String = "entry",
+        staticEntryTitle: String = "staticEntry",
+        issues: List<SafetyCenterIssue> = emptyList()
+    ): SafetyCenterData =
+        SafetyCenterData(
+            SafetyCenterStatus.Builder(statusTitle, "summary")
+                .setSeverityLevel(SafetyCenterStatus.OVERALL_SEVERITY_LEVEL_OK)
+                .build(),
+            issues,
+            listOf(
+                SafetyCenterEntryOrGroup(SafetyCenterEntry.Builder("entry", entryTitle).build())
+            ),
+            listOf(
+                SafetyCenterStaticEntryGroup(
+                    "group", listOf(SafetyCenterStaticEntry.Builder(staticEntryTitle).build())
+                )
+            )
+        )
+}